@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.benchmark;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.jayway.jsonpath.Predicate;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.analytics.common.ConstantCounterService;
+import org.springframework.cloud.stream.app.analytics.common.CounterCommonProperties;
+import org.springframework.cloud.stream.app.analytics.common.CounterService;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.json.JsonPathUtils;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Measures the {@link CounterService#count(Message)} hot path for the common counter configurations,
+ * against one or several meter registries.
+ *
+ * Run with the GC profiler to get the allocation rate next to the throughput:
+ * <pre>
+ * java -jar analytics-benchmarks/target/benchmarks.jar CounterServiceBenchmark -prof gc
+ * </pre>
+ *
+ * @author Christian Tzolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CounterServiceBenchmark {
+
+	/**
+	 * The counter configuration under test.
+	 */
+	@Param({ "plainName", "constantName", "nameExpression", "fixedTags", "jsonPathTags", "nativeJsonTags" })
+	public String scenario;
+
+	/**
+	 * Number of meter registries every counter is incremented in.
+	 */
+	@Param({ "1", "3" })
+	public int registries;
+
+	private CounterService counterService;
+
+	private Message<byte[]> message;
+
+	@Setup
+	public void setup() throws Exception {
+		SpelExpressionParser parser = new SpelExpressionParser();
+		CounterCommonProperties properties = new CounterCommonProperties();
+		Map<String, Expression> tagExpressions = new HashMap<>();
+
+		switch (this.scenario) {
+		case "plainName":
+		case "constantName":
+			properties.setName("counter");
+			break;
+		case "nameExpression":
+			properties.setNameExpression(parser.parseExpression("headers['counterName']"));
+			break;
+		case "fixedTags":
+			properties.setName("counter");
+			Map<String, String> fixedTags = new HashMap<>();
+			fixedTags.put("application", "benchmark");
+			fixedTags.put("region", "eu-west");
+			properties.getTag().setFixed(fixedTags);
+			break;
+		case "jsonPathTags":
+		case "nativeJsonTags":
+			properties.setNativeJsonExtraction("nativeJsonTags".equals(this.scenario));
+			properties.setName("books");
+			tagExpressions.put("category", parser.parseExpression("#jsonPath(payload,'$..category')"));
+			tagExpressions.put("author", parser.parseExpression("#jsonPath(payload,'$..author')"));
+			properties.getTag().setExpression(tagExpressions);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown scenario: " + this.scenario);
+		}
+
+		MeterRegistry[] meterRegistries = new MeterRegistry[this.registries];
+		for (int i = 0; i < meterRegistries.length; i++) {
+			meterRegistries[i] = new SimpleMeterRegistry();
+		}
+
+		DefaultCounterService defaultCounterService = new DefaultCounterService(properties, meterRegistries,
+				evaluationContext());
+		this.counterService = "constantName".equals(this.scenario) ?
+				new ConstantCounterService(defaultCounterService, meterRegistries) : defaultCounterService;
+		this.message = MessageBuilder.withPayload(BOOKS_STORE.getBytes())
+				.copyHeaders(Collections.singletonMap("counterName", "counter"))
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		((DisposableBean) this.counterService).destroy();
+	}
+
+	@Benchmark
+	public Message<?> count() {
+		return this.counterService.count(this.message);
+	}
+
+	/**
+	 * Mirrors the integration evaluation context functions used by the counter expressions.
+	 */
+	static StandardEvaluationContext evaluationContext() throws NoSuchMethodException {
+		StandardEvaluationContext context = new StandardEvaluationContext();
+		context.registerFunction("jsonPath",
+				JsonPathUtils.class.getMethod("evaluate", Object.class, String.class, Predicate[].class));
+		return context;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(CounterServiceBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+	static final String BOOKS_STORE = "{ \"store\": {\n" +
+			"    \"book\": [ \n" +
+			"      { \"category\": \"reference\",\n" +
+			"        \"author\": \"Nigel Rees\",\n" +
+			"        \"title\": \"Sayings of the Century\",\n" +
+			"        \"price\": 8.95\n" +
+			"      },\n" +
+			"      { \"category\": \"fiction\",\n" +
+			"        \"author\": \"Evelyn Waugh\",\n" +
+			"        \"title\": \"Sword of Honour\",\n" +
+			"        \"price\": 12.99\n" +
+			"      },\n" +
+			"      { \"category\": \"fiction\",\n" +
+			"        \"author\": \"Herman Melville\",\n" +
+			"        \"title\": \"Moby Dick\",\n" +
+			"        \"isbn\": \"0-553-21311-3\",\n" +
+			"        \"price\": 8.99\n" +
+			"      },\n" +
+			"      { \"category\": \"fiction\",\n" +
+			"        \"author\": \"J. R. R. Tolkien\",\n" +
+			"        \"title\": \"The Lord of the Rings\",\n" +
+			"        \"isbn\": \"0-395-19395-8\",\n" +
+			"        \"price\": 22.99\n" +
+			"      }\n" +
+			"    ],\n" +
+			"    \"bicycle\": {\n" +
+			"      \"color\": \"red\",\n" +
+			"      \"price\": 19.95\n" +
+			"    }\n" +
+			"  }\n" +
+			"}";
+}
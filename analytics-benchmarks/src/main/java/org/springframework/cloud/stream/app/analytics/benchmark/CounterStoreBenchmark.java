@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.springframework.cloud.stream.app.analytics.common.CounterCommonProperties;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
+import org.springframework.cloud.stream.app.analytics.common.OffHeapCounterStore;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Compares the resolved counters cache with the off-heap counter store for a high number of (name, tags) series:
+ * the throughput of the increments spread over every series and, printed once per trial, the heap retained per
+ * series once every series exists.
+ *
+ * <pre>
+ * java -jar analytics-benchmarks/target/benchmarks.jar CounterStoreBenchmark -jvmArgs -Xmx4g
+ * </pre>
+ *
+ * @author Christian Tzolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CounterStoreBenchmark {
+
+	/**
+	 * Where the counter totals are kept: Micrometer counters behind the resolved counters cache, or the off-heap
+	 * store.
+	 */
+	@Param({ "cache", "offHeap" })
+	public String store;
+
+	/**
+	 * Number of distinct series incremented.
+	 */
+	@Param({ "10000", "1000000" })
+	public int series;
+
+	private DefaultCounterService counterService;
+
+	private Message<?>[] messages;
+
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		CounterCommonProperties properties = new CounterCommonProperties();
+		properties.setName("counter");
+		properties.setMessageCounterEnabled(false);
+		properties.getTag().setExpression(Collections.singletonMap("value",
+				new SpelExpressionParser().parseExpression("payload")));
+		properties.getCache().setEnabled(true);
+		properties.getCache().setMaxSize(this.series);
+		properties.getStore().setEnabled("offHeap".equals(this.store));
+		properties.getStore().setInitialCapacity(this.series);
+
+		this.messages = new Message<?>[this.series];
+		for (int i = 0; i < this.series; i++) {
+			this.messages[i] = new GenericMessage<>("value-" + i);
+		}
+
+		long heapBefore = usedHeap();
+		this.counterService = new DefaultCounterService(properties, new MeterRegistry[] { new SimpleMeterRegistry() },
+				CounterServiceBenchmark.evaluationContext());
+		for (Message<?> message : this.messages) {
+			this.counterService.count(message);
+		}
+		this.counterService.flush();
+		long heap = usedHeap() - heapBefore;
+		OffHeapCounterStore counterStore = this.counterService.getCounterStore();
+		long offHeap = (counterStore != null) ? counterStore.memoryBytes() : 0;
+		System.out.printf("%nstore=%s series=%d heap bytes/series=%d off-heap bytes/series=%d%n",
+				this.store, this.series, heap / this.series, offHeap / this.series);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.counterService.destroy();
+	}
+
+	@Benchmark
+	public Message<?> count() {
+		Message<?> message = this.messages[this.next];
+		this.next = (this.next + 1 == this.series) ? 0 : this.next + 1;
+		return this.counterService.count(message);
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(CounterStoreBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.springframework.cloud.stream.app.analytics.common.HyperLogLog;
+
+/**
+ * Measures the {@link HyperLogLog} distinct count sketch: the cost of offering a value to a warm sketch, the cost of
+ * an estimate (i.e. of a gauge scrape) and, printed once per trial, the relative error of the estimate for the
+ * configured cardinality.
+ *
+ * <pre>
+ * java -jar analytics-benchmarks/target/benchmarks.jar HyperLogLogBenchmark
+ * </pre>
+ *
+ * @author Christian Tzolov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HyperLogLogBenchmark {
+
+	/**
+	 * Sketch precision, i.e. 2^precision registers.
+	 */
+	@Param({ "10", "14", "18" })
+	public int precision;
+
+	/**
+	 * Number of distinct values offered.
+	 */
+	@Param({ "10000", "1000000" })
+	public int cardinality;
+
+	private String[] values;
+
+	private HyperLogLog hyperLogLog;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		this.values = new String[this.cardinality];
+		for (int i = 0; i < this.cardinality; i++) {
+			this.values[i] = "user-" + i;
+		}
+		this.hyperLogLog = new HyperLogLog(this.precision);
+		for (String value : this.values) {
+			this.hyperLogLog.offer(value);
+		}
+		long estimate = this.hyperLogLog.estimate();
+		System.out.printf("%nprecision=%d cardinality=%d estimate=%d relative error=%.4f (standard error %.4f)%n",
+				this.precision, this.cardinality, estimate, (estimate - this.cardinality) / (double) this.cardinality,
+				1.04 / Math.sqrt(1 << this.precision));
+	}
+
+	@Benchmark
+	public void offer() {
+		this.hyperLogLog.offer(this.values[this.next]);
+		this.next = (this.next + 1 == this.cardinality) ? 0 : this.next + 1;
+	}
+
+	@Benchmark
+	public long estimate() {
+		return this.hyperLogLog.estimate();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(HyperLogLogBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.List;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.messaging.Message;
+
+/**
+ * {@link CounterService} of the plain message counting: a constant counter name and amount, without tag, distinct
+ * or dedup expression. Every message only increments the message counter, resolved once per meter registry, so
+ * the counting neither evaluates expressions nor looks meters up.
+ *
+ * While the counting plan of the delegate is not constant, typically after a refresh adding tag expressions, the
+ * messages are counted by the delegate.
+ *
+ * @author Christian Tzolov
+ */
+public class ConstantCounterService implements CounterService, DisposableBean {
+
+	private final DefaultCounterService delegate;
+
+	private final MeterRegistry[] meterRegistries;
+
+	/**
+	 * Message counter of every meter registry, null while the counting plan is not constant.
+	 */
+	private volatile Counter[] messageCounters;
+
+	public ConstantCounterService(DefaultCounterService delegate, MeterRegistry[] meterRegistries) {
+		this.delegate = delegate;
+		this.meterRegistries = meterRegistries;
+		this.messageCounters = this.resolveMessageCounters(delegate.getPlan());
+	}
+
+	/**
+	 * @param properties the counter properties.
+	 * @return Returns true if none of the enabled features needs the {@link DefaultCounterService} counting path.
+	 */
+	public static boolean supports(CounterCommonProperties properties) {
+		return !properties.getStore().isEnabled()
+				&& !properties.getFanOut().isEnabled()
+				&& !properties.getAggregation().isEnabled()
+				&& !properties.getCheckpoint().isEnabled()
+				&& !properties.getHeaders().isEnabled()
+				&& !properties.getDistribution().isEnabled()
+				&& !properties.getProfiling().isEnabled()
+				&& properties.getDedup().getKeyExpression() == null;
+	}
+
+	/**
+	 * @return Returns true if the messages are counted without the delegate.
+	 */
+	public boolean isConstant() {
+		return this.messageCounters != null;
+	}
+
+	@Override
+	public Message<?> count(Message<?> message) {
+		Counter[] counters = this.messageCounters;
+		if (counters == null) {
+			return this.delegate.count(message);
+		}
+		for (Counter counter : counters) {
+			counter.increment();
+		}
+		return message;
+	}
+
+	@Override
+	public List<Message<?>> countBatch(List<Message<?>> messages) {
+		Counter[] counters = this.messageCounters;
+		if (counters == null) {
+			return this.delegate.countBatch(messages);
+		}
+		if (!messages.isEmpty()) {
+			for (Counter counter : counters) {
+				counter.increment(messages.size());
+			}
+		}
+		return messages;
+	}
+
+	@Override
+	public synchronized void refresh() {
+		this.delegate.refresh();
+		this.messageCounters = this.resolveMessageCounters(this.delegate.getPlan());
+	}
+
+	/**
+	 * @return Returns the service counting the messages of the non constant plans.
+	 */
+	public DefaultCounterService getDelegate() {
+		return this.delegate;
+	}
+
+	@Override
+	public void destroy() {
+		this.delegate.destroy();
+	}
+
+	private Counter[] resolveMessageCounters(CounterPlan plan) {
+		if (plan.name == null || !plan.constantAmount || plan.tagKeys.length > 0 || plan.distinctNames.length > 0
+				|| plan.dedupKeyExpression != null) {
+			return null;
+		}
+		if (!plan.messageCounterEnabled) {
+			return new Counter[0];
+		}
+		Counter[] counters = new Counter[this.meterRegistries.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = this.meterRegistries[i].counter(plan.messageCounterName, plan.fixedTags);
+		}
+		return counters;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import org.springframework.util.Assert;
+
+/**
+ * Count-Min Sketch of the value frequencies. Estimates never under count, and over count by at most e/width of
+ * the total count with probability 1 - e^-depth. The row hashes are derived from a single 64 bit hash of the value
+ * (Kirsch-Mitzenmacher). Not thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public class CountMinSketch {
+
+	private final int width;
+
+	private final long[][] rows;
+
+	public CountMinSketch(int width, int depth) {
+		Assert.isTrue(width > 0 && depth > 0, "The width and depth must be positive");
+		this.width = width;
+		this.rows = new long[depth][width];
+	}
+
+	/**
+	 * Adds the count to the value frequency.
+	 * @param value value to count.
+	 * @param count count to add.
+	 * @return Returns the value frequency estimate, including this count.
+	 */
+	public long add(String value, long count) {
+		long hash = HyperLogLog.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < this.rows.length; row++) {
+			int column = ((h1 + row * h2) & Integer.MAX_VALUE) % this.width;
+			long frequency = (this.rows[row][column] += count);
+			estimate = Math.min(estimate, frequency);
+		}
+		return estimate;
+	}
+
+	/**
+	 * @param value value to look up.
+	 * @return Returns the value frequency estimate.
+	 */
+	public long estimate(String value) {
+		long hash = HyperLogLog.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < this.rows.length; row++) {
+			int column = ((h1 + row * h2) & Integer.MAX_VALUE) % this.width;
+			estimate = Math.min(estimate, this.rows[row][column]);
+		}
+		return estimate;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjDoubleConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Sums the counter increments locally, per {@link MeterKey}, and periodically flushes the accumulated amounts
+ * downstream. A flush is triggered every flush interval, or earlier when the number of increments since the last
+ * flush reaches the flush threshold.
+ *
+ * Every key keeps a running total in a striped {@link DoubleAdder} and the total flushed so far. Only the difference
+ * is sent downstream, so concurrent increments are never lost, even when they race with a flush. The increments
+ * are counted in a striped {@link LongAdder} too, and only a sample of the increments compares their sum with the
+ * flush threshold, so the threshold triggers a flush within a few increments.
+ *
+ * The keys without increment since the previous flush are retired from the pending amounts. The increments that
+ * looked a retired key up before its retirement are flushed by the next flush, after which the key is dropped.
+ * Later increments of the key start a new pending amount.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterAggregator implements AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(CounterAggregator.class);
+
+	private final Map<MeterKey, Pending> pending = new ConcurrentHashMap<>();
+
+	private final ObjDoubleConsumer<MeterKey> downstream;
+
+	private final long flushThreshold;
+
+	/**
+	 * One out of this many increments compares the increments since the last flush with the flush threshold.
+	 */
+	private static final int THRESHOLD_CHECK_SAMPLING = 64;
+
+	private final LongAdder increments = new LongAdder();
+
+	/**
+	 * Keys retired by the previous flush, with their pending amounts. Only accessed while holding the lock.
+	 */
+	private List<Map.Entry<MeterKey, Pending>> retired = new ArrayList<>();
+
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private final ScheduledExecutorService scheduler;
+
+	public CounterAggregator(Duration flushInterval, long flushThreshold, ObjDoubleConsumer<MeterKey> downstream) {
+		this.downstream = downstream;
+		this.flushThreshold = flushThreshold;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-aggregation-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		long intervalMillis = flushInterval.toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the amount to the pending total of the key.
+	 * @param key counter series to increment, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 */
+	public void add(MeterKey key, double amount) {
+		Pending p = this.pending.get(key);
+		if (p == null || p.retired) {
+			p = this.pending.computeIfAbsent(key.toImmutable(), k -> new Pending());
+		}
+		p.total.add(amount);
+		this.increments.increment();
+		if (ThreadLocalRandom.current().nextInt(THRESHOLD_CHECK_SAMPLING) == 0
+				&& this.increments.sum() >= this.flushThreshold && this.flushRequested.compareAndSet(false, true)) {
+			this.scheduler.execute(this::flushQuietly);
+		}
+	}
+
+	/**
+	 * Sends the amounts accumulated since the previous flush downstream.
+	 */
+	public synchronized void flush() {
+		this.flushRequested.set(false);
+		this.increments.reset();
+		for (Map.Entry<MeterKey, Pending> e : this.retired) {
+			this.flush(e.getKey(), e.getValue());
+		}
+		this.retired = new ArrayList<>();
+		for (Map.Entry<MeterKey, Pending> e : this.pending.entrySet()) {
+			if (!this.flush(e.getKey(), e.getValue())) {
+				e.getValue().retired = true;
+				this.pending.remove(e.getKey(), e.getValue());
+				this.retired.add(e);
+			}
+		}
+	}
+
+	/**
+	 * @return Returns false if the key has not been incremented since the previous flush.
+	 */
+	private boolean flush(MeterKey key, Pending p) {
+		double total = p.total.sum();
+		double delta = total - p.flushed;
+		if (delta == 0) {
+			return false;
+		}
+		p.flushed = total;
+		this.downstream.accept(key, delta);
+		return true;
+	}
+
+	private void flushQuietly() {
+		try {
+			this.flush();
+		}
+		catch (Exception e) {
+			logger.error("Failed to flush the aggregated counters", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic flushing and flushes the remaining amounts.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.flush();
+		// Flushes the late increments of the keys retired by the previous flush.
+		this.flush();
+	}
+
+	/**
+	 * @return Returns the number of keys with pending amounts.
+	 */
+	public int size() {
+		return this.pending.size();
+	}
+
+	private static class Pending {
+
+		private final DoubleAdder total = new DoubleAdder();
+
+		// Only accessed while holding the aggregator lock.
+		private double flushed;
+
+		private volatile boolean retired;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Bounded cache of the {@link Counter} instances resolved for a given (name, tags) pair. Every entry holds one
+ * counter per configured {@link MeterRegistry}, in the registries order, so that repeated increments skip the
+ * registry lookups altogether.
+ *
+ * When the cache is full an entry is evicted with the CLOCK (second chance) policy, an approximation of LRU: the
+ * eviction hand sweeps the entries, sparing and unmarking the entries hit since its previous pass, and evicts the
+ * first entry not hit since. Evicted counters stay registered with their registries and are resolved again on the
+ * next increment. Meters removed from a registry behind the cache's back are not
+ * detected.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterCache {
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final int maxSize;
+
+	private final ConcurrentHashMap<MeterKey, Entry> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * The eviction hand, resuming the sweep where the previous eviction stopped.
+	 */
+	private Iterator<Map.Entry<MeterKey, Entry>> hand;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	public CounterCache(MeterRegistry[] meterRegistries, int maxSize) {
+		this.meterRegistries = meterRegistries;
+		this.maxSize = maxSize;
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			this.bindTo(meterRegistry);
+		}
+	}
+
+	/**
+	 * @param key counter series, possibly a lookup probe.
+	 * @return Returns the counters, one per configured registry, for the given series.
+	 */
+	public Counter[] get(MeterKey key) {
+		Entry entry = this.counters.get(key);
+		if (entry != null) {
+			this.hits.increment();
+			// Only written when unset, so that the hot entries are not written on every hit.
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			return entry.counters;
+		}
+		this.misses.increment();
+
+		key = key.toImmutable();
+		Counter[] resolved = new Counter[this.meterRegistries.length];
+		for (int i = 0; i < this.meterRegistries.length; i++) {
+			resolved[i] = this.meterRegistries[i].counter(key.getName(), key.getTags());
+		}
+
+		if (this.counters.size() >= this.maxSize) {
+			this.evictOne();
+		}
+		Entry previous = this.counters.putIfAbsent(key, new Entry(resolved));
+		return (previous != null) ? previous.counters : resolved;
+	}
+
+	/**
+	 * Forgets the counters resolved for the matching series, e.g. once their meters were removed.
+	 * @param series the series to forget.
+	 */
+	public void remove(Predicate<MeterKey> series) {
+		this.counters.keySet().removeIf(series);
+	}
+
+	public int size() {
+		return this.counters.size();
+	}
+
+	private synchronized void evictOne() {
+		// A full pass clears every mark, so the second pass at the latest evicts an entry.
+		for (int swept = 0, max = 2 * this.counters.size() + 1; swept < max; swept++) {
+			if (this.hand == null || !this.hand.hasNext()) {
+				this.hand = this.counters.entrySet().iterator();
+				if (!this.hand.hasNext()) {
+					return;
+				}
+			}
+			Entry entry = this.hand.next().getValue();
+			if (entry.referenced) {
+				entry.referenced = false;
+			}
+			else {
+				this.hand.remove();
+				this.evictions.increment();
+				return;
+			}
+		}
+	}
+
+	private void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "cache.hits", this.hits, LongAdder::sum)
+				.description("Counter increments served from the resolved counters cache")
+				.register(registry);
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "cache.misses", this.misses, LongAdder::sum)
+				.description("Counter increments that required a meter registry lookup")
+				.register(registry);
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "cache.evictions", this.evictions,
+				LongAdder::sum)
+				.description("Resolved counters evicted from the cache")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "cache.size", this, CounterCache::size)
+				.description("Number of (name, tags) entries in the resolved counters cache")
+				.register(registry);
+	}
+
+	private static final class Entry {
+
+		private final Counter[] counters;
+
+		/**
+		 * Whether the entry has been hit since the last pass of the eviction hand.
+		 */
+		private volatile boolean referenced;
+
+		Entry(Counter[] counters) {
+			this.counters = counters;
+		}
+	}
+}
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Persists the counter totals across restarts, as a memory-mapped snapshot file plus an append-only log of the
+ * deltas since that snapshot.
+ *
+ * Every series keeps its running total and the total logged so far. Every log interval the differences are appended
+ * to the log, and every snapshot interval the logged totals are written to a new snapshot, which replaces the
+ * previous one atomically. Snapshots and logs carry a generation number: the log of generation N holds the deltas
+ * that follow the snapshot of generation N, so a crash at any point never replays a delta twice.
+ *
+ * The checkpoint also keeps the offsets committed together with the counter increments, per partition, so that
+ * redelivered messages can be told apart after a restart. Every append to the log is a single checksummed record,
+ * therefore the increments and the offsets of a commit are either restored together or not at all.
+ *
+ * On startup the snapshot and its log are read back and the restored totals are passed downstream. A torn record at
+ * the end of the log, e.g. after a crash, is discarded.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterCheckpoint implements AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(CounterCheckpoint.class);
+
+	static final String SNAPSHOT_FILE = "counters.snapshot";
+
+	private static final int SNAPSHOT_MAGIC = 0x434e5453;
+
+	private static final int VERSION = 1;
+
+	private static final byte TOTAL_ENTRY = 0;
+
+	private static final byte OFFSET_ENTRY = 1;
+
+	/**
+	 * Magic, version, generation, entry count and body checksum.
+	 */
+	private static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 8 + 4 + 8;
+
+	/**
+	 * Payload length and payload checksum.
+	 */
+	private static final int RECORD_HEADER_BYTES = 4 + 4;
+
+	private final Path directory;
+
+	private final Duration logInterval;
+
+	private final Duration snapshotInterval;
+
+	private final Map<MeterKey, Pending> totals = new ConcurrentHashMap<>();
+
+	// Only accessed while holding the checkpoint lock.
+	private final Map<String, Long> offsets = new HashMap<>();
+
+	private final Set<String> changedOffsets = new HashSet<>();
+
+	private final Timer[] snapshotTimers;
+
+	private final Timer[] logTimers;
+
+	private final Timer[] recoveryTimers;
+
+	private final ScheduledExecutorService scheduler;
+
+	private long generation;
+
+	private FileChannel log;
+
+	/**
+	 * Largest region of the log mapped at once, a single mapping is limited to 2 GB.
+	 */
+	int maxMappedBytes = Integer.MAX_VALUE;
+
+	public CounterCheckpoint(MeterRegistry[] meterRegistries, Path directory, Duration logInterval,
+			Duration snapshotInterval) {
+		this.directory = directory;
+		this.logInterval = logInterval;
+		this.snapshotInterval = snapshotInterval;
+		this.snapshotTimers = new Timer[meterRegistries.length];
+		this.logTimers = new Timer[meterRegistries.length];
+		this.recoveryTimers = new Timer[meterRegistries.length];
+		for (int i = 0; i < meterRegistries.length; i++) {
+			this.snapshotTimers[i] = Timer.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "checkpoint.snapshot")
+					.description("Time to write a snapshot of the counter totals")
+					.register(meterRegistries[i]);
+			this.logTimers[i] = Timer.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "checkpoint.log")
+					.description("Time to append the counter deltas to the checkpoint log")
+					.register(meterRegistries[i]);
+			this.recoveryTimers[i] = Timer.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "checkpoint.recovery")
+					.description("Time to restore the counter totals from the snapshot and the checkpoint log")
+					.register(meterRegistries[i]);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-checkpoint-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+	}
+
+	/**
+	 * Restores the checkpointed totals, passing every restored series total to the consumer, and starts the
+	 * periodic checkpointing. The restored series only keep their name and tags, so they are first laid out like
+	 * the series of the new increments, to make both the same keys.
+	 * @param layout lays a restored series out like the counted series.
+	 * @param restored consumer of the restored series totals.
+	 */
+	public synchronized void start(UnaryOperator<MeterKey> layout, ObjDoubleConsumer<MeterKey> restored) {
+		long start = System.nanoTime();
+		Map<MeterKey, double[]> state = new HashMap<>();
+		try {
+			Files.createDirectories(this.directory);
+			this.generation = this.readSnapshot(state, this.offsets);
+			Path logPath = this.logPath(this.generation);
+			long logLength = Files.exists(logPath) ? this.readLog(logPath, state, this.offsets) : 0;
+			this.deleteLogs(this.generation);
+			this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			// Drops the torn tail, if any, before appending.
+			this.log.truncate(logLength);
+			this.log.position(logLength);
+			this.syncDirectory();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to restore the counter checkpoint from " + this.directory, e);
+		}
+		for (Map.Entry<MeterKey, double[]> e : state.entrySet()) {
+			MeterKey series = layout.apply(e.getKey());
+			double amount = e.getValue()[0];
+			Pending p = this.totals.computeIfAbsent(series, k -> new Pending());
+			p.total.add(amount);
+			p.logged += amount;
+			restored.accept(series, amount);
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Timer timer : this.recoveryTimers) {
+			timer.record(elapsed, TimeUnit.NANOSECONDS);
+		}
+		logger.info("Restored " + state.size() + " counter series from " + this.directory + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+
+		long logMillis = this.logInterval.toMillis();
+		this.scheduler.scheduleWithFixedDelay(() -> this.quietly(this::appendLog), logMillis, logMillis,
+				TimeUnit.MILLISECONDS);
+		long snapshotMillis = this.snapshotInterval.toMillis();
+		this.scheduler.scheduleWithFixedDelay(() -> this.quietly(this::snapshot), snapshotMillis, snapshotMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the amount to the running total of the series.
+	 * @param series counter series, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 */
+	public void add(MeterKey series, double amount) {
+		Pending p = this.totals.get(series);
+		if (p == null) {
+			p = this.totals.computeIfAbsent(series.toImmutable(), k -> new Pending());
+		}
+		p.total.add(amount);
+	}
+
+	/**
+	 * Adds the increments to the running totals and passes them downstream, and records the partition offsets
+	 * committed with them, in a single step with respect to the log appends and the snapshots. The log is appended
+	 * before returning, so the committed offsets are on the storage device once the commit returns and the
+	 * committed messages can be acknowledged.
+	 * @param increments the increments to add.
+	 * @param committedOffsets the committed offset, per partition.
+	 * @param downstream consumer of the increments.
+	 */
+	public synchronized void commit(PendingIncrements increments, Map<String, Long> committedOffsets,
+			ObjDoubleConsumer<MeterKey> downstream) {
+		increments.forEach((series, amount) -> {
+			this.add(series, amount);
+			downstream.accept(series, amount);
+		});
+		this.offsets.putAll(committedOffsets);
+		this.changedOffsets.addAll(committedOffsets.keySet());
+		this.appendLog();
+	}
+
+	/**
+	 * @return Returns a copy of the committed offsets, per partition, including the restored ones.
+	 */
+	public synchronized Map<String, Long> getOffsets() {
+		return new HashMap<>(this.offsets);
+	}
+
+	/**
+	 * Appends the deltas and the offsets committed since the previous append to the log, as a single record, and
+	 * forces them to the storage device. The appended deltas and offsets are only marked as logged once forced,
+	 * so a failed append is retried by the next one.
+	 */
+	public synchronized void appendLog() {
+		long start = System.nanoTime();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		List<Pending> appended = new ArrayList<>();
+		List<Double> appendedTotals = new ArrayList<>();
+		long position = -1;
+		try {
+			DataOutputStream out = new DataOutputStream(payload);
+			for (Map.Entry<MeterKey, Pending> e : this.totals.entrySet()) {
+				Pending p = e.getValue();
+				double total = p.total.sum();
+				double delta = total - p.logged;
+				if (delta != 0) {
+					appended.add(p);
+					appendedTotals.add(total);
+					writeTotal(out, e.getKey(), delta);
+				}
+			}
+			for (String partition : this.changedOffsets) {
+				writeOffset(out, partition, this.offsets.get(partition));
+			}
+			if (payload.size() == 0) {
+				return;
+			}
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+			buffer.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+			buffer.flip();
+			position = this.log.position();
+			while (buffer.hasRemaining()) {
+				this.log.write(buffer);
+			}
+			this.log.force(false);
+			for (int i = 0; i < appended.size(); i++) {
+				appended.get(i).logged = appendedTotals.get(i);
+			}
+			this.changedOffsets.clear();
+		}
+		catch (IOException e) {
+			this.discardTail(position);
+			throw new IllegalStateException("Failed to append to the counter checkpoint log", e);
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Timer timer : this.logTimers) {
+			timer.record(elapsed, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Drops the partially written record of a failed append, if any, so the records appended next are restored.
+	 */
+	private void discardTail(long position) {
+		if (position < 0) {
+			return;
+		}
+		try {
+			this.log.truncate(position);
+			this.log.position(position);
+		}
+		catch (IOException e) {
+			logger.warn("Failed to truncate the counter checkpoint log to " + position, e);
+		}
+	}
+
+	/**
+	 * Writes the totals to a new snapshot generation and starts a new, empty, log.
+	 */
+	public synchronized void snapshot() {
+		this.appendLog();
+		long start = System.nanoTime();
+		long next = this.generation + 1;
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(body);
+			int count = 0;
+			for (Map.Entry<MeterKey, Pending> e : this.totals.entrySet()) {
+				writeTotal(out, e.getKey(), e.getValue().logged);
+				count++;
+			}
+			for (Map.Entry<String, Long> e : this.offsets.entrySet()) {
+				writeOffset(out, e.getKey(), e.getValue());
+				count++;
+			}
+			byte[] bytes = body.toByteArray();
+			if (bytes.length > Integer.MAX_VALUE - SNAPSHOT_HEADER_BYTES) {
+				throw new IllegalStateException("The counter checkpoint snapshot of " + count
+						+ " entries exceeds the 2 GB limit");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			Path snapshotPath = this.directory.resolve(SNAPSHOT_FILE);
+			Path tmpPath = this.directory.resolve(SNAPSHOT_FILE + ".tmp");
+			try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+						SNAPSHOT_HEADER_BYTES + bytes.length);
+				buffer.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(next).putInt(count).putLong(crc.getValue());
+				buffer.put(bytes);
+				buffer.force();
+			}
+			Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			FileChannel previousLog = this.log;
+			this.log = FileChannel.open(this.logPath(next), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			// Makes the rename and the new log durable before the previous logs are deleted.
+			this.syncDirectory();
+			this.generation = next;
+			previousLog.close();
+			this.deleteLogs(next);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to write the counter checkpoint snapshot", e);
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Timer timer : this.snapshotTimers) {
+			timer.record(elapsed, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic checkpointing and writes a final snapshot.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (this.log == null) {
+				return;
+			}
+			try {
+				this.snapshot();
+			}
+			finally {
+				try {
+					this.log.close();
+				}
+				catch (IOException e) {
+					logger.warn("Failed to close the counter checkpoint log", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces the directory entries, e.g. a rename, to the storage device. Not supported on every platform.
+	 */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(this.directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch (IOException e) {
+			logger.debug("Failed to sync the counter checkpoint directory " + this.directory, e);
+		}
+	}
+
+	private void quietly(Runnable task) {
+		try {
+			task.run();
+		}
+		catch (Exception e) {
+			logger.error("Failed to checkpoint the counters", e);
+		}
+	}
+
+	Path logPath(long generation) {
+		return this.directory.resolve("counters-" + generation + ".log");
+	}
+
+	/**
+	 * @return Returns the generation of the snapshot, 0 if there is no valid snapshot.
+	 */
+	private long readSnapshot(Map<MeterKey, double[]> state, Map<String, Long> offsets) throws IOException {
+		Path snapshotPath = this.directory.resolve(SNAPSHOT_FILE);
+		if (!Files.exists(snapshotPath)) {
+			return 0;
+		}
+		try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("The counter checkpoint snapshot " + snapshotPath + " exceeds the 2 GB limit");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < SNAPSHOT_HEADER_BYTES || buffer.getInt() != SNAPSHOT_MAGIC
+					|| buffer.getInt() != VERSION) {
+				logger.warn("Ignoring the unknown counter checkpoint snapshot " + snapshotPath);
+				return 0;
+			}
+			long generation = buffer.getLong();
+			int count = buffer.getInt();
+			long checksum = buffer.getLong();
+			if (checksum(buffer.duplicate()) != checksum) {
+				logger.warn("Ignoring the corrupted counter checkpoint snapshot " + snapshotPath);
+				return 0;
+			}
+			for (int i = 0; i < count; i++) {
+				readEntry(buffer, state, offsets);
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * @return Returns the length of the valid records at the beginning of the log.
+	 */
+	private long readLog(Path logPath, Map<MeterKey, double[]> state, Map<String, Long> offsets)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+			// Mapped in regions starting at a record boundary, the log may exceed a single mapping.
+			while (position < size) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(size - position, this.maxMappedBytes));
+				boolean regionEnd = readRecords(buffer, state, offsets);
+				position += buffer.position();
+				if (!regionEnd || buffer.position() == 0) {
+					break;
+				}
+			}
+			if (position < size) {
+				logger.warn("Discarding the torn tail of the counter checkpoint log " + logPath);
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * Reads the valid records of the buffer, leaving its position after the last one.
+	 * @return Returns true if the reading stopped at a record running past the end of the buffer, false if it
+	 * stopped at a corrupted record.
+	 */
+	private static boolean readRecords(ByteBuffer buffer, Map<MeterKey, double[]> state, Map<String, Long> offsets) {
+		while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length < 0) {
+				buffer.position(start);
+				return false;
+			}
+			if (length > buffer.remaining()) {
+				buffer.position(start);
+				return true;
+			}
+			ByteBuffer payload = buffer.slice();
+			payload.limit(length);
+			if ((int) checksum(payload.duplicate()) != checksum) {
+				buffer.position(start);
+				return false;
+			}
+			while (payload.hasRemaining()) {
+				readEntry(payload, state, offsets);
+			}
+			buffer.position(start + RECORD_HEADER_BYTES + length);
+		}
+		return true;
+	}
+
+	private void deleteLogs(long keptGeneration) throws IOException {
+		Path kept = this.logPath(keptGeneration);
+		List<Path> stale = new ArrayList<>();
+		try (DirectoryStream<Path> logs = Files.newDirectoryStream(this.directory, "counters-*.log")) {
+			for (Path log : logs) {
+				if (!log.equals(kept)) {
+					stale.add(log);
+				}
+			}
+		}
+		for (Path log : stale) {
+			Files.deleteIfExists(log);
+		}
+	}
+
+	/**
+	 * Total entries are the counter name, the number of tags, the tag keys and values and the amount. Strings are
+	 * written as their UTF-8 length followed by their UTF-8 bytes.
+	 */
+	private static void writeTotal(DataOutputStream out, MeterKey series, double amount) throws IOException {
+		out.writeByte(TOTAL_ENTRY);
+		writeString(out, series.getName());
+		List<Tag> tags = new ArrayList<>();
+		series.getTags().forEach(tags::add);
+		out.writeInt(tags.size());
+		for (Tag tag : tags) {
+			writeString(out, tag.getKey());
+			writeString(out, tag.getValue());
+		}
+		out.writeDouble(amount);
+	}
+
+	/**
+	 * Offset entries are the partition and the offset.
+	 */
+	private static void writeOffset(DataOutputStream out, String partition, long offset) throws IOException {
+		out.writeByte(OFFSET_ENTRY);
+		writeString(out, partition);
+		out.writeLong(offset);
+	}
+
+	/**
+	 * Reads an entry. Total entries add their amount to the state, entries of the same series add up. Offset
+	 * entries replace the previous offset of their partition.
+	 */
+	private static void readEntry(ByteBuffer buffer, Map<MeterKey, double[]> state, Map<String, Long> offsets) {
+		if (buffer.get() == OFFSET_ENTRY) {
+			String partition = readString(buffer);
+			offsets.put(partition, buffer.getLong());
+			return;
+		}
+		String name = readString(buffer);
+		int tagCount = buffer.getInt();
+		List<Tag> tags = new ArrayList<>(tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			tags.add(Tag.of(readString(buffer), readString(buffer)));
+		}
+		double amount = buffer.getDouble();
+		state.computeIfAbsent(new MeterKey(name, Tags.of(tags)), k -> new double[1])[0] += amount;
+	}
+
+	private static long checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static class Pending {
+
+		private final DoubleAdder total = new DoubleAdder();
+
+		// Only accessed while holding the checkpoint lock, once started.
+		private double logged;
+	}
+}
@@ -16,10 +16,17 @@
 
 package org.springframework.cloud.stream.app.analytics.common;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 import io.micrometer.core.instrument.MeterRegistry;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.expression.EvaluationContext;
@@ -34,10 +41,42 @@ import org.springframework.integration.context.IntegrationContextUtils;
 @EnableConfigurationProperties({ CounterCommonProperties.class })
 public class CounterCommonConfiguration {
 
+	/**
+	 * Published by Spring Cloud Context once the refreshed configuration properties have been rebound. Matched by
+	 * name, Spring Cloud Context being optional.
+	 */
+	static final String REFRESH_EVENT = "org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent";
+
 	@Bean
 	public CounterService counterService(CounterCommonProperties properties, MeterRegistry[] meterRegistries,
-			@Qualifier(IntegrationContextUtils.INTEGRATION_EVALUATION_CONTEXT_BEAN_NAME) EvaluationContext context) {
-		return new DefaultCounterService(properties, meterRegistries, context);
+			@Qualifier(IntegrationContextUtils.INTEGRATION_EVALUATION_CONTEXT_BEAN_NAME) EvaluationContext context,
+			ObjectProvider<CounterIncrementListener> incrementListeners) {
+		DefaultCounterService defaultCounterService = new DefaultCounterService(properties, meterRegistries, context);
+		List<CounterIncrementListener> listeners = incrementListeners.orderedStream().collect(Collectors.toList());
+		listeners.forEach(defaultCounterService::addIncrementListener);
+		CounterService counterService = defaultCounterService;
+		if (listeners.isEmpty() && ConstantCounterService.supports(properties)) {
+			ConstantCounterService constantCounterService = new ConstantCounterService(defaultCounterService,
+					meterRegistries);
+			if (constantCounterService.isConstant()) {
+				counterService = constantCounterService;
+			}
+		}
+		if (properties.getExecutor().getMode() != CounterCommonProperties.ExecutorMode.DIRECT) {
+			counterService = new ExecutorCounterService(counterService, properties.getExecutor(),
+					properties.getComputedExecutorKeyExpression(), meterRegistries, context);
+		}
+		return counterService;
+	}
+
+	@Bean
+	@ConditionalOnClass(name = REFRESH_EVENT)
+	public ApplicationListener<ApplicationEvent> counterServiceRefresher(CounterService counterService) {
+		return event -> {
+			if (REFRESH_EVENT.equals(event.getClass().getName())) {
+				counterService.refresh();
+			}
+		};
 	}
 
 }
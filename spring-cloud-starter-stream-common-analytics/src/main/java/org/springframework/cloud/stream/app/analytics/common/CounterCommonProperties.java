@@ -16,14 +16,23 @@
 
 package org.springframework.cloud.stream.app.analytics.common;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.validation.Valid;
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.expression.Expression;
 import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.util.StringUtils;
 import org.springframework.validation.annotation.Validated;
 
 
@@ -64,48 +73,1044 @@ public class CounterCommonProperties {
 	 */
 	private boolean messageCounterEnabled = true;
 
+	/**
+	 * SpEL compiler mode for the name, amount and tag expressions: 'off' (interpreted), 'immediate' or 'mixed'.
+	 * Expressions that can not be compiled fall back to the interpreted evaluation.
+	 */
+	private SpelCompilerMode spelCompilerMode = SpelCompilerMode.OFF;
+
+	/**
+	 * Extracts the '#jsonPath(payload, ...)' tag and amount expressions with '$..field' or '$.a.b' paths from a
+	 * single streaming parse of the JSON payload. Unsupported paths and results fall back to the SpEL evaluation.
+	 */
+	private boolean nativeJsonExtraction = false;
+
 	/**
 	 * Fixed and computed tags to be assignee with the counter increment measurement.
 	 */
+	@Valid
 	private MetricsTag tag = new MetricsTag();
 
-	public static class MetricsTag {
+	/**
+	 * Resolved counters cache settings.
+	 */
+	@Valid
+	private MeterCache cache = new MeterCache();
+
+	/**
+	 * Local pre-aggregation settings.
+	 */
+	@Valid
+	private Aggregation aggregation = new Aggregation();
+
+	/**
+	 * Off-heap counter store settings.
+	 */
+	@Valid
+	private Store store = new Store();
+
+	/**
+	 * Counter totals checkpointing settings.
+	 */
+	@Valid
+	private Checkpoint checkpoint = new Checkpoint();
+
+	/**
+	 * Message deduplication settings.
+	 */
+	@Valid
+	private Dedup dedup = new Dedup();
+
+	/**
+	 * Worker pool settings.
+	 */
+	@Valid
+	private Executor executor = new Executor();
+
+	/**
+	 * Meter registry fan-out settings.
+	 */
+	@Valid
+	private FanOut fanOut = new FanOut();
+
+	/**
+	 * Counter headers settings.
+	 */
+	private Headers headers = new Headers();
+
+	/**
+	 * Distinct count settings.
+	 */
+	@Valid
+	private Distinct distinct = new Distinct();
+
+	/**
+	 * Amount distribution settings.
+	 */
+	@Valid
+	private Distribution distribution = new Distribution();
+
+	/**
+	 * Counting stage timers settings.
+	 */
+	@Valid
+	private Profiling profiling = new Profiling();
+
+	public static class MetricsTag {
+
+		/**
+		 * Custom tags assigned to every counter increment measurements.
+		 * This is a map so the property convention fixed tags is: counter.tag.fixed.[tag-name]=[tag-value]
+		 */
+		private Map<String, String> fixed;
+
+		/**
+		 * Computes tags from SpEL expression.
+		 * Single SpEL expression can produce an array of values, which in turn means distinct name/value tags.
+		 * Every name/value tag will produce a separate counter increment.
+		 * Tag expression format is: counter.tag.expression.[tag-name]=[SpEL expression]
+		 */
+		private Map<String, Expression> expression;
+
+		/**
+		 * Cardinality limits for the tag expression values.
+		 */
+		@Valid
+		private Cardinality cardinality = new Cardinality();
+
+		/**
+		 * Top-K mode for the values of selected tag expressions.
+		 */
+		@Valid
+		private TopK topK = new TopK();
+
+		public Map<String, String> getFixed() {
+			return fixed;
+		}
+
+		public void setFixed(Map<String, String> fixed) {
+			this.fixed = fixed;
+		}
+
+		public Map<String, Expression> getExpression() {
+			return expression;
+		}
+
+		public void setExpression(Map<String, Expression> expression) {
+			this.expression = expression;
+		}
+
+		public Cardinality getCardinality() {
+			return cardinality;
+		}
+
+		public TopK getTopK() {
+			return topK;
+		}
+
+		@Override
+		public String toString() {
+			return "MetricsTag{" +
+					"fixed=" + fixed +
+					", expression=" + expression +
+					", cardinality=" + cardinality +
+					", topK=" + topK +
+					'}';
+		}
+	}
+
+	public static class Cardinality {
+
+		/**
+		 * Maximum number of distinct values, per counter and tag expression. Values past the limit are replaced
+		 * by the overflow value. Zero or negative disables the limit.
+		 */
+		private int maxValuesPerTag = 0;
+
+		/**
+		 * Maximum number of distinct tag combinations produced by the tag expressions, per counter. Combinations
+		 * past the limit have all their expression tags set to the overflow value. Zero or negative disables the
+		 * limit.
+		 */
+		private int maxSeriesPerCounter = 0;
+
+		/**
+		 * Tag value that collects the values and combinations past the cardinality limits.
+		 */
+		private String overflowValue = "__other__";
+
+		public int getMaxValuesPerTag() {
+			return maxValuesPerTag;
+		}
+
+		public void setMaxValuesPerTag(int maxValuesPerTag) {
+			this.maxValuesPerTag = maxValuesPerTag;
+		}
+
+		public int getMaxSeriesPerCounter() {
+			return maxSeriesPerCounter;
+		}
+
+		public void setMaxSeriesPerCounter(int maxSeriesPerCounter) {
+			this.maxSeriesPerCounter = maxSeriesPerCounter;
+		}
+
+		public String getOverflowValue() {
+			return overflowValue;
+		}
+
+		public void setOverflowValue(String overflowValue) {
+			this.overflowValue = overflowValue;
+		}
+
+		public boolean isEnabled() {
+			return this.maxValuesPerTag > 0 || this.maxSeriesPerCounter > 0;
+		}
+
+		@Override
+		public String toString() {
+			return "Cardinality{" +
+					"maxValuesPerTag=" + maxValuesPerTag +
+					", maxSeriesPerCounter=" + maxSeriesPerCounter +
+					", overflowValue='" + overflowValue + '\'' +
+					'}';
+		}
+	}
+
+	public static class TopK {
+
+		/**
+		 * Tag expression keys counted in top-K mode. The values of these tags are counted in a Count-Min Sketch, per
+		 * counter, and only the current top 'size' values are published as tag values. The other values are
+		 * published as the other value, and the meters of the values leaving the top-K are removed.
+		 */
+		private List<String> tags;
+
+		/**
+		 * Number of heavy hitter values published per counter and top-K tag.
+		 */
+		@Min(1)
+		private int size = 10;
+
+		/**
+		 * Count-Min Sketch width. The count overestimate is at most 2.7/width of the total count, with the
+		 * probability set by the depth.
+		 */
+		@Min(1)
+		private int width = 2048;
+
+		/**
+		 * Count-Min Sketch depth. The overestimate bound holds with probability 1 - e^-depth.
+		 */
+		@Min(1)
+		private int depth = 5;
+
+		/**
+		 * Maximum number of counter names, e.g. computed by the name expression, with top-K tags. Every counter
+		 * keeps its own sketches, the values of the counters past the limit are all published as the other value.
+		 */
+		@Min(1)
+		private int maxCounters = 100;
+
+		/**
+		 * Tag value that aggregates the values outside the top-K.
+		 */
+		private String otherValue = "__other__";
+
+		public List<String> getTags() {
+			return tags;
+		}
+
+		public void setTags(List<String> tags) {
+			this.tags = tags;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public void setWidth(int width) {
+			this.width = width;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public void setDepth(int depth) {
+			this.depth = depth;
+		}
+
+		public int getMaxCounters() {
+			return maxCounters;
+		}
+
+		public void setMaxCounters(int maxCounters) {
+			this.maxCounters = maxCounters;
+		}
+
+		public String getOtherValue() {
+			return otherValue;
+		}
+
+		public void setOtherValue(String otherValue) {
+			this.otherValue = otherValue;
+		}
+
+		public boolean isEnabled() {
+			return this.tags != null && !this.tags.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "TopK{" +
+					"tags=" + tags +
+					", size=" + size +
+					", width=" + width +
+					", depth=" + depth +
+					", maxCounters=" + maxCounters +
+					", otherValue='" + otherValue + '\'' +
+					'}';
+		}
+	}
+
+	public static class MeterCache {
+
+		/**
+		 * Caches the counters resolved for every (name, tags) pair, so that repeated increments skip the
+		 * meter registry lookups. Publishes the 'counter.internal.cache.*' meters.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Maximum number of (name, tags) entries kept in the cache. The least recently hit entries, approximated
+		 * with the CLOCK policy, are evicted beyond this size.
+		 */
+		@Min(1)
+		private int maxSize = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public String toString() {
+			return "MeterCache{" +
+					"enabled=" + enabled +
+					", maxSize=" + maxSize +
+					'}';
+		}
+	}
+
+	public static class Aggregation {
+
+		/**
+		 * Sums the counter increments locally and flushes them to the meter registries periodically, instead of
+		 * incrementing the registry counters on every message.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Interval between two consecutive flushes of the aggregated increments.
+		 */
+		private Duration flushInterval = Duration.ofSeconds(1);
+
+		/**
+		 * Number of increments that triggers a flush before the flush interval elapses.
+		 */
+		@Min(1)
+		private long flushThreshold = 100000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public Duration getFlushInterval() {
+			return flushInterval;
+		}
+
+		public void setFlushInterval(Duration flushInterval) {
+			this.flushInterval = flushInterval;
+		}
+
+		public long getFlushThreshold() {
+			return flushThreshold;
+		}
+
+		public void setFlushThreshold(long flushThreshold) {
+			this.flushThreshold = flushThreshold;
+		}
+
+		@AssertTrue(message = "the aggregation 'flushInterval' must be positive")
+		public boolean isFlushIntervalValid() {
+			return flushInterval != null && !flushInterval.isNegative() && !flushInterval.isZero();
+		}
+
+		@Override
+		public String toString() {
+			return "Aggregation{" +
+					"enabled=" + enabled +
+					", flushInterval=" + flushInterval +
+					", flushThreshold=" + flushThreshold +
+					'}';
+		}
+	}
+
+	public static class Store {
+
+		/**
+		 * Keeps the counter totals in an off-heap table, keyed by interned names and tag values, instead of one
+		 * meter registry counter per (name, tags) pair. The meter registries read the totals through function
+		 * counters. The resolved counters cache is not used by the store. Mutually exclusive with the fan-out.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Expected number of (name, tags) series. The store grows beyond it as needed.
+		 */
+		@Min(1)
+		private int initialCapacity = 65536;
+
+		/**
+		 * Number of independently locked segments of the store.
+		 */
+		@Min(1)
+		private int concurrency = 16;
+
+		/**
+		 * Interval between two registrations of the new series with the meter registries. The totals of the
+		 * registered series are always current.
+		 */
+		private Duration publishInterval = Duration.ofSeconds(1);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getInitialCapacity() {
+			return initialCapacity;
+		}
+
+		public void setInitialCapacity(int initialCapacity) {
+			this.initialCapacity = initialCapacity;
+		}
+
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		public void setConcurrency(int concurrency) {
+			this.concurrency = concurrency;
+		}
+
+		public Duration getPublishInterval() {
+			return publishInterval;
+		}
+
+		public void setPublishInterval(Duration publishInterval) {
+			this.publishInterval = publishInterval;
+		}
+
+		@Override
+		public String toString() {
+			return "Store{" +
+					"enabled=" + enabled +
+					", initialCapacity=" + initialCapacity +
+					", concurrency=" + concurrency +
+					", publishInterval=" + publishInterval +
+					'}';
+		}
+	}
+
+	public static class Checkpoint {
+
+		/**
+		 * Persists the counter totals to the checkpoint directory and restores them on startup, so that the
+		 * counters continue from their previous totals after a restart.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Directory of the snapshot and delta log files. Every instance needs its own directory.
+		 */
+		private String directory;
+
+		/**
+		 * Interval between two appends of the counter deltas to the log.
+		 */
+		private Duration logInterval = Duration.ofSeconds(1);
+
+		/**
+		 * Interval between two snapshots of the counter totals. Every snapshot starts a new, empty, log.
+		 */
+		private Duration snapshotInterval = Duration.ofMinutes(1);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public Duration getLogInterval() {
+			return logInterval;
+		}
+
+		public void setLogInterval(Duration logInterval) {
+			this.logInterval = logInterval;
+		}
+
+		public Duration getSnapshotInterval() {
+			return snapshotInterval;
+		}
+
+		public void setSnapshotInterval(Duration snapshotInterval) {
+			this.snapshotInterval = snapshotInterval;
+		}
+
+		@AssertTrue(message = "the checkpoint 'directory' must be set when the checkpoint is enabled")
+		public boolean isDirectorySet() {
+			return !enabled || StringUtils.hasText(directory);
+		}
+
+		@Override
+		public String toString() {
+			return "Checkpoint{" +
+					"enabled=" + enabled +
+					", directory='" + directory + '\'' +
+					", logInterval=" + logInterval +
+					", snapshotInterval=" + snapshotInterval +
+					'}';
+		}
+	}
+
+	public static class Dedup {
+
+		/**
+		 * A SpEL expression (against the incoming Message) that evaluates to the key of the message. Messages
+		 * with a key seen within the dedup window are not counted. Messages without key are always counted. The
+		 * deduplication is disabled when not set.
+		 */
+		private Expression keyExpression;
+
+		/**
+		 * Minimum time a key is remembered. Keys are forgotten after at most twice this time.
+		 */
+		private Duration window = Duration.ofMinutes(5);
+
+		/**
+		 * Expected number of distinct keys per window. Sizes the dedup filter.
+		 */
+		@Min(1)
+		private long expectedKeys = 1000000;
+
+		/**
+		 * Target probability to drop a message with a new key, at the expected number of keys per window.
+		 */
+		private double falsePositiveProbability = 0.001;
+
+		public Expression getKeyExpression() {
+			return keyExpression;
+		}
+
+		public void setKeyExpression(Expression keyExpression) {
+			this.keyExpression = keyExpression;
+		}
+
+		public Duration getWindow() {
+			return window;
+		}
+
+		public void setWindow(Duration window) {
+			this.window = window;
+		}
+
+		public long getExpectedKeys() {
+			return expectedKeys;
+		}
+
+		public void setExpectedKeys(long expectedKeys) {
+			this.expectedKeys = expectedKeys;
+		}
+
+		public double getFalsePositiveProbability() {
+			return falsePositiveProbability;
+		}
+
+		public void setFalsePositiveProbability(double falsePositiveProbability) {
+			this.falsePositiveProbability = falsePositiveProbability;
+		}
+
+		@AssertTrue(message = "the dedup 'window' must be positive")
+		public boolean isWindowValid() {
+			return window != null && !window.isNegative() && !window.isZero();
+		}
+
+		@AssertTrue(message = "the dedup 'falsePositiveProbability' must be between 0 and 1")
+		public boolean isFalsePositiveProbabilityValid() {
+			return falsePositiveProbability > 0 && falsePositiveProbability < 1;
+		}
+
+		@Override
+		public String toString() {
+			return "Dedup{" +
+					"keyExpression=" + keyExpression +
+					", window=" + window +
+					", expectedKeys=" + expectedKeys +
+					", falsePositiveProbability=" + falsePositiveProbability +
+					'}';
+		}
+	}
+
+	public static class Distinct {
+
+		/**
+		 * Counts the distinct values computed by SpEL expressions, per computed counter name, with HyperLogLog
+		 * sketches. The estimates are published as 'distinct.[counter-name]' gauges, tagged with the fixed tags and
+		 * with expression=[distinct-name]. Expressions can produce an array of values.
+		 * Distinct expression format is: counter.distinct.expression.[distinct-name]=[SpEL expression]
+		 */
+		private Map<String, Expression> expression;
+
+		/**
+		 * HyperLogLog precision, between 4 and 18. Every sketch uses 2^precision bytes and has a standard error of
+		 * about 1.04/sqrt(2^precision), e.g. 16KB and 0.81% for the default precision.
+		 */
+		@Min(4)
+		@Max(18)
+		private int precision = 14;
+
+		public Map<String, Expression> getExpression() {
+			return expression;
+		}
+
+		public void setExpression(Map<String, Expression> expression) {
+			this.expression = expression;
+		}
+
+		public int getPrecision() {
+			return precision;
+		}
+
+		public void setPrecision(int precision) {
+			this.precision = precision;
+		}
+
+		@Override
+		public String toString() {
+			return "Distinct{" +
+					"expression=" + expression +
+					", precision=" + precision +
+					'}';
+		}
+	}
+
+	public static class Distribution {
 
 		/**
-		 * Custom tags assigned to every counter increment measurements.
-		 * This is a map so the property convention fixed tags is: counter.tag.fixed.[tag-name]=[tag-value]
+		 * Records every amount of the tag expression counters in a quantile sketch (DDSketch) per counter series
+		 * and publishes the percentiles as '[counter-name].percentile' gauges, tagged with phi=[percentile].
 		 */
-		private Map<String, String> fixed;
+		private boolean enabled = false;
 
 		/**
-		 * Computes tags from SpEL expression.
-		 * Single SpEL expression can produce an array of values, which in turn means distinct name/value tags.
-		 * Every name/value tag will produce a separate counter increment.
-		 * Tag expression format is: counter.tag.expression.[tag-name]=[SpEL expression]
+		 * Percentiles published for every counter series.
 		 */
-		private Map<String, Expression> expression;
+		private List<Double> percentiles = Arrays.asList(0.5, 0.9, 0.99);
 
-		public Map<String, String> getFixed() {
-			return fixed;
+		/**
+		 * Relative accuracy of the percentile values. Sketches are only mergeable with the same relative accuracy.
+		 */
+		private double relativeAccuracy = 0.01;
+
+		/**
+		 * Maximum number of buckets per sketch and sign. The lowest buckets are collapsed past the limit.
+		 */
+		@Min(1)
+		private int maxBuckets = 2048;
+
+		public boolean isEnabled() {
+			return enabled;
 		}
 
-		public void setFixed(Map<String, String> fixed) {
-			this.fixed = fixed;
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
 		}
 
-		public Map<String, Expression> getExpression() {
-			return expression;
+		public List<Double> getPercentiles() {
+			return percentiles;
 		}
 
-		public void setExpression(Map<String, Expression> expression) {
-			this.expression = expression;
+		public void setPercentiles(List<Double> percentiles) {
+			this.percentiles = percentiles;
+		}
+
+		public double getRelativeAccuracy() {
+			return relativeAccuracy;
+		}
+
+		public void setRelativeAccuracy(double relativeAccuracy) {
+			this.relativeAccuracy = relativeAccuracy;
+		}
+
+		public int getMaxBuckets() {
+			return maxBuckets;
+		}
+
+		public void setMaxBuckets(int maxBuckets) {
+			this.maxBuckets = maxBuckets;
+		}
+
+		@AssertTrue(message = "the distribution 'relativeAccuracy' must be between 0 and 1")
+		public boolean isRelativeAccuracyValid() {
+			return relativeAccuracy > 0 && relativeAccuracy < 1;
+		}
+
+		@AssertTrue(message = "the distribution 'percentiles' must be between 0 and 1")
+		public boolean isPercentilesValid() {
+			return percentiles != null && percentiles.stream().allMatch(p -> p != null && p >= 0 && p <= 1);
 		}
 
 		@Override
 		public String toString() {
-			return "MetricsTag{" +
-					"fixed=" + fixed +
-					", expression=" + expression +
+			return "Distribution{" +
+					"enabled=" + enabled +
+					", percentiles=" + percentiles +
+					", relativeAccuracy=" + relativeAccuracy +
+					", maxBuckets=" + maxBuckets +
+					'}';
+		}
+	}
+
+	public enum ExecutorMode {
+
+		/**
+		 * Counts on the calling (binder) thread.
+		 */
+		DIRECT,
+
+		/**
+		 * Counts on a fixed pool of platform threads.
+		 */
+		PLATFORM,
+
+		/**
+		 * Counts on virtual threads. Requires Java 21 or newer.
+		 */
+		VIRTUAL
+	}
+
+	public static class Executor {
+
+		/**
+		 * Where the messages are counted: 'direct' on the binder thread, 'platform' or 'virtual' on a pool of
+		 * worker lanes backed by platform or virtual threads.
+		 */
+		private ExecutorMode mode = ExecutorMode.DIRECT;
+
+		/**
+		 * Number of worker lanes. Each lane counts its messages in order, on a single thread.
+		 */
+		@Min(1)
+		private int poolSize = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * Capacity of the queue of every worker lane. The caller blocks when the queue is full.
+		 */
+		@Min(1)
+		private int queueCapacity = 1000;
+
+		/**
+		 * A SpEL expression (against the incoming Message) computing the key that routes the messages to the
+		 * worker lanes, e.g. headers['kafka_receivedPartitionId']. Messages with the same key are counted in order.
+		 * Defaults to the counter name expression. With a constant counter name and no key expression the messages
+		 * are spread round-robin, without ordering.
+		 */
+		private Expression keyExpression;
+
+		public ExecutorMode getMode() {
+			return mode;
+		}
+
+		public void setMode(ExecutorMode mode) {
+			this.mode = mode;
+		}
+
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		public void setPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public Expression getKeyExpression() {
+			return keyExpression;
+		}
+
+		public void setKeyExpression(Expression keyExpression) {
+			this.keyExpression = keyExpression;
+		}
+
+		@Override
+		public String toString() {
+			return "Executor{" +
+					"mode=" + mode +
+					", poolSize=" + poolSize +
+					", queueCapacity=" + queueCapacity +
+					", keyExpression=" + keyExpression +
+					'}';
+		}
+	}
+
+	public static class Headers {
+
+		/**
+		 * Returns the counted messages augmented with the counter name, the evaluated tag values and the running
+		 * totals of the incremented series as headers. The payload is passed on by reference. Requires the
+		 * 'direct' executor mode.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Prefix of the counter header names: [prefix]name, [prefix]tags (the tag values, by tag key),
+		 * [prefix]totals (the running totals of the tag series, in the tag values order) and [prefix]count (the
+		 * running total of the message counter).
+		 */
+		private String prefix = "counter_";
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public void setPrefix(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public String toString() {
+			return "Headers{" +
+					"enabled=" + enabled +
+					", prefix='" + prefix + '\'' +
+					'}';
+		}
+	}
+
+	public static class Profiling {
+
+		/**
+		 * Times the counting stages (dedup, name, json, amount, distinct, tags and increment) of the sampled
+		 * messages, published as 'counter.internal.stage' timers tagged with stage=[stage], and their tag and
+		 * distinct expression evaluations, published as 'counter.internal.expression' timers tagged with
+		 * expression=[expression label].
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Times one message out of every sampling-interval messages of each counting thread.
+		 */
+		@Min(1)
+		private int samplingInterval = 100;
+
+		/**
+		 * Percentiles published for every timer.
+		 */
+		private List<Double> percentiles = Arrays.asList(0.5, 0.99);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getSamplingInterval() {
+			return samplingInterval;
+		}
+
+		public void setSamplingInterval(int samplingInterval) {
+			this.samplingInterval = samplingInterval;
+		}
+
+		public List<Double> getPercentiles() {
+			return percentiles;
+		}
+
+		public void setPercentiles(List<Double> percentiles) {
+			this.percentiles = percentiles;
+		}
+
+		@Override
+		public String toString() {
+			return "Profiling{" +
+					"enabled=" + enabled +
+					", samplingInterval=" + samplingInterval +
+					", percentiles=" + percentiles +
+					'}';
+		}
+	}
+
+	public enum OverflowPolicy {
+
+		/**
+		 * Blocks the caller until the registry queue has room.
+		 */
+		BLOCK,
+
+		/**
+		 * Drops the increment and counts it as dropped.
+		 */
+		DROP,
+
+		/**
+		 * Applies the increment to the registry on the calling thread.
+		 */
+		CALLER_RUNS
+	}
+
+	public static class FanOut {
+
+		/**
+		 * Applies the counter increments to every meter registry asynchronously, from a bounded queue and a
+		 * dedicated thread per registry, so that a slow registry does not slow down the counting. Mutually
+		 * exclusive with the off-heap store.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Capacity of the increments queue of every registry.
+		 */
+		@Min(1)
+		private int queueCapacity = 10000;
+
+		/**
+		 * Maximum number of queued increments coalesced, per series, before being applied to the registry.
+		 */
+		@Min(1)
+		private int batchSize = 1000;
+
+		/**
+		 * What to do with an increment when the queue of a registry is full: 'block', 'drop' or 'caller-runs'.
+		 */
+		private OverflowPolicy overflow = OverflowPolicy.BLOCK;
+
+		/**
+		 * Per registry overflow policies, overriding the default overflow policy. The registries are named after
+		 * their class, in lower case and without the MeterRegistry suffix, e.g. prometheus. Format is:
+		 * counter.fan-out.registry-overflow.[registry]=[policy]
+		 */
+		private Map<String, OverflowPolicy> registryOverflow = new HashMap<>();
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		public OverflowPolicy getOverflow() {
+			return overflow;
+		}
+
+		public void setOverflow(OverflowPolicy overflow) {
+			this.overflow = overflow;
+		}
+
+		public Map<String, OverflowPolicy> getRegistryOverflow() {
+			return registryOverflow;
+		}
+
+		public void setRegistryOverflow(Map<String, OverflowPolicy> registryOverflow) {
+			this.registryOverflow = registryOverflow;
+		}
+
+		/**
+		 * @param registryName the name of the meter registry.
+		 * @return Returns the overflow policy of the registry.
+		 */
+		public OverflowPolicy getOverflow(String registryName) {
+			return registryOverflow.getOrDefault(registryName, overflow);
+		}
+
+		@Override
+		public String toString() {
+			return "FanOut{" +
+					"enabled=" + enabled +
+					", queueCapacity=" + queueCapacity +
+					", batchSize=" + batchSize +
+					", overflow=" + overflow +
+					", registryOverflow=" + registryOverflow +
 					'}';
 		}
 	}
@@ -114,6 +1119,82 @@ public class CounterCommonProperties {
 		return tag;
 	}
 
+	public MeterCache getCache() {
+		return cache;
+	}
+
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	public Store getStore() {
+		return store;
+	}
+
+	public void setStore(Store store) {
+		this.store = store;
+	}
+
+	public Checkpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	public Dedup getDedup() {
+		return dedup;
+	}
+
+	public void setDedup(Dedup dedup) {
+		this.dedup = dedup;
+	}
+
+	public Distinct getDistinct() {
+		return distinct;
+	}
+
+	public void setDistinct(Distinct distinct) {
+		this.distinct = distinct;
+	}
+
+	public Distribution getDistribution() {
+		return distribution;
+	}
+
+	public void setDistribution(Distribution distribution) {
+		this.distribution = distribution;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public Headers getHeaders() {
+		return headers;
+	}
+
+	public void setHeaders(Headers headers) {
+		this.headers = headers;
+	}
+
+	public Profiling getProfiling() {
+		return profiling;
+	}
+
+	public void setProfiling(Profiling profiling) {
+		this.profiling = profiling;
+	}
+
+	public FanOut getFanOut() {
+		return fanOut;
+	}
+
+	public void setFanOut(FanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
 	public String getName() {
 		if (name == null && nameExpression == null) {
 			return defaultName;
@@ -149,6 +1230,26 @@ public class CounterCommonProperties {
 		return (nameExpression != null ? nameExpression : new LiteralExpression(getName()));
 	}
 
+	public Expression getComputedExecutorKeyExpression() {
+		return (executor.getKeyExpression() != null ? executor.getKeyExpression() : nameExpression);
+	}
+
+	public SpelCompilerMode getSpelCompilerMode() {
+		return spelCompilerMode;
+	}
+
+	public void setSpelCompilerMode(SpelCompilerMode spelCompilerMode) {
+		this.spelCompilerMode = spelCompilerMode;
+	}
+
+	public boolean isNativeJsonExtraction() {
+		return nativeJsonExtraction;
+	}
+
+	public void setNativeJsonExtraction(boolean nativeJsonExtraction) {
+		this.nativeJsonExtraction = nativeJsonExtraction;
+	}
+
 	public boolean isMessageCounterEnabled() {
 		return messageCounterEnabled;
 	}
@@ -162,12 +1263,40 @@ public class CounterCommonProperties {
 		return getName() != null ^ getNameExpression() != null;
 	}
 
+	@AssertTrue(message = "the counter name must not start with the reserved 'counter.internal.' prefix")
+	public boolean isNameNotReserved() {
+		return getName() == null || !getName().startsWith(DefaultCounterService.INTERNAL_METER_PREFIX);
+	}
+
+	@AssertTrue(message = "the off-heap store and the fan-out are mutually exclusive")
+	public boolean isStoreAndFanOutExclusive() {
+		return !(store.isEnabled() && fanOut.isEnabled());
+	}
+
+	@AssertTrue(message = "the counter headers require the 'direct' executor mode")
+	public boolean isHeadersSupported() {
+		return !headers.isEnabled() || executor.getMode() == ExecutorMode.DIRECT;
+	}
+
 	@Override
 	public String toString() {
 		return "CounterCommonProperties{" +
 				"defaultName='" + defaultName + '\'' +
 				", name=" + name +
+				", spelCompilerMode=" + spelCompilerMode +
+				", nativeJsonExtraction=" + nativeJsonExtraction +
 				", tag=" + tag +
+				", cache=" + cache +
+				", aggregation=" + aggregation +
+				", store=" + store +
+				", checkpoint=" + checkpoint +
+				", dedup=" + dedup +
+				", executor=" + executor +
+				", fanOut=" + fanOut +
+				", headers=" + headers +
+				", distinct=" + distinct +
+				", distribution=" + distribution +
+				", profiling=" + profiling +
 				'}';
 	}
 }
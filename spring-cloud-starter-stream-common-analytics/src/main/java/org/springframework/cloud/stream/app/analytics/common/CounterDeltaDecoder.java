@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+
+/**
+ * Decodes the counter delta messages of the {@link CounterDeltaEncoder}. The decoder keeps the interned strings
+ * and series of every stream it reads. A stream is only decoded from a message with the reset flag on; a message
+ * out of sequence is rejected and the stream is skipped until its next reset.
+ *
+ * Not thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterDeltaDecoder {
+
+	private final Map<Long, Stream> streams = new HashMap<>();
+
+	/**
+	 * @param message the encoded message.
+	 * @return Returns the deltas of the message.
+	 * @throws IllegalArgumentException if the message is not a counter delta message.
+	 * @throws IllegalStateException if a message of the stream was missed since its last reset.
+	 */
+	public List<Delta> decode(byte[] message) {
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		try {
+			if (buffer.getInt() != CounterDeltaEncoder.MAGIC || buffer.get() != CounterDeltaEncoder.VERSION) {
+				throw new IllegalArgumentException("Not a counter delta message");
+			}
+			boolean reset = (buffer.get() & CounterDeltaEncoder.RESET_FLAG) != 0;
+			long streamId = buffer.getLong();
+			long sequence = readVarLong(buffer);
+			Stream stream = reset ? new Stream() : this.streams.remove(streamId);
+			if (stream == null || (!reset && sequence != stream.sequence + 1)) {
+				throw new IllegalStateException("Missed messages of the counter delta stream " + streamId
+						+ " before " + sequence + ", waiting for its next reset");
+			}
+			long timestamp = readVarLong(buffer);
+			for (long i = readVarLong(buffer); i > 0; i--) {
+				byte[] bytes = new byte[(int) readVarLong(buffer)];
+				buffer.get(bytes);
+				stream.strings.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			for (long i = readVarLong(buffer); i > 0; i--) {
+				String name = stream.strings.get((int) readVarLong(buffer));
+				int tagCount = (int) readVarLong(buffer);
+				List<Tag> tags = new ArrayList<>(tagCount);
+				for (int t = 0; t < tagCount; t++) {
+					tags.add(Tag.of(stream.strings.get((int) readVarLong(buffer)),
+							stream.strings.get((int) readVarLong(buffer))));
+				}
+				stream.series.add(new MeterKey(name, Tags.of(tags)));
+			}
+			long deltaCount = readVarLong(buffer);
+			List<Delta> deltas = new ArrayList<>((int) deltaCount);
+			for (long i = 0; i < deltaCount; i++) {
+				long entry = readVarLong(buffer);
+				MeterKey series = stream.series.get((int) (entry >>> 1));
+				double amount;
+				if ((entry & 1) == 0) {
+					long value = readVarLong(buffer);
+					amount = (value >>> 1) ^ -(value & 1);
+				}
+				else {
+					amount = Double.longBitsToDouble(buffer.getLong());
+				}
+				deltas.add(new Delta(series.getName(), series.getTags(), amount, timestamp));
+			}
+			stream.sequence = sequence;
+			this.streams.put(streamId, stream);
+			return deltas;
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupted counter delta message", e);
+		}
+	}
+
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Interned strings and series of a stream.
+	 */
+	private static final class Stream {
+
+		private final List<String> strings = new ArrayList<>();
+
+		private final List<MeterKey> series = new ArrayList<>();
+
+		private long sequence;
+	}
+
+	/**
+	 * Change of a counter series since the previous message of its stream.
+	 */
+	public static final class Delta {
+
+		private final String name;
+
+		private final Tags tags;
+
+		private final double amount;
+
+		private final long timestamp;
+
+		Delta(String name, Tags tags, double amount, long timestamp) {
+			this.name = name;
+			this.tags = tags;
+			this.amount = amount;
+			this.timestamp = timestamp;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Tags getTags() {
+			return tags;
+		}
+
+		public double getAmount() {
+			return amount;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		@Override
+		public String toString() {
+			return "Delta{" +
+					"name='" + name + '\'' +
+					", tags=" + tags +
+					", amount=" + amount +
+					", timestamp=" + timestamp +
+					'}';
+		}
+	}
+}
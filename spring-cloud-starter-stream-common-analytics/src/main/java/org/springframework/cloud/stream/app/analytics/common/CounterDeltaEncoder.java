@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Tag;
+
+/**
+ * Encodes counter deltas into compact binary messages, decoded by the {@link CounterDeltaDecoder}.
+ *
+ * The encoder interns the strings (names, tag keys and values) and the series it sends: every message only defines
+ * the strings and series used for the first time in the stream, the deltas then refer to the series by id. A
+ * message starts with the int magic, the version byte, a flags byte, the long stream id, then, as unsigned varints,
+ * the message sequence in the stream and the timestamp, followed by three sections, each prefixed with its number
+ * of entries:
+ * <ul>
+ * <li>the new strings, as UTF-8 byte length and bytes, with implicit ids following the previous strings,</li>
+ * <li>the new series, as name string id, number of tags and (key, value) string ids, with implicit ids,</li>
+ * <li>the deltas, as series id shifted left by one, with the low bit set when the delta is a double, then either
+ * the zig-zag varint of an integral delta or the 8 bytes of a double delta.</li>
+ * </ul>
+ * Messages with the reset flag clear the interned strings and series, so a consumer joining the stream late, or
+ * having missed a message, resumes at the next reset.
+ *
+ * Not thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterDeltaEncoder {
+
+	public static final int MAGIC = 0x43444c54;
+
+	public static final byte VERSION = 1;
+
+	public static final byte RESET_FLAG = 1;
+
+	/**
+	 * Largest integral delta encoded as a varint, beyond which doubles are no longer exact integers.
+	 */
+	private static final double MAX_INTEGRAL = 1L << 53;
+
+	private final long streamId;
+
+	private final int maxDeltasPerMessage;
+
+	private final Map<String, Integer> strings = new HashMap<>();
+
+	private final Map<MeterKey, Integer> series = new HashMap<>();
+
+	private long sequence;
+
+	private boolean reset = true;
+
+	/**
+	 * @param streamId identifier of the stream of messages, unique among the encoders of a destination.
+	 * @param maxDeltasPerMessage maximum number of deltas per message.
+	 */
+	public CounterDeltaEncoder(long streamId, int maxDeltasPerMessage) {
+		this.streamId = streamId;
+		this.maxDeltasPerMessage = maxDeltasPerMessage;
+	}
+
+	/**
+	 * Clears the interned strings and series. The next message is sent with the reset flag.
+	 */
+	public void reset() {
+		this.strings.clear();
+		this.series.clear();
+		this.reset = true;
+	}
+
+	/**
+	 * @return Returns the number of interned strings and series.
+	 */
+	public int getDictionarySize() {
+		return this.strings.size() + this.series.size();
+	}
+
+	/**
+	 * @param deltas the series and their delta since the previous messages.
+	 * @param timestamp the timestamp of the deltas, in epoch milliseconds.
+	 * @return Returns the encoded messages, at least one, in their sending order.
+	 */
+	public List<byte[]> encode(Map<MeterKey, Double> deltas, long timestamp) {
+		List<byte[]> messages = new ArrayList<>();
+		Buffer newStrings = new Buffer();
+		Buffer newSeries = new Buffer();
+		Buffer deltaEntries = new Buffer();
+		int[] counts = new int[3];
+		for (Map.Entry<MeterKey, Double> e : deltas.entrySet()) {
+			int id = this.seriesId(e.getKey(), newStrings, newSeries, counts);
+			double delta = e.getValue();
+			if (delta == Math.rint(delta) && Math.abs(delta) < MAX_INTEGRAL) {
+				deltaEntries.writeVarLong((long) id << 1);
+				long value = (long) delta;
+				deltaEntries.writeVarLong((value << 1) ^ (value >> 63));
+			}
+			else {
+				deltaEntries.writeVarLong(((long) id << 1) | 1);
+				deltaEntries.writeLong(Double.doubleToRawLongBits(delta));
+			}
+			if (++counts[2] == this.maxDeltasPerMessage) {
+				messages.add(this.message(timestamp, newStrings, newSeries, deltaEntries, counts));
+			}
+		}
+		if (counts[2] > 0 || messages.isEmpty()) {
+			messages.add(this.message(timestamp, newStrings, newSeries, deltaEntries, counts));
+		}
+		return messages;
+	}
+
+	private int seriesId(MeterKey key, Buffer newStrings, Buffer newSeries, int[] counts) {
+		Integer id = this.series.get(key);
+		if (id != null) {
+			return id;
+		}
+		List<Tag> tags = new ArrayList<>();
+		key.getTags().forEach(tags::add);
+		int[] ids = new int[1 + 2 * tags.size()];
+		ids[0] = this.stringId(key.getName(), newStrings, counts);
+		for (int i = 0; i < tags.size(); i++) {
+			ids[1 + 2 * i] = this.stringId(tags.get(i).getKey(), newStrings, counts);
+			ids[2 + 2 * i] = this.stringId(tags.get(i).getValue(), newStrings, counts);
+		}
+		newSeries.writeVarLong(ids[0]);
+		newSeries.writeVarLong(tags.size());
+		for (int i = 1; i < ids.length; i++) {
+			newSeries.writeVarLong(ids[i]);
+		}
+		counts[1]++;
+		int newId = this.series.size();
+		this.series.put(key.toImmutable(), newId);
+		return newId;
+	}
+
+	private int stringId(String value, Buffer newStrings, int[] counts) {
+		Integer id = this.strings.get(value);
+		if (id != null) {
+			return id;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		newStrings.writeVarLong(bytes.length);
+		newStrings.write(bytes);
+		counts[0]++;
+		int newId = this.strings.size();
+		this.strings.put(value, newId);
+		return newId;
+	}
+
+	private byte[] message(long timestamp, Buffer newStrings, Buffer newSeries, Buffer deltaEntries, int[] counts) {
+		Buffer message = new Buffer();
+		message.writeInt(MAGIC);
+		message.writeByte(VERSION);
+		message.writeByte(this.reset ? RESET_FLAG : 0);
+		message.writeLong(this.streamId);
+		message.writeVarLong(this.sequence++);
+		message.writeVarLong(timestamp);
+		message.writeVarLong(counts[0]);
+		message.write(newStrings);
+		message.writeVarLong(counts[1]);
+		message.write(newSeries);
+		message.writeVarLong(counts[2]);
+		message.write(deltaEntries);
+		this.reset = false;
+		newStrings.size = 0;
+		newSeries.size = 0;
+		deltaEntries.size = 0;
+		Arrays.fill(counts, 0);
+		return message.toByteArray();
+	}
+
+	/**
+	 * Growable byte array, big-endian.
+	 */
+	private static final class Buffer {
+
+		private byte[] bytes = new byte[256];
+
+		private int size;
+
+		void writeVarLong(long value) {
+			this.ensureCapacity(10);
+			while ((value & ~0x7fL) != 0) {
+				this.bytes[this.size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		void writeByte(int value) {
+			this.ensureCapacity(1);
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		void writeInt(int value) {
+			this.ensureCapacity(4);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				this.bytes[this.size++] = (byte) (value >>> shift);
+			}
+		}
+
+		void writeLong(long value) {
+			this.ensureCapacity(8);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				this.bytes[this.size++] = (byte) (value >>> shift);
+			}
+		}
+
+		void write(byte[] value) {
+			this.ensureCapacity(value.length);
+			System.arraycopy(value, 0, this.bytes, this.size, value.length);
+			this.size += value.length;
+		}
+
+		void write(Buffer buffer) {
+			this.ensureCapacity(buffer.size);
+			System.arraycopy(buffer.bytes, 0, this.bytes, this.size, buffer.size);
+			this.size += buffer.size;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(this.bytes, this.size);
+		}
+
+		private void ensureCapacity(int length) {
+			if (this.size + length > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + length));
+			}
+		}
+	}
+}
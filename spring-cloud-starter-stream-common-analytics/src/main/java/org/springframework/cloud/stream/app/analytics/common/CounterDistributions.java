@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.util.DoubleFormat;
+
+/**
+ * Distribution of the counter amounts: every amount is recorded, as it is, in a {@link DDSketch} per counter series
+ * (name and tags). The configured percentiles of every series are published as '[counter-name].percentile' gauges,
+ * tagged with the series tags and with the phi=[percentile] tag, the Micrometer percentile convention.
+ *
+ * The sketches can be exported with {@link #snapshot()} and the sketches of other instances merged in with
+ * {@link #merge(MeterKey, DDSketch)}, so that the replicas of a scaled out application can be combined without
+ * shipping the raw amounts.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterDistributions {
+
+	public static final String PERCENTILE_SUFFIX = ".percentile";
+
+	public static final String PERCENTILE_TAG = "phi";
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final double[] percentiles;
+
+	private final double relativeAccuracy;
+
+	private final int maxBuckets;
+
+	private final Map<MeterKey, DDSketch> sketches = new ConcurrentHashMap<>();
+
+	public CounterDistributions(MeterRegistry[] meterRegistries, double[] percentiles, double relativeAccuracy,
+			int maxBuckets) {
+		this.meterRegistries = meterRegistries;
+		this.percentiles = percentiles;
+		this.relativeAccuracy = relativeAccuracy;
+		this.maxBuckets = maxBuckets;
+	}
+
+	/**
+	 * @param series the counter series, possibly a lookup probe.
+	 * @param amount the amount to record.
+	 */
+	public void record(MeterKey series, double amount) {
+		this.getSketch(series).add(amount);
+	}
+
+	/**
+	 * Merges the sketch of another instance into the local sketch of the series.
+	 * @param series the counter series.
+	 * @param sketch sketch with the configured relative accuracy.
+	 */
+	public void merge(MeterKey series, DDSketch sketch) {
+		this.getSketch(series).merge(sketch);
+	}
+
+	/**
+	 * @return Returns a copy of the sketch of every series.
+	 */
+	public Map<MeterKey, DDSketch> snapshot() {
+		Map<MeterKey, DDSketch> snapshot = new HashMap<>();
+		this.sketches.forEach((series, sketch) -> snapshot.put(series, sketch.copy()));
+		return snapshot;
+	}
+
+	private DDSketch getSketch(MeterKey series) {
+		DDSketch sketch = this.sketches.get(series);
+		if (sketch == null) {
+			sketch = this.sketches.computeIfAbsent(series.toImmutable(), this::register);
+		}
+		return sketch;
+	}
+
+	private DDSketch register(MeterKey series) {
+		DDSketch sketch = new DDSketch(this.relativeAccuracy, this.maxBuckets);
+		for (double percentile : this.percentiles) {
+			for (MeterRegistry meterRegistry : this.meterRegistries) {
+				Gauge.builder(series.getName() + PERCENTILE_SUFFIX, sketch, s -> s.getValueAtQuantile(percentile))
+						.tags(series.getTags())
+						.tag(PERCENTILE_TAG, DoubleFormat.decimalOrNan(percentile))
+						.strongReference(true)
+						.register(meterRegistry);
+			}
+		}
+		return sketch;
+	}
+}
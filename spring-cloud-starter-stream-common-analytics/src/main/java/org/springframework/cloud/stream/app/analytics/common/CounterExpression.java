@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+/**
+ * Counter expression (name, amount or tag) evaluated against the incoming messages.
+ *
+ * When a {@link SpelCompilerMode} other than {@link SpelCompilerMode#OFF} is configured the SpEL expressions are
+ * re-parsed for compilation. SpEL can compile an expression only after it has been interpreted at least once, so
+ * the compilation outcome is logged after the first evaluation. Expressions that can not be compiled, or whose
+ * compiled form fails at runtime, fall back to the interpreted evaluation for good.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterExpression {
+
+	private static final Log logger = LogFactory.getLog(CounterExpression.class);
+
+	private final String label;
+
+	private final Expression interpretedExpression;
+
+	/**
+	 * The expression re-parsed for compilation. Only this copy is ever compiled, the interpreted expression may be
+	 * shared, e.g. with the properties.
+	 */
+	private final Expression compilableExpression;
+
+	private volatile Expression expression;
+
+	private volatile boolean compilationReported;
+
+	public CounterExpression(String label, Expression expression) {
+		this(label, expression, SpelCompilerMode.OFF);
+	}
+
+	public CounterExpression(String label, Expression expression, SpelCompilerMode compilerMode) {
+		this.label = label;
+		this.interpretedExpression = expression;
+		this.compilableExpression = compilable(expression, compilerMode);
+		this.expression = this.compilableExpression;
+		this.compilationReported = !(this.expression instanceof SpelExpression) || compilerMode == SpelCompilerMode.OFF;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public Expression getExpression() {
+		return expression;
+	}
+
+	public Object getValue(EvaluationContext context, Object rootObject) {
+		return this.getValue(context, rootObject, null);
+	}
+
+	public <T> T getValue(EvaluationContext context, Object rootObject, Class<T> desiredResultType) {
+		T value;
+		try {
+			value = this.expression.getValue(context, rootObject, desiredResultType);
+		}
+		catch (SpelEvaluationException e) {
+			if (e.getMessageCode() != SpelMessage.EXCEPTION_RUNNING_COMPILED_EXPRESSION) {
+				throw e;
+			}
+			// Falls back for good, otherwise SpEL would re-compile the expression again and again.
+			logger.warn("Compiled expression " + this + " failed, reverting to interpreted mode: " + e.getCause());
+			this.expression = this.interpretedExpression;
+			value = this.expression.getValue(context, rootObject, desiredResultType);
+		}
+		if (!this.compilationReported) {
+			this.reportCompilation();
+		}
+		return value;
+	}
+
+	private void reportCompilation() {
+		this.compilationReported = true;
+		if (this.expression != this.compilableExpression) {
+			// Already reverted to the interpreted expression, whose compilation is left to its own compiler mode.
+			return;
+		}
+		if (((SpelExpression) this.compilableExpression).compileExpression()) {
+			logger.info("Compiled expression " + this);
+		}
+		else {
+			logger.info("Expression " + this + " can not be compiled, using interpreted mode");
+		}
+	}
+
+	private static Expression compilable(Expression expression, SpelCompilerMode compilerMode) {
+		if (compilerMode == SpelCompilerMode.OFF || !(expression instanceof SpelExpression)) {
+			return expression;
+		}
+		SpelExpressionParser parser = new SpelExpressionParser(
+				new SpelParserConfiguration(compilerMode, CounterExpression.class.getClassLoader()));
+		return parser.parseExpression(expression.getExpressionString());
+	}
+
+	@Override
+	public String toString() {
+		return label + "='" + this.expression.getExpressionString() + "'";
+	}
+}
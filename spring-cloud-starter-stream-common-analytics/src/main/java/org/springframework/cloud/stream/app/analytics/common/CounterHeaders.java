@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Augments the counted messages with the counter name, the evaluated tags and the running totals of the
+ * incremented series. The augmented message shares the payload and the headers of the original message, only the
+ * counter headers are added.
+ *
+ * The running totals are kept per series, from the increments computed for the messages, ahead of any local
+ * aggregation or asynchronous registry update, so they are exact even when the meters lag behind.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterHeaders {
+
+	public static final String NAME = "name";
+
+	public static final String TAGS = "tags";
+
+	public static final String COUNT = "count";
+
+	public static final String TOTALS = "totals";
+
+	private final String nameHeader;
+
+	private final String tagsHeader;
+
+	private final String countHeader;
+
+	private final String totalsHeader;
+
+	private final Map<MeterKey, DoubleAdder> runningTotals = new ConcurrentHashMap<>();
+
+	/**
+	 * @param prefix the prefix of the header names.
+	 * @param meterRegistries the registries to publish the number of running totals to.
+	 */
+	public CounterHeaders(String prefix, MeterRegistry[] meterRegistries) {
+		this.nameHeader = prefix + NAME;
+		this.tagsHeader = prefix + TAGS;
+		this.countHeader = prefix + COUNT;
+		this.totalsHeader = prefix + TOTALS;
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "headers.series", this.runningTotals,
+					Map::size)
+					.description("Number of series with a running total")
+					.register(meterRegistry);
+		}
+	}
+
+	/**
+	 * Adds the amount to the running total of the series.
+	 * @param series counter series, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 * @return Returns the running total of the series, amount included.
+	 */
+	public double add(MeterKey series, double amount) {
+		DoubleAdder total = this.runningTotals.get(series);
+		if (total == null) {
+			total = this.runningTotals.computeIfAbsent(series.toImmutable(), k -> new DoubleAdder());
+		}
+		total.add(amount);
+		return total.sum();
+	}
+
+	/**
+	 * @param message the counted message.
+	 * @param values the counter values collected while counting the message.
+	 * @return Returns a message with the payload and headers of the given message plus the counter headers.
+	 */
+	public Message<?> augment(Message<?> message, Values values) {
+		MessageBuilder<?> builder = MessageBuilder.fromMessage(message)
+				.setHeader(this.nameHeader, values.name);
+		if (!values.tags.isEmpty()) {
+			builder.setHeader(this.tagsHeader, new LinkedHashMap<>(values.tags));
+			builder.setHeader(this.totalsHeader, new ArrayList<>(values.totals));
+		}
+		if (values.count != null) {
+			builder.setHeader(this.countHeader, values.count);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Counter values collected while counting a message. Reused across the messages of a thread.
+	 */
+	static final class Values {
+
+		/**
+		 * Counter name, null until the message is counted.
+		 */
+		String name;
+
+		/**
+		 * Running total of the message counter, null when the message counter is disabled.
+		 */
+		Double count;
+
+		/**
+		 * Values of every tag expression, by tag key.
+		 */
+		final Map<String, List<String>> tags = new LinkedHashMap<>();
+
+		/**
+		 * Running totals of the tag series, by value index.
+		 */
+		final List<Double> totals = new ArrayList<>();
+
+		void clear() {
+			this.name = null;
+			this.count = null;
+			this.tags.clear();
+			this.totals.clear();
+		}
+	}
+}
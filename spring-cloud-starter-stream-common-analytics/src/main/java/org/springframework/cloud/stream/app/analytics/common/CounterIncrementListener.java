@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import org.springframework.messaging.Message;
+
+/**
+ * Callback notified of every counter increment computed by the {@link DefaultCounterService}, message counter
+ * included, before any batch merging or local aggregation. Listener beans are registered with the counter service
+ * by the {@link CounterCommonConfiguration}.
+ *
+ * @author Christian Tzolov
+ */
+@FunctionalInterface
+public interface CounterIncrementListener {
+
+	/**
+	 * Called on the counting thread.
+	 * @param message the counted message.
+	 * @param series the incremented series. Lookup probe keys are only valid for the duration of the call, use
+	 * {@link MeterKey#toImmutable()} to keep the series.
+	 * @param amount the increment amount.
+	 */
+	void onIncrement(Message<?> message, MeterKey series, double amount);
+}
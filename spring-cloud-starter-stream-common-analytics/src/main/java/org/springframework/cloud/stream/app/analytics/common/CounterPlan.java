@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.expression.Expression;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.ast.Literal;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Immutable counting plan compiled from the {@link CounterCommonProperties}: the name and amount expressions, with
+ * the constant fast paths of literal expressions, the fixed tags, the tag slots ordered by tag key, the native JSON
+ * extraction paths, the distinct and dedup expressions and the top-K tag slots. The {@link DefaultCounterService}
+ * reads its plan once per message and replaces it as a whole when the properties are refreshed.
+ *
+ * @author Christian Tzolov
+ */
+final class CounterPlan {
+
+	private static final Log logger = LogFactory.getLog(CounterPlan.class);
+
+	/**
+	 * Constant counter name, null when the name is computed per message.
+	 */
+	final String name;
+
+	/**
+	 * Message counter name of the constant counter name, null when the name is computed per message.
+	 */
+	final String messageCounterName;
+
+	final CounterExpression nameExpression;
+
+	/**
+	 * Whether the amount is the constant {@link #amount}, rather than computed per message.
+	 */
+	final boolean constantAmount;
+
+	final double amount;
+
+	final CounterExpression amountExpression;
+
+	final boolean messageCounterEnabled;
+
+	final Tags fixedTags;
+
+	final int fixedTagsHash;
+
+	/**
+	 * Sorted tag expression keys. Every tag expression owns the slot of its key.
+	 */
+	final String[] tagKeys;
+
+	final CounterExpression[] tagSlotExpressions;
+
+	final boolean[] topKSlots;
+
+	/**
+	 * Top-K mode of the tag values, null unless top-K tags are configured.
+	 */
+	final TopKTagValues topKTagValues;
+
+	/**
+	 * Streaming extractor of the JSON path expressions, null unless the native JSON extraction is enabled.
+	 */
+	final JsonPathExtractor jsonPathExtractor;
+
+	/**
+	 * Extractor path index of every tag slot, -1 for the slots evaluated with SpEL.
+	 */
+	final int[] tagSlotJsonPaths;
+
+	final int amountJsonPath;
+
+	/**
+	 * Sorted distinct expression names.
+	 */
+	final String[] distinctNames;
+
+	final CounterExpression[] distinctExpressions;
+
+	/**
+	 * Extractor path index of every distinct expression, -1 for the expressions evaluated with SpEL.
+	 */
+	final int[] distinctJsonPaths;
+
+	/**
+	 * Dedup key expression, null unless set.
+	 */
+	final CounterExpression dedupKeyExpression;
+
+	/**
+	 * @param properties the properties to compile.
+	 * @param previous the plan replaced by this one, if any. Its top-K state is kept when the top-K tags and
+	 * settings are unchanged.
+	 * @param topKEvictions notified of the tag values that leave the top-K.
+	 */
+	CounterPlan(CounterCommonProperties properties, CounterPlan previous,
+			TopKTagValues.EvictionListener topKEvictions) {
+		SpelCompilerMode compilerMode = properties.getSpelCompilerMode();
+
+		Expression nameExpression = properties.getComputedNameExpression();
+		Object constantName = constantValue(nameExpression);
+		this.name = (constantName != null) ? constantName.toString() : null;
+		// The computed names are checked when evaluated, the constant names are only evaluated here.
+		if (this.name != null && this.name.startsWith(DefaultCounterService.INTERNAL_METER_PREFIX)) {
+			throw new IllegalArgumentException("The counter name '" + this.name
+					+ "' uses the reserved prefix '" + DefaultCounterService.INTERNAL_METER_PREFIX + "'");
+		}
+		this.messageCounterName = (this.name != null) ? DefaultCounterService.MESSAGE_COUNTER_PREFIX + this.name : null;
+		this.nameExpression = new CounterExpression("name-expression", nameExpression, compilerMode);
+
+		Expression amountExpression = properties.getComputedAmountExpression();
+		Double constantAmount = toDouble(constantValue(amountExpression));
+		this.constantAmount = constantAmount != null;
+		this.amount = this.constantAmount ? constantAmount : Double.NaN;
+		this.amountExpression = new CounterExpression("amount-expression", amountExpression, compilerMode);
+
+		this.messageCounterEnabled = properties.isMessageCounterEnabled();
+		// All fixed tags together are passed with every counter increment.
+		this.fixedTags = toTags(properties.getTag().getFixed());
+		this.fixedTagsHash = this.fixedTags.hashCode();
+
+		Map<String, Expression> tagExpressions = (properties.getTag().getExpression() != null) ?
+				new TreeMap<>(properties.getTag().getExpression()) : Collections.emptyMap();
+		this.tagKeys = tagExpressions.keySet().toArray(new String[0]);
+		this.tagSlotExpressions = new CounterExpression[this.tagKeys.length];
+		for (int slot = 0; slot < this.tagKeys.length; slot++) {
+			this.tagSlotExpressions[slot] = new CounterExpression("tag.expression." + this.tagKeys[slot],
+					tagExpressions.get(this.tagKeys[slot]), compilerMode);
+		}
+
+		CounterCommonProperties.TopK topK = properties.getTag().getTopK();
+		this.topKSlots = new boolean[this.tagKeys.length];
+		if (topK.isEnabled()) {
+			for (int slot = 0; slot < this.tagKeys.length; slot++) {
+				this.topKSlots[slot] = topK.getTags().contains(this.tagKeys[slot]);
+			}
+			if (!tagExpressions.keySet().containsAll(topK.getTags())) {
+				logger.warn("Top-K tags without tag expression are ignored: " + topK.getTags());
+			}
+		}
+		if (!topK.isEnabled()) {
+			this.topKTagValues = null;
+		}
+		else if (previous != null && previous.topKTagValues != null
+				&& previous.topKTagValues.hasSettings(this.tagKeys, this.topKSlots, topK.getSize(), topK.getWidth(),
+						topK.getDepth(), topK.getOtherValue(), topK.getMaxCounters())) {
+			this.topKTagValues = previous.topKTagValues;
+		}
+		else {
+			this.topKTagValues = new TopKTagValues(this.tagKeys, this.topKSlots, topK.getSize(), topK.getWidth(),
+					topK.getDepth(), topK.getOtherValue(), topK.getMaxCounters(), topKEvictions);
+		}
+
+		Map<String, Expression> distinctExpressions = (properties.getDistinct().getExpression() != null) ?
+				new TreeMap<>(properties.getDistinct().getExpression()) : Collections.emptyMap();
+		this.distinctNames = distinctExpressions.keySet().toArray(new String[0]);
+		this.distinctExpressions = new CounterExpression[this.distinctNames.length];
+		for (int i = 0; i < this.distinctNames.length; i++) {
+			this.distinctExpressions[i] = new CounterExpression("distinct.expression." + this.distinctNames[i],
+					distinctExpressions.get(this.distinctNames[i]), compilerMode);
+		}
+
+		Expression dedupKeyExpression = properties.getDedup().getKeyExpression();
+		this.dedupKeyExpression = (dedupKeyExpression != null) ?
+				new CounterExpression("dedup.key-expression", dedupKeyExpression, compilerMode) : null;
+
+		this.tagSlotJsonPaths = new int[this.tagKeys.length];
+		Arrays.fill(this.tagSlotJsonPaths, -1);
+		this.distinctJsonPaths = new int[this.distinctNames.length];
+		Arrays.fill(this.distinctJsonPaths, -1);
+		Map<String, Integer> jsonPaths = new LinkedHashMap<>();
+		int amountJsonPath = -1;
+		if (properties.isNativeJsonExtraction()) {
+			for (int slot = 0; slot < this.tagKeys.length; slot++) {
+				String jsonPath = JsonPathExtractor.toJsonPath(tagExpressions.get(this.tagKeys[slot]));
+				if (jsonPath != null) {
+					this.tagSlotJsonPaths[slot] = jsonPaths.computeIfAbsent(jsonPath, p -> jsonPaths.size());
+				}
+			}
+			for (int i = 0; i < this.distinctNames.length; i++) {
+				String jsonPath = JsonPathExtractor.toJsonPath(distinctExpressions.get(this.distinctNames[i]));
+				if (jsonPath != null) {
+					this.distinctJsonPaths[i] = jsonPaths.computeIfAbsent(jsonPath, p -> jsonPaths.size());
+				}
+			}
+			// Only the absolute paths return the single value expected by the amount.
+			String jsonPath = JsonPathExtractor.toJsonPath(properties.getAmountExpression());
+			if (jsonPath != null && JsonPathExtractor.isAbsolutePath(jsonPath)) {
+				amountJsonPath = jsonPaths.computeIfAbsent(jsonPath, p -> jsonPaths.size());
+			}
+		}
+		this.amountJsonPath = amountJsonPath;
+		this.jsonPathExtractor = jsonPaths.isEmpty() ? null : new JsonPathExtractor(new ArrayList<>(jsonPaths.keySet()));
+		if (this.jsonPathExtractor != null) {
+			logger.info("Native JSON extraction enabled for the paths: " + jsonPaths.keySet());
+		}
+		if (compilerMode != SpelCompilerMode.OFF) {
+			logger.info("SpEL compiler mode " + compilerMode + " enabled for " + this.nameExpression + ", "
+					+ this.amountExpression + ", " + Arrays.toString(this.tagSlotExpressions));
+		}
+	}
+
+	/**
+	 * Converts a key/value Map into Tag(key,value) list. Filters out the empty key/value pairs.
+	 * @param keyValueMap key/value map to convert into tags.
+	 * @return Returns Tags list representing every non-empty key/value pair.
+	 */
+	static Tags toTags(Map<String, String> keyValueMap) {
+		return CollectionUtils.isEmpty(keyValueMap) ? Tags.empty() :
+				Tags.of(keyValueMap.entrySet().stream()
+						.filter(e -> StringUtils.hasText(e.getKey()) && StringUtils.hasText(e.getValue()))
+						.map(e -> Tag.of(e.getKey(), e.getValue()))
+						.collect(Collectors.toList()));
+	}
+
+	/**
+	 * @return Returns the value of a literal expression, or null if the expression depends on the message.
+	 */
+	private static Object constantValue(Expression expression) {
+		if (expression instanceof LiteralExpression) {
+			return expression.getValue();
+		}
+		if (expression instanceof SpelExpression && ((SpelExpression) expression).getAST() instanceof Literal) {
+			return ((Literal) ((SpelExpression) expression).getAST()).getLiteralValue().getValue();
+		}
+		return null;
+	}
+
+	private static Double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Double.valueOf((String) value);
+			}
+			catch (NumberFormatException e) {
+				// Leave the conversion, and its error, to the expression evaluation.
+			}
+		}
+		return null;
+	}
+}
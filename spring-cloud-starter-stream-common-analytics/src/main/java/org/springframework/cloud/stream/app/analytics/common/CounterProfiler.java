@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Sampled timers of the counting stages and of the tag and distinct expression evaluations. Only one message out
+ * of every sampling interval messages of a counting thread is timed, so the other messages only pay for a
+ * per-thread counter increment. The timers publish the configured percentiles from their HdrHistogram.
+ *
+ * @author Christian Tzolov
+ */
+public class CounterProfiler {
+
+	/**
+	 * The timed counting stages, in the counting order.
+	 */
+	public enum Stage {
+
+		/**
+		 * Evaluation of the dedup key expression and filter lookup.
+		 */
+		DEDUP,
+
+		/**
+		 * Evaluation of the counter name expression.
+		 */
+		NAME,
+
+		/**
+		 * Native JSON extraction of the payload.
+		 */
+		JSON,
+
+		/**
+		 * Evaluation of the amount expression.
+		 */
+		AMOUNT,
+
+		/**
+		 * Evaluation of the distinct expressions and sketch updates.
+		 */
+		DISTINCT,
+
+		/**
+		 * Evaluation of the tag expressions, top-K and cardinality admission of their values.
+		 */
+		TAGS,
+
+		/**
+		 * Series lookup and increment of the counters, or of the pending increments of a batch. Recorded once for
+		 * the message counter and once for the tag expression counters.
+		 */
+		INCREMENT
+	}
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final int samplingInterval;
+
+	private final double[] percentiles;
+
+	/**
+	 * Timers of every stage, by stage ordinal and registry.
+	 */
+	private final Timer[][] stageTimers;
+
+	/**
+	 * Timers of every evaluated expression, by expression label.
+	 */
+	private final Map<String, Timer[]> expressionTimers = new ConcurrentHashMap<>();
+
+	public CounterProfiler(MeterRegistry[] meterRegistries, int samplingInterval, double[] percentiles) {
+		this.meterRegistries = meterRegistries;
+		this.samplingInterval = samplingInterval;
+		this.percentiles = percentiles;
+		Stage[] stages = Stage.values();
+		this.stageTimers = new Timer[stages.length][];
+		for (Stage stage : stages) {
+			this.stageTimers[stage.ordinal()] = this.timers("stage", "Time spent in a counting stage", "stage",
+					stage.name().toLowerCase());
+		}
+	}
+
+	/**
+	 * @param messages the number of messages counted by the calling thread, including the current one.
+	 * @return Returns true if the current message is timed.
+	 */
+	public boolean isSampled(long messages) {
+		return messages % this.samplingInterval == 0;
+	}
+
+	/**
+	 * @param stage the completed stage.
+	 * @param start the {@link System#nanoTime()} at the start of the stage.
+	 * @return Returns the {@link System#nanoTime()} at the end of the stage, the start of the next one.
+	 */
+	public long record(Stage stage, long start) {
+		long end = System.nanoTime();
+		record(this.stageTimers[stage.ordinal()], end - start);
+		return end;
+	}
+
+	/**
+	 * @param expression the evaluated expression.
+	 * @param start the {@link System#nanoTime()} at the start of the evaluation.
+	 */
+	public void record(CounterExpression expression, long start) {
+		long end = System.nanoTime();
+		Timer[] timers = this.expressionTimers.get(expression.getLabel());
+		if (timers == null) {
+			timers = this.expressionTimers.computeIfAbsent(expression.getLabel(),
+					label -> this.timers("expression", "Time to evaluate a counter expression", "expression", label));
+		}
+		record(timers, end - start);
+	}
+
+	private Timer[] timers(String name, String description, String tagKey, String tagValue) {
+		Timer[] timers = new Timer[this.meterRegistries.length];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = Timer.builder(DefaultCounterService.INTERNAL_METER_PREFIX + name)
+					.description(description)
+					.tag(tagKey, tagValue)
+					.publishPercentiles(this.percentiles)
+					.register(this.meterRegistries[i]);
+		}
+		return timers;
+	}
+
+	private static void record(Timer[] timers, long nanos) {
+		for (Timer timer : timers) {
+			timer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
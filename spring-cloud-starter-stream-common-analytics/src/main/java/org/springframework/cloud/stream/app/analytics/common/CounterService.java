@@ -16,6 +16,9 @@
 
 package org.springframework.cloud.stream.app.analytics.common;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.messaging.Message;
 
 /**
@@ -27,4 +30,22 @@ public interface CounterService {
 	 * @return Returns the original or the augmented message.
 	 */
 	Message<?> count(Message<?> message);
+
+	/**
+	 * @param messages Batch of messages to count attributes of.
+	 * @return Returns the original or the augmented messages, in the batch order.
+	 */
+	default List<Message<?>> countBatch(List<Message<?>> messages) {
+		List<Message<?>> counted = new ArrayList<>(messages.size());
+		for (Message<?> message : messages) {
+			counted.add(this.count(message));
+		}
+		return counted;
+	}
+
+	/**
+	 * Recompiles the counting configuration from the current properties, after they have been refreshed.
+	 */
+	default void refresh() {
+	}
 }
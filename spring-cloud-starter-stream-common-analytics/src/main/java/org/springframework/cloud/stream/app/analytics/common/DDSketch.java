@@ -0,0 +1,358 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.springframework.util.Assert;
+
+/**
+ * DDSketch quantile sketch. Values are counted in logarithmic buckets so that every quantile estimate is within the
+ * relative accuracy of the exact value. Sketches with the same relative accuracy are mergeable, which allows
+ * combining the sketches of several instances without shipping the raw values, and serializable in a compact binary
+ * form.
+ *
+ * The number of buckets, per sign, is bounded: past the limit the lowest buckets are collapsed, which only affects
+ * the accuracy of the lowest quantiles. Values smaller in magnitude than {@link #MIN_INDEXABLE_VALUE} are counted as
+ * zeros. Thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public class DDSketch {
+
+	public static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+	private static final byte SERIAL_VERSION = 1;
+
+	private final double relativeAccuracy;
+
+	private final double gamma;
+
+	private final double logGamma;
+
+	private final int maxBuckets;
+
+	private final Store positives;
+
+	private final Store negatives;
+
+	private long zeroCount;
+
+	private long count;
+
+	private double sum;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public DDSketch(double relativeAccuracy, int maxBuckets) {
+		Assert.isTrue(relativeAccuracy > 0 && relativeAccuracy < 1,
+				"The relative accuracy must be between 0 and 1: " + relativeAccuracy);
+		Assert.isTrue(maxBuckets > 0, "The max buckets must be positive: " + maxBuckets);
+		this.relativeAccuracy = relativeAccuracy;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(this.gamma);
+		this.maxBuckets = maxBuckets;
+		this.positives = new Store(maxBuckets);
+		this.negatives = new Store(maxBuckets);
+	}
+
+	public double getRelativeAccuracy() {
+		return this.relativeAccuracy;
+	}
+
+	public synchronized long getCount() {
+		return this.count;
+	}
+
+	public synchronized double getSum() {
+		return this.sum;
+	}
+
+	public synchronized void add(double value) {
+		if (value > MIN_INDEXABLE_VALUE) {
+			this.positives.add(this.index(value), 1);
+		}
+		else if (value < -MIN_INDEXABLE_VALUE) {
+			this.negatives.add(this.index(-value), 1);
+		}
+		else {
+			this.zeroCount++;
+		}
+		this.count++;
+		this.sum += value;
+		this.min = Math.min(this.min, value);
+		this.max = Math.max(this.max, value);
+	}
+
+	/**
+	 * @param quantile quantile, between 0 and 1.
+	 * @return Returns the estimated value at the quantile, or NaN if the sketch is empty.
+	 */
+	public synchronized double getValueAtQuantile(double quantile) {
+		if (this.count == 0 || quantile < 0 || quantile > 1) {
+			return Double.NaN;
+		}
+		if (quantile == 0) {
+			return this.min;
+		}
+		if (quantile == 1) {
+			return this.max;
+		}
+		long rank = (long) (quantile * (this.count - 1));
+		double value;
+		if (rank < this.negatives.total) {
+			// The negative values are ordered by decreasing magnitude.
+			value = -this.value(this.negatives.indexAtRank(this.negatives.total - 1 - rank));
+		}
+		else if (rank < this.negatives.total + this.zeroCount) {
+			value = 0;
+		}
+		else {
+			value = this.value(this.positives.indexAtRank(rank - this.negatives.total - this.zeroCount));
+		}
+		return Math.max(this.min, Math.min(this.max, value));
+	}
+
+	/**
+	 * Adds the values of another sketch to this sketch.
+	 * @param other sketch with the same relative accuracy.
+	 */
+	public void merge(DDSketch other) {
+		Assert.isTrue(other.relativeAccuracy == this.relativeAccuracy,
+				"Can not merge sketches with different relative accuracies");
+		DDSketch copy = other.copy();
+		synchronized (this) {
+			this.positives.merge(copy.positives);
+			this.negatives.merge(copy.negatives);
+			this.zeroCount += copy.zeroCount;
+			this.count += copy.count;
+			this.sum += copy.sum;
+			this.min = Math.min(this.min, copy.min);
+			this.max = Math.max(this.max, copy.max);
+		}
+	}
+
+	public DDSketch copy() {
+		DDSketch copy = new DDSketch(this.relativeAccuracy, this.maxBuckets);
+		synchronized (this) {
+			copy.positives.merge(this.positives);
+			copy.negatives.merge(this.negatives);
+			copy.zeroCount = this.zeroCount;
+			copy.count = this.count;
+			copy.sum = this.sum;
+			copy.min = this.min;
+			copy.max = this.max;
+		}
+		return copy;
+	}
+
+	/**
+	 * @return Returns the binary form of the sketch. The bucket counts are variable length encoded.
+	 */
+	public synchronized byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(SERIAL_VERSION);
+			out.writeDouble(this.relativeAccuracy);
+			out.writeInt(this.maxBuckets);
+			writeVarLong(out, this.zeroCount);
+			out.writeDouble(this.sum);
+			out.writeDouble(this.min);
+			out.writeDouble(this.max);
+			this.positives.write(out);
+			this.negatives.write(out);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes binary form produced by {@link #toByteArray()}.
+	 * @return Returns the deserialized sketch.
+	 */
+	public static DDSketch fromByteArray(byte[] bytes) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			byte version = in.readByte();
+			Assert.isTrue(version == SERIAL_VERSION, "Unsupported DDSketch serial version: " + version);
+			DDSketch sketch = new DDSketch(in.readDouble(), in.readInt());
+			sketch.zeroCount = readVarLong(in);
+			sketch.sum = in.readDouble();
+			sketch.min = in.readDouble();
+			sketch.max = in.readDouble();
+			sketch.positives.read(in);
+			sketch.negatives.read(in);
+			sketch.count = sketch.zeroCount + sketch.positives.total + sketch.negatives.total;
+			return sketch;
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Invalid DDSketch binary form", e);
+		}
+	}
+
+	private int index(double value) {
+		return (int) Math.ceil(Math.log(value) / this.logGamma);
+	}
+
+	private double value(int index) {
+		return 2 * Math.pow(this.gamma, index) / (this.gamma + 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length long");
+	}
+
+	/**
+	 * Dense bucket counts, indexed from {@code offset}. Collapses the lowest buckets beyond the max buckets.
+	 */
+	private static final class Store {
+
+		private final int maxBuckets;
+
+		private long[] counts = new long[0];
+
+		private int offset;
+
+		private long total;
+
+		Store(int maxBuckets) {
+			this.maxBuckets = maxBuckets;
+		}
+
+		void add(int index, long count) {
+			if (count == 0) {
+				return;
+			}
+			if (this.counts.length == 0) {
+				this.counts = new long[Math.min(64, this.maxBuckets)];
+				this.offset = index - this.counts.length / 2;
+			}
+			if (index < this.offset) {
+				if (this.counts.length < this.maxBuckets) {
+					this.extendDown(index);
+				}
+			}
+			else if (index >= this.offset + this.counts.length) {
+				this.extendUp(index);
+			}
+			// The index may fall below the offset after the lowest buckets were collapsed.
+			this.counts[Math.max(index, this.offset) - this.offset] += count;
+			this.total += count;
+		}
+
+		private void extendDown(int index) {
+			int highest = this.offset + this.counts.length - 1;
+			int length = Math.min(this.maxBuckets, Math.max(this.counts.length * 2, highest - index + 1));
+			this.resize(highest - length + 1, length);
+		}
+
+		private void extendUp(int index) {
+			int length = Math.min(this.maxBuckets, Math.max(this.counts.length * 2, index - this.offset + 1));
+			int newOffset = Math.max(this.offset, index - length + 1);
+			this.resize(newOffset, length);
+		}
+
+		/**
+		 * Moves the counts to a new array of the given offset and length. The counts below the new offset are
+		 * collapsed into its lowest bucket.
+		 */
+		private void resize(int newOffset, int length) {
+			long[] resized = new long[length];
+			for (int i = 0; i < this.counts.length; i++) {
+				if (this.counts[i] != 0) {
+					int index = Math.max(this.offset + i, newOffset);
+					if (index < newOffset + length) {
+						resized[index - newOffset] += this.counts[i];
+					}
+				}
+			}
+			this.counts = resized;
+			this.offset = newOffset;
+		}
+
+		int indexAtRank(long rank) {
+			long cumulative = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				cumulative += this.counts[i];
+				if (cumulative > rank) {
+					return this.offset + i;
+				}
+			}
+			return this.offset + this.counts.length - 1;
+		}
+
+		void merge(Store other) {
+			for (int i = 0; i < other.counts.length; i++) {
+				this.add(other.offset + i, other.counts[i]);
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			int from = 0;
+			int to = this.counts.length;
+			while (from < to && this.counts[from] == 0) {
+				from++;
+			}
+			while (to > from && this.counts[to - 1] == 0) {
+				to--;
+			}
+			out.writeInt(this.offset + from);
+			writeVarLong(out, to - from);
+			for (int i = from; i < to; i++) {
+				writeVarLong(out, this.counts[i]);
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			int from = in.readInt();
+			long length = readVarLong(in);
+			for (int i = 0; i < length; i++) {
+				this.add(from + i, readVarLong(in));
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Store{offset=" + this.offset + ", counts=" + Arrays.toString(this.counts) + '}';
+		}
+	}
+}
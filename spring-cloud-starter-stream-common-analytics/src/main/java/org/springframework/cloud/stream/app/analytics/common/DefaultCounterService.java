@@ -16,24 +16,27 @@
 
 package org.springframework.cloud.stream.app.analytics.common;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.stream.StreamSupport;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Tags;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.expression.EvaluationContext;
 import org.springframework.messaging.Message;
 import org.springframework.stereotype.Component;
-import org.springframework.util.CollectionUtils;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
@@ -41,86 +44,494 @@ import org.springframework.util.StringUtils;
  * @author Christian Tzolov
  */
 @Component
-public class DefaultCounterService implements CounterService {
+public class DefaultCounterService implements CounterService, DisposableBean {
 
 	private static final Log logger = LogFactory.getLog(DefaultCounterService.class);
 
 	public static final String MESSAGE_COUNTER_PREFIX = "message.";
 
+	/**
+	 * Name prefix of the meters describing the counter service itself.
+	 */
+	public static final String INTERNAL_METER_PREFIX = "counter.internal.";
+
+	private static final String[] NO_TAG_KEYS = new String[0];
+
 	private CounterCommonProperties properties;
 
 	private MeterRegistry[] meterRegistries;
 
 	private EvaluationContext context;
 
+	private CounterCache counterCache;
+
+	/**
+	 * Asynchronous per registry increments, null unless the fan-out mode is enabled.
+	 */
+	private RegistryFanOut fanOut;
+
+	private CounterAggregator aggregator;
+
+	/**
+	 * Off-heap store of the counter totals, null unless the store is enabled.
+	 */
+	private OffHeapCounterStore counterStore;
+
+	/**
+	 * Persistence of the counter totals, null unless the checkpoint is enabled.
+	 */
+	private CounterCheckpoint checkpoint;
+
+	private TagCardinalityGuard cardinalityGuard;
+
+	/**
+	 * Filter of the message keys seen within the dedup window, null unless a dedup key expression is set.
+	 */
+	private RotatingBloomFilter dedupFilter;
+
+	/**
+	 * Counter headers of the counted messages, null unless the counter headers are enabled.
+	 */
+	private CounterHeaders counterHeaders;
+
+	/**
+	 * Counting plan compiled from the properties, replaced as a whole on refresh.
+	 */
+	private volatile CounterPlan plan;
+
+	/**
+	 * Sampled timers of the counting stages, null unless the profiling is enabled.
+	 */
+	private CounterProfiler profiler;
+
+	/**
+	 * Distinct count sketches, null unless distinct expressions are configured.
+	 */
+	private DistinctCounters distinctCounters;
+
+	/**
+	 * Amount distributions, null unless the distribution mode is enabled.
+	 */
+	private CounterDistributions distributions;
+
+	private final ThreadLocal<TagBuffer> tagBuffers = new ThreadLocal<>();
+
+	private final Increments directIncrements = this::increment;
+
+	private CounterIncrementListener[] incrementListeners = new CounterIncrementListener[0];
+
 	public DefaultCounterService(CounterCommonProperties properties, MeterRegistry[] meterRegistries,
 			EvaluationContext context) {
 		this.properties = properties;
 		this.meterRegistries = meterRegistries;
 		this.context = context;
+		CounterCommonProperties.Store store = properties.getStore();
+		if (store.isEnabled()) {
+			this.counterStore = new OffHeapCounterStore(meterRegistries, store.getInitialCapacity(),
+					store.getConcurrency(), store.getPublishInterval());
+		}
+		else if (properties.getFanOut().isEnabled()) {
+			this.fanOut = new RegistryFanOut(meterRegistries, properties.getFanOut(),
+					properties.getCache().getMaxSize());
+		}
+		else if (properties.getCache().isEnabled()) {
+			this.counterCache = new CounterCache(meterRegistries, properties.getCache().getMaxSize());
+		}
+
+		if (properties.getAggregation().isEnabled()) {
+			this.aggregator = new CounterAggregator(properties.getAggregation().getFlushInterval(),
+					properties.getAggregation().getFlushThreshold(),
+					this::incrementMeters);
+		}
+
+		CounterCommonProperties.Distribution distribution = properties.getDistribution();
+		if (distribution.isEnabled()) {
+			this.distributions = new CounterDistributions(meterRegistries,
+					distribution.getPercentiles().stream().mapToDouble(Double::doubleValue).toArray(),
+					distribution.getRelativeAccuracy(), distribution.getMaxBuckets());
+		}
+
+		CounterCommonProperties.Cardinality cardinality = properties.getTag().getCardinality();
+		if (cardinality.isEnabled()) {
+			this.cardinalityGuard = new TagCardinalityGuard(meterRegistries, cardinality.getMaxValuesPerTag(),
+					cardinality.getMaxSeriesPerCounter(), cardinality.getOverflowValue());
+		}
+
+		this.plan = new CounterPlan(properties, null, this::removeSeries);
+		CounterCommonProperties.Dedup dedup = properties.getDedup();
+		if (dedup.getKeyExpression() != null) {
+			this.dedupFilter = new RotatingBloomFilter(dedup.getExpectedKeys(), dedup.getFalsePositiveProbability(),
+					dedup.getWindow());
+			for (MeterRegistry meterRegistry : meterRegistries) {
+				this.dedupFilter.bindTo(meterRegistry);
+			}
+			logger.info("Deduplication enabled for " + this.plan.dedupKeyExpression + ", using "
+					+ this.dedupFilter.getMemoryBytes() + " bytes and " + this.dedupFilter.getHashes() + " hashes");
+		}
+		if (this.plan.distinctNames.length > 0) {
+			this.distinctCounters = new DistinctCounters(meterRegistries, this.plan.distinctNames,
+					this.plan.fixedTags, properties.getDistinct().getPrecision());
+		}
+		CounterCommonProperties.Profiling profiling = properties.getProfiling();
+		if (profiling.isEnabled()) {
+			this.profiler = new CounterProfiler(meterRegistries, profiling.getSamplingInterval(),
+					profiling.getPercentiles().stream().mapToDouble(Double::doubleValue).toArray());
+		}
+		if (properties.getHeaders().isEnabled()) {
+			this.counterHeaders = new CounterHeaders(properties.getHeaders().getPrefix(), meterRegistries);
+		}
+
+		CounterCommonProperties.Checkpoint checkpoint = properties.getCheckpoint();
+		if (checkpoint.isEnabled()) {
+			this.checkpoint = new CounterCheckpoint(meterRegistries, Paths.get(checkpoint.getDirectory()),
+					checkpoint.getLogInterval(), checkpoint.getSnapshotInterval());
+			this.checkpoint.start(this::toCountedLayout, this::restoreTotals);
+		}
 	}
 
+	/**
+	 * Recompiles the counting plan from the current properties, typically once they have been rebound after a
+	 * configuration refresh, and atomically replaces the plan of the next messages. The messages being counted
+	 * complete with the previous plan. The distinct expression names, the fixed tags of the distinct counts and
+	 * the features enabled at startup (store, cache, fan-out, aggregation, checkpoint, dedup, distribution,
+	 * headers) are not refreshed.
+	 */
+	@Override
+	public synchronized void refresh() {
+		CounterPlan refreshed = new CounterPlan(this.properties, this.plan, this::removeSeries);
+		if (!Arrays.equals(refreshed.distinctNames, this.plan.distinctNames)) {
+			logger.warn("Distinct expression names can not be refreshed, keeping the counting plan: "
+					+ Arrays.toString(this.plan.distinctNames));
+			return;
+		}
+		this.plan = refreshed;
+		logger.info("Counting plan refreshed");
+	}
+
+	/**
+	 * @return Returns the original message, or the message augmented with the counter headers if enabled.
+	 */
 	@Override
 	public Message<?> count(Message<?> message) {
+		if (this.counterHeaders == null) {
+			this.count(message, this.directIncrements);
+			return message;
+		}
+		return this.countAndAugment(message, this.directIncrements);
+	}
 
-		String counterName = computeCounterName(message);
+	/**
+	 * Evaluates the expressions of every message in the batch and merges the increments of identical
+	 * (name, tags) series before incrementing the counters.
+	 */
+	@Override
+	public List<Message<?>> countBatch(List<Message<?>> messages) {
+		PendingIncrements pending = new PendingIncrements();
+		List<Message<?>> counted = messages;
+		if (this.counterHeaders == null) {
+			for (Message<?> message : messages) {
+				this.count(message, pending);
+			}
+		}
+		else {
+			counted = new ArrayList<>(messages.size());
+			for (Message<?> message : messages) {
+				counted.add(this.countAndAugment(message, pending::add));
+			}
+		}
+		pending.forEach(this::increment);
+		return counted;
+	}
+
+	/**
+	 * Evaluates the expressions of the message and adds its increments to the pending increments, leaving the
+	 * meters untouched until the pending increments are committed.
+	 * @param message the message to count.
+	 * @param pending the increments to add to.
+	 */
+	public void count(Message<?> message, PendingIncrements pending) {
+		this.count(message, pending::add);
+	}
+
+	/**
+	 * Applies the pending increments to the meters, bypassing the local aggregation, and clears them. When the
+	 * checkpoint is enabled the increments and the given partition offsets are recorded in a single atomic step,
+	 * and are on the storage device once this method returns.
+	 * @param pending the increments to apply.
+	 * @param offsets the offset committed with the increments, per partition.
+	 */
+	public void commit(PendingIncrements pending, Map<String, Long> offsets) {
+		try {
+			if (this.checkpoint != null) {
+				this.checkpoint.commit(pending, offsets, this::incrementTotals);
+			}
+			else {
+				pending.forEach(this::incrementTotals);
+			}
+		}
+		finally {
+			// The increments are applied even if the checkpoint log append failed, it is retried by the next one.
+			pending.clear();
+		}
+	}
 
-		// All fixed tags together are passed with every counter increment.
-		Tags fixedTags = this.toTags(this.properties.getTag().getFixed());
+	private Message<?> countAndAugment(Message<?> message, Increments increments) {
+		CounterPlan plan = this.plan;
+		TagBuffer buffer = this.tagBuffer(plan);
+		buffer.collectHeaders = true;
+		try {
+			this.count(plan, message, increments);
+			// Duplicates are not counted and are passed on unchanged.
+			return (buffer.headers.name != null) ? this.counterHeaders.augment(message, buffer.headers) : message;
+		}
+		finally {
+			buffer.collectHeaders = false;
+			buffer.headers.clear();
+		}
+	}
+
+	private void count(Message<?> message, Increments increments) {
+		this.count(this.plan, message, increments);
+	}
+
+	private void count(CounterPlan plan, Message<?> message, Increments increments) {
+
+		TagBuffer buffer = this.tagBuffer(plan);
+		boolean sampled = this.profiler != null && this.profiler.isSampled(++buffer.messages);
+		long time = sampled ? System.nanoTime() : 0L;
+
+		if (this.dedupFilter != null && plan.dedupKeyExpression != null) {
+			boolean duplicate = this.isDuplicate(plan, message);
+			if (sampled) {
+				time = this.profiler.record(CounterProfiler.Stage.DEDUP, time);
+			}
+			if (duplicate) {
+				return;
+			}
+		}
+
+		String counterName = (plan.name != null) ? plan.name : this.computeCounterName(plan, message);
+		if (buffer.collectHeaders) {
+			buffer.headers.name = counterName;
+		}
+		if (sampled) {
+			time = this.profiler.record(CounterProfiler.Stage.NAME, time);
+		}
 
 		// Message Counter
-		if (this.properties.isMessageCounterEnabled()) {
-			this.increment(this.toMessageCounterName(counterName), Tags.of(fixedTags), 1.0);
+		if (plan.messageCounterEnabled) {
+			String messageCounterName = (plan.messageCounterName != null) ? plan.messageCounterName :
+					this.toMessageCounterName(counterName);
+			MeterKey series = buffer.probe.reset(messageCounterName, plan.fixedTags, plan.fixedTagsHash, NO_TAG_KEYS,
+					NO_TAG_KEYS);
+			this.add(message, increments, series, 1.0);
+			if (buffer.collectHeaders) {
+				buffer.headers.count = this.counterHeaders.add(series, 1.0);
+			}
+			if (sampled) {
+				time = this.profiler.record(CounterProfiler.Stage.INCREMENT, time);
+			}
 		}
 
-		double amount = computeCounterAmount(message);
+		if (plan.jsonPathExtractor != null) {
+			plan.jsonPathExtractor.extract(message.getPayload(), buffer.json);
+			if (sampled) {
+				time = this.profiler.record(CounterProfiler.Stage.JSON, time);
+			}
+		}
+
+		double amount = plan.constantAmount ? plan.amount : this.computeCounterAmount(plan, message, buffer);
+		if (sampled) {
+			time = this.profiler.record(CounterProfiler.Stage.AMOUNT, time);
+		}
+
+		// Distinct Counts
+		if (this.distinctCounters != null) {
+			this.countDistinct(plan, message, counterName, buffer, sampled);
+			if (sampled) {
+				time = this.profiler.record(CounterProfiler.Stage.DISTINCT, time);
+			}
+		}
 
-		Map<String, List<Tag>> allGroupedTags = new HashMap<>();
 		// Tag Expressions Counter
-		if (this.properties.getTag().getExpression() != null) {
+		if (plan.tagKeys.length > 0) {
+			try {
+				this.count(plan, message, counterName, amount, buffer, increments, sampled, time);
+			}
+			finally {
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the buffers of the calling thread, sized for the given plan.
+	 */
+	private TagBuffer tagBuffer(CounterPlan plan) {
+		TagBuffer buffer = this.tagBuffers.get();
+		if (buffer == null || buffer.plan != plan) {
+			buffer = new TagBuffer(plan);
+			this.tagBuffers.set(buffer);
+		}
+		return buffer;
+	}
 
-			Map<String, List<Tag>> groupedTags = this.properties.getTag().getExpression().entrySet().stream()
-					// maps a <name, expr> pair into [<name, expr#val_1>, ... <name, expr#val_N>] Tag array.
-					.map(namedExpression ->
-							toList(namedExpression.getValue().getValue(this.context, message)).stream()
-									.map(tagValue -> Tag.of(namedExpression.getKey(), tagValue))
-									.collect(Collectors.toList())).flatMap(List::stream)
-					.collect(Collectors.groupingBy(tag -> tag.getKey(), Collectors.toList()));
+	/**
+	 * Evaluates every tag expression into its slot and increments one series per value index, up to the longest
+	 * list of values. Slots with fewer values are padded with empty values, slots without value are left out.
+	 * The series are looked up through the per-thread probe key, so only the new series allocate.
+	 */
+	private void count(CounterPlan plan, Message<?> message, String counterName, double amount, TagBuffer buffer,
+			Increments increments, boolean sampled, long time) {
 
-			allGroupedTags.putAll(groupedTags);
+		String[] tagKeys = plan.tagKeys;
+		int max = 0;
+		for (int slot = 0; slot < tagKeys.length; slot++) {
+			List<String> values = buffer.slotValues[slot];
+			int jsonPath = plan.tagSlotJsonPaths[slot];
+			if (jsonPath >= 0 && buffer.json.isResolved(jsonPath)) {
+				values.addAll(buffer.json.getValues(jsonPath));
+			}
+			else {
+				long start = sampled ? System.nanoTime() : 0L;
+				Object value = plan.tagSlotExpressions[slot].getValue(this.context, message);
+				if (sampled) {
+					this.profiler.record(plan.tagSlotExpressions[slot], start);
+				}
+				this.collectValues(value, values);
+			}
+			if (plan.topKSlots[slot]) {
+				for (int i = 0; i < values.size(); i++) {
+					values.set(i, plan.topKTagValues.admitValue(counterName, slot, values.get(i)));
+				}
+			}
+			if (this.cardinalityGuard != null) {
+				for (int i = 0; i < values.size(); i++) {
+					values.set(i, this.cardinalityGuard.admitValue(counterName, tagKeys[slot], values.get(i)));
+				}
+			}
+			max = Math.max(max, values.size());
+			if (buffer.collectHeaders) {
+				buffer.headers.tags.put(tagKeys[slot], new ArrayList<>(values));
+			}
 		}
 
-		this.count(counterName, fixedTags, allGroupedTags, amount);
+		if (sampled) {
+			time = this.profiler.record(CounterProfiler.Stage.TAGS, time);
+		}
 
-		return message;
+		String[] tagValues = buffer.tagValues;
+		for (int i = 0; i < max; i++) {
+			for (int slot = 0; slot < tagKeys.length; slot++) {
+				List<String> values = buffer.slotValues[slot];
+				tagValues[slot] = values.isEmpty() ? null : (i < values.size() ? values.get(i) : "");
+			}
+			MeterKey series = buffer.probe.reset(counterName, plan.fixedTags, plan.fixedTagsHash, tagKeys, tagValues);
+			if (this.cardinalityGuard != null && !this.cardinalityGuard.admitSeries(counterName, series)) {
+				for (int slot = 0; slot < tagKeys.length; slot++) {
+					if (tagValues[slot] != null) {
+						tagValues[slot] = this.cardinalityGuard.getOverflowValue();
+					}
+				}
+				series = buffer.probe.reset(counterName, plan.fixedTags, plan.fixedTagsHash, tagKeys, tagValues);
+			}
+			this.add(message, increments, series, amount);
+			if (buffer.collectHeaders) {
+				buffer.headers.totals.add(this.counterHeaders.add(series, amount));
+			}
+			if (this.distributions != null) {
+				this.distributions.record(series, amount);
+			}
+		}
+		if (sampled) {
+			this.profiler.record(CounterProfiler.Stage.INCREMENT, time);
+		}
 	}
 
-	protected String toMessageCounterName(String commonCounterName) {
-		return MESSAGE_COUNTER_PREFIX + commonCounterName;
+	private boolean isDuplicate(CounterPlan plan, Message<?> message) {
+		Object key = plan.dedupKeyExpression.getValue(this.context, message);
+		return key != null && this.dedupFilter.checkAndPut(key.toString());
 	}
 
-	private void count(String counterName, Tags fixedTags, Map<String, List<Tag>> groupedTags, double amount) {
-		if (!CollectionUtils.isEmpty(groupedTags)) {
-			int max = groupedTags.values().stream().map(l -> l.size()).max(Integer::compareTo).get();
-			for (int i = 0; i < max; i++) {
-				Tags currentTags = Tags.of(fixedTags);
-				for (Map.Entry<String, List<Tag>> e : groupedTags.entrySet()) {
-					currentTags = (e.getValue().size() > i) ?
-							currentTags.and(e.getValue().get(i)) :
-							currentTags.and(Tags.of(e.getKey(), ""));
+	private void countDistinct(CounterPlan plan, Message<?> message, String counterName, TagBuffer buffer,
+			boolean sampled) {
+		HyperLogLog[] sketches = this.distinctCounters.getSketches(counterName);
+		List<String> values = buffer.distinctValues;
+		for (int i = 0; i < sketches.length; i++) {
+			int jsonPath = plan.distinctJsonPaths[i];
+			if (jsonPath >= 0 && buffer.json.isResolved(jsonPath)) {
+				for (String value : buffer.json.getValues(jsonPath)) {
+					sketches[i].offer(value);
+				}
+			}
+			else {
+				values.clear();
+				long start = sampled ? System.nanoTime() : 0L;
+				Object distinctValue = plan.distinctExpressions[i].getValue(this.context, message);
+				if (sampled) {
+					this.profiler.record(plan.distinctExpressions[i], start);
+				}
+				this.collectValues(distinctValue, values);
+				for (String value : values) {
+					sketches[i].offer(value);
 				}
-				this.increment(counterName, currentTags, amount);
 			}
 		}
 	}
 
+	private void add(Message<?> message, Increments increments, MeterKey series, double amount) {
+		increments.add(series, amount);
+		for (CounterIncrementListener listener : this.incrementListeners) {
+			listener.onIncrement(message, series, amount);
+		}
+	}
+
+	/**
+	 * Registers a listener notified of every increment computed from the messages.
+	 * @param listener the listener to add.
+	 */
+	public synchronized void addIncrementListener(CounterIncrementListener listener) {
+		int length = this.incrementListeners.length;
+		CounterIncrementListener[] listeners = Arrays.copyOf(this.incrementListeners, length + 1);
+		listeners[length] = listener;
+		this.incrementListeners = listeners;
+	}
+
+	protected String toMessageCounterName(String commonCounterName) {
+		return MESSAGE_COUNTER_PREFIX + commonCounterName;
+	}
+
 	protected String computeCounterName(Message<?> message) {
-		return this.properties.getComputedNameExpression()
-				.getValue(this.context, message, CharSequence.class).toString();
+		return this.computeCounterName(this.plan, message);
 	}
 
 	protected double computeCounterAmount(Message<?> message) {
-		return this.properties.getComputedAmountExpression().getValue(this.context, message, double.class);
+		CounterPlan plan = this.plan;
+		return plan.constantAmount ? plan.amount : plan.amountExpression.getValue(this.context, message, double.class);
+	}
+
+	private String computeCounterName(CounterPlan plan, Message<?> message) {
+		String counterName = plan.nameExpression.getValue(this.context, message, CharSequence.class).toString();
+		if (counterName.startsWith(INTERNAL_METER_PREFIX)) {
+			throw new IllegalArgumentException("The counter name '" + counterName
+					+ "' uses the reserved prefix '" + INTERNAL_METER_PREFIX + "'");
+		}
+		return counterName;
+	}
+
+	private double computeCounterAmount(CounterPlan plan, Message<?> message, TagBuffer buffer) {
+		if (plan.amountJsonPath >= 0 && buffer.json.isResolved(plan.amountJsonPath)) {
+			List<String> values = buffer.json.getValues(plan.amountJsonPath);
+			if (values.size() == 1) {
+				try {
+					return Double.parseDouble(values.get(0));
+				}
+				catch (NumberFormatException e) {
+					// Leave the conversion, and its error, to the SpEL evaluation.
+				}
+			}
+		}
+		return plan.amountExpression.getValue(this.context, message, double.class);
 	}
 
 	/**
@@ -129,11 +540,7 @@ public class DefaultCounterService implements CounterService {
 	 * @return Returns Tags list representing every non-empty key/value pair.
 	 */
 	protected Tags toTags(Map<String, String> keyValueMap) {
-		return CollectionUtils.isEmpty(keyValueMap) ? Tags.empty() :
-				Tags.of(keyValueMap.entrySet().stream()
-						.filter(e -> StringUtils.hasText(e.getKey()) && StringUtils.hasText(e.getValue()))
-						.map(e -> Tag.of(e.getKey(), e.getValue()))
-						.collect(Collectors.toList()));
+		return CounterPlan.toTags(keyValueMap);
 	}
 
 	/**
@@ -144,22 +551,44 @@ public class DefaultCounterService implements CounterService {
 	 * @return Returns value list.
 	 */
 	protected List<String> toList(Object value) {
-		if (value != null) {
-			if ((value instanceof Collection) || ObjectUtils.isArray(value)) {
-				Collection<?> valueCollection = (value instanceof Collection) ? (Collection<?>) value
-						: Arrays.asList(ObjectUtils.toObjectArray(value));
+		List<String> values = new ArrayList<>();
+		this.collectValues(value, values);
+		return values;
+	}
 
-				return valueCollection.stream()
-						.filter(v -> v != null)
-						.map(Object::toString)
-						.filter(StringUtils::hasText)
-						.collect(Collectors.toList());
+	/**
+	 * Same as {@link #toList(Object)} but adds the values to the provided list.
+	 * @param value input value can be array, collection or single value.
+	 * @param values the list to add the non-empty values to.
+	 */
+	protected void collectValues(Object value, List<String> values) {
+		if (value instanceof Collection) {
+			for (Object v : (Collection<?>) value) {
+				addValue(v, values);
 			}
-			else {
-				return Arrays.asList(value.toString());
+		}
+		else if (value instanceof Object[]) {
+			for (Object v : (Object[]) value) {
+				addValue(v, values);
+			}
+		}
+		else if (ObjectUtils.isArray(value)) {
+			for (Object v : ObjectUtils.toObjectArray(value)) {
+				addValue(v, values);
+			}
+		}
+		else if (value != null) {
+			values.add(value.toString());
+		}
+	}
+
+	private static void addValue(Object value, List<String> values) {
+		if (value != null) {
+			String stringValue = value.toString();
+			if (StringUtils.hasText(stringValue)) {
+				values.add(stringValue);
 			}
 		}
-		return Collections.emptyList();
 	}
 
 	/**
@@ -169,8 +598,230 @@ public class DefaultCounterService implements CounterService {
 	 * @param amount The amount to add to the counter.
 	 */
 	protected void increment(String counterName, Iterable<Tag> tags, double amount) {
+		this.increment(new MeterKey(counterName, Tags.of(tags)), amount);
+	}
+
+	private void increment(MeterKey series, double amount) {
+		if (this.aggregator != null) {
+			this.aggregator.add(series, amount);
+		}
+		else {
+			this.incrementMeters(series, amount);
+		}
+	}
+
+	private void incrementMeters(MeterKey series, double amount) {
+		if (this.checkpoint != null) {
+			this.checkpoint.add(series, amount);
+		}
+		this.incrementTotals(series, amount);
+	}
+
+	/**
+	 * Lays a restored series out like the counted series: the fixed tags as base tags and, unless it is a message
+	 * counter series, the tag expression keys as slots. Series counted with other tags are left as restored.
+	 */
+	private MeterKey toCountedLayout(MeterKey restored) {
+		CounterPlan plan = this.plan;
+		String[] tagValues = new String[plan.tagKeys.length];
+		boolean slotted = false;
+		for (Tag tag : restored.getTags()) {
+			int slot = Arrays.binarySearch(plan.tagKeys, tag.getKey());
+			if (slot >= 0) {
+				tagValues[slot] = tag.getValue();
+				slotted = true;
+			}
+		}
+		MeterKey series = slotted ? new MeterKey(restored.getName(), plan.fixedTags, plan.tagKeys, tagValues)
+				: new MeterKey(restored.getName(), plan.fixedTags, NO_TAG_KEYS, NO_TAG_KEYS);
+		return series.getTags().equals(restored.getTags()) ? series : restored;
+	}
+
+	private void restoreTotals(MeterKey series, double amount) {
+		if (this.counterHeaders != null) {
+			this.counterHeaders.add(series, amount);
+		}
+		this.incrementTotals(series, amount);
+	}
+
+	private void incrementTotals(MeterKey series, double amount) {
+		if (this.counterStore != null) {
+			this.counterStore.increment(series, amount);
+		}
+		else if (this.fanOut != null) {
+			this.fanOut.increment(series, amount);
+		}
+		else if (this.counterCache != null) {
+			for (Counter counter : this.counterCache.get(series)) {
+				counter.increment(amount);
+			}
+		}
+		else {
+			for (MeterRegistry meterRegistry : this.meterRegistries) {
+				meterRegistry.counter(series.getName(), series.getTags()).increment(amount);
+			}
+		}
+	}
+
+	/**
+	 * Removes the meters of the counter series tagged with the given tag, e.g. a value that left the top-K, from
+	 * every registry and forgets the counters resolved for them. Counted again, the series are registered anew.
+	 */
+	private void removeSeries(String counterName, String tagKey, String tagValue) {
+		Tag tag = Tag.of(tagKey, tagValue);
+		Predicate<MeterKey> tagged = series -> series.getName().equals(counterName)
+				&& StreamSupport.stream(series.getTags().spliterator(), false).anyMatch(tag::equals);
+		// Applies the aggregated, unpublished and queued increments first, so that they are removed as well.
+		this.flush();
+		if (this.counterCache != null) {
+			this.counterCache.remove(tagged);
+		}
+		if (this.fanOut != null) {
+			this.fanOut.remove(tagged);
+		}
 		for (MeterRegistry meterRegistry : this.meterRegistries) {
-			meterRegistry.counter(counterName, tags).increment(amount);
+			for (Meter meter : meterRegistry.find(counterName).tags(Tags.of(tag)).meters()) {
+				meterRegistry.remove(meter);
+				if (this.counterStore != null) {
+					this.counterStore.unpublish(meter.getId());
+				}
+			}
+		}
+	}
+
+	CounterPlan getPlan() {
+		return this.plan;
+	}
+
+	/**
+	 * @return Returns the amount distributions, or null if the distribution mode is disabled.
+	 */
+	public CounterDistributions getDistributions() {
+		return this.distributions;
+	}
+
+	/**
+	 * @return Returns the off-heap counter store, or null if the store is disabled.
+	 */
+	public OffHeapCounterStore getCounterStore() {
+		return this.counterStore;
+	}
+
+	/**
+	 * @return Returns the dedup filter, or null if no dedup key expression is set.
+	 */
+	public RotatingBloomFilter getDedupFilter() {
+		return this.dedupFilter;
+	}
+
+	/**
+	 * @return Returns the registry fan-out, or null if the fan-out mode is disabled.
+	 */
+	public RegistryFanOut getFanOut() {
+		return this.fanOut;
+	}
+
+	/**
+	 * @return Returns the counter totals checkpoint, or null if the checkpoint is disabled.
+	 */
+	public CounterCheckpoint getCheckpoint() {
+		return this.checkpoint;
+	}
+
+	/**
+	 * Flushes the locally aggregated increments, if any, to the meter registries, registers the new series of
+	 * the off-heap store and applies the increments queued for the registries in fan-out mode.
+	 */
+	public void flush() {
+		if (this.aggregator != null) {
+			this.aggregator.flush();
+		}
+		if (this.counterStore != null) {
+			this.counterStore.publish();
+		}
+		if (this.fanOut != null) {
+			this.fanOut.flush();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (this.aggregator != null) {
+			this.aggregator.close();
+		}
+		if (this.checkpoint != null) {
+			this.checkpoint.close();
+		}
+		if (this.counterStore != null) {
+			this.counterStore.close();
+		}
+		if (this.fanOut != null) {
+			this.fanOut.close();
+		}
+	}
+
+	/**
+	 * Target of the counter increments computed for a message.
+	 */
+	@FunctionalInterface
+	private interface Increments {
+
+		/**
+		 * @param series the series to increment. Probe keys are only valid for the duration of the call.
+		 * @param amount the amount to add.
+		 */
+		void add(MeterKey series, double amount);
+	}
+
+	/**
+	 * Per-thread buffers reused across the messages.
+	 */
+	private static final class TagBuffer {
+
+		/**
+		 * The plan the buffers are sized for.
+		 */
+		private final CounterPlan plan;
+
+		private final List<String>[] slotValues;
+
+		private final String[] tagValues;
+
+		private final MeterKey probe = MeterKey.probe();
+
+		private final List<String> distinctValues = new ArrayList<>();
+
+		private final CounterHeaders.Values headers = new CounterHeaders.Values();
+
+		/**
+		 * Number of messages counted by the thread, driving the profiling sampling.
+		 */
+		private long messages;
+
+		/**
+		 * Whether the counter header values of the message being counted are collected.
+		 */
+		private boolean collectHeaders;
+
+		private final JsonPathExtractor.Result json;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		TagBuffer(CounterPlan plan) {
+			this.plan = plan;
+			int slots = plan.tagKeys.length;
+			this.slotValues = new List[slots];
+			for (int i = 0; i < slots; i++) {
+				this.slotValues[i] = new ArrayList<>();
+			}
+			this.tagValues = new String[slots];
+			this.json = (plan.jsonPathExtractor != null) ? plan.jsonPathExtractor.newResult() : null;
+		}
+
+		void clear() {
+			for (List<String> values : this.slotValues) {
+				values.clear();
+			}
+			Arrays.fill(this.tagValues, null);
 		}
 	}
 }
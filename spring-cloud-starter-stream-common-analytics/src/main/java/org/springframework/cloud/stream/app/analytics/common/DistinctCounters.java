@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+/**
+ * HyperLogLog sketches of the distinct expression values, one per computed counter name and distinct expression.
+ * Every sketch is published as a 'distinct.[counter-name]' gauge, tagged with the fixed tags and with the
+ * expression=[distinct-name] tag, in every meter registry. The memory is bounded by the sketch size whatever the
+ * number of distinct values.
+ *
+ * @author Christian Tzolov
+ */
+public class DistinctCounters {
+
+	public static final String DISTINCT_COUNTER_PREFIX = "distinct.";
+
+	public static final String EXPRESSION_TAG = "expression";
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final String[] distinctNames;
+
+	private final Tags fixedTags;
+
+	private final int precision;
+
+	private final Map<String, HyperLogLog[]> sketches = new ConcurrentHashMap<>();
+
+	public DistinctCounters(MeterRegistry[] meterRegistries, String[] distinctNames, Tags fixedTags, int precision) {
+		this.meterRegistries = meterRegistries;
+		this.distinctNames = distinctNames;
+		this.fixedTags = fixedTags;
+		this.precision = precision;
+	}
+
+	/**
+	 * @param counterName computed counter name.
+	 * @return Returns the sketches of the counter, indexed as the distinct names. Registers the gauges of a new
+	 * counter name.
+	 */
+	public HyperLogLog[] getSketches(String counterName) {
+		HyperLogLog[] counterSketches = this.sketches.get(counterName);
+		if (counterSketches == null) {
+			counterSketches = this.sketches.computeIfAbsent(counterName, this::register);
+		}
+		return counterSketches;
+	}
+
+	private HyperLogLog[] register(String counterName) {
+		HyperLogLog[] counterSketches = new HyperLogLog[this.distinctNames.length];
+		for (int i = 0; i < counterSketches.length; i++) {
+			counterSketches[i] = new HyperLogLog(this.precision);
+			for (MeterRegistry meterRegistry : this.meterRegistries) {
+				Gauge.builder(DISTINCT_COUNTER_PREFIX + counterName, counterSketches[i], HyperLogLog::estimate)
+						.tags(this.fixedTags)
+						.tag(EXPRESSION_TAG, this.distinctNames[i])
+						.strongReference(true)
+						.register(meterRegistry);
+			}
+		}
+		return counterSketches;
+	}
+}
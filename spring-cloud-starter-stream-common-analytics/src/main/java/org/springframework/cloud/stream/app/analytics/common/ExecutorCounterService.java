@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * {@link CounterService} that hands the messages off to a bounded pool of worker lanes, each backed by a single
+ * thread and a bounded queue. The messages are routed to the lanes by the hash of the key expression value, so
+ * the messages sharing a key are counted in order. The key defaults to the computed counter name, so the messages
+ * of a counter are counted in order. Without key, i.e. for a constant counter name, the messages are spread
+ * round-robin and the ordering across the lanes is lost.
+ *
+ * When the queue of a lane is full the caller blocks until room is available, propagating the back pressure to
+ * the binder. The batches are split into one slice per lane, each slice counted as a batch by its lane.
+ *
+ * The messages are counted after the caller has returned, so the counting failures can not reach the binder
+ * error handling. They are logged and counted by the 'counter.internal.executor.errors' meter instead.
+ *
+ * @author Christian Tzolov
+ */
+public class ExecutorCounterService implements CounterService, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(ExecutorCounterService.class);
+
+	private final CounterService delegate;
+
+	private final Expression keyExpression;
+
+	private final EvaluationContext context;
+
+	private final ThreadPoolExecutor[] lanes;
+
+	private final AtomicInteger roundRobin = new AtomicInteger();
+
+	private final LongAdder errors = new LongAdder();
+
+	public ExecutorCounterService(CounterService delegate, CounterCommonProperties.Executor properties,
+			MeterRegistry[] meterRegistries, EvaluationContext context) {
+		this(delegate, properties, properties.getKeyExpression(), meterRegistries, context);
+	}
+
+	public ExecutorCounterService(CounterService delegate, CounterCommonProperties.Executor properties,
+			Expression keyExpression, MeterRegistry[] meterRegistries, EvaluationContext context) {
+		this.delegate = delegate;
+		this.keyExpression = keyExpression;
+		this.context = context;
+		this.lanes = new ThreadPoolExecutor[properties.getPoolSize()];
+		ThreadFactory threadFactory = threadFactory(properties.getMode());
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(properties.getQueueCapacity()), threadFactory,
+					ExecutorCounterService::waitForRoom);
+		}
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			this.bindTo(meterRegistry);
+		}
+	}
+
+	@Override
+	public Message<?> count(Message<?> message) {
+		this.execute(this.lane(message), () -> this.delegate.count(message), message);
+		return message;
+	}
+
+	@Override
+	public List<Message<?>> countBatch(List<Message<?>> messages) {
+		Map<ThreadPoolExecutor, List<Message<?>>> slices = new LinkedHashMap<>();
+		for (Message<?> message : messages) {
+			slices.computeIfAbsent(this.lane(message), lane -> new ArrayList<>()).add(message);
+		}
+		slices.forEach((lane, slice) -> this.execute(lane, () -> this.delegate.countBatch(slice), slice));
+		return messages;
+	}
+
+	private void execute(ThreadPoolExecutor lane, Runnable counting, Object counted) {
+		lane.execute(() -> {
+			try {
+				counting.run();
+			}
+			catch (Exception e) {
+				this.errors.increment();
+				logger.error("Failed to count message: " + counted, e);
+			}
+		});
+	}
+
+	@Override
+	public void refresh() {
+		this.delegate.refresh();
+	}
+
+	private ThreadPoolExecutor lane(Message<?> message) {
+		int hash;
+		if (this.keyExpression != null) {
+			Object key = this.keyExpression.getValue(this.context, message);
+			hash = (key != null) ? key.hashCode() : 0;
+			hash ^= (hash >>> 16);
+		}
+		else {
+			hash = this.roundRobin.getAndIncrement();
+		}
+		return this.lanes[Math.floorMod(hash, this.lanes.length)];
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ThreadPoolExecutor lane : this.lanes) {
+			depth += lane.getQueue().size();
+		}
+		return depth;
+	}
+
+	public double getUtilization() {
+		int active = 0;
+		for (ThreadPoolExecutor lane : this.lanes) {
+			active += lane.getActiveCount();
+		}
+		return (double) active / this.lanes.length;
+	}
+
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	private void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "executor.errors", this.errors,
+				LongAdder::sum)
+				.description("Counting tasks failed on the worker lanes")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "executor.queue.depth", this,
+				ExecutorCounterService::getQueueDepth)
+				.description("Messages waiting in the worker lanes queues")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "executor.utilization", this,
+				ExecutorCounterService::getUtilization)
+				.description("Ratio of the worker lanes busy counting messages")
+				.register(registry);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		for (ThreadPoolExecutor lane : this.lanes) {
+			lane.shutdown();
+		}
+		for (ThreadPoolExecutor lane : this.lanes) {
+			if (!lane.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warn("Worker lane did not drain in time, " + lane.getQueue().size() + " messages not counted");
+			}
+		}
+		if (this.delegate instanceof DisposableBean) {
+			((DisposableBean) this.delegate).destroy();
+		}
+	}
+
+	private static void waitForRoom(Runnable task, ThreadPoolExecutor lane) {
+		if (lane.isShutdown()) {
+			throw new RejectedExecutionException("Counter worker lane is shut down");
+		}
+		try {
+			lane.getQueue().put(task);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for a counter worker lane", e);
+		}
+	}
+
+	private static ThreadFactory threadFactory(CounterCommonProperties.ExecutorMode mode) {
+		if (mode == CounterCommonProperties.ExecutorMode.VIRTUAL) {
+			// Resolved reflectively to keep the Java 8 baseline. Requires Java 21+ at runtime.
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+				builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "counter-worker-", 0L);
+				return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("The 'virtual' executor mode requires Java 21 or newer", e);
+			}
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-worker-");
+		threadFactory.setDaemon(true);
+		return threadFactory;
+	}
+}
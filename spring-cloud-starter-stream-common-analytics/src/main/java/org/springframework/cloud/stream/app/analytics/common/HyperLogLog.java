@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import org.springframework.util.Assert;
+
+/**
+ * HyperLogLog distinct count sketch. Uses 2^precision one byte registers and a 64 bit hash, so the estimate needs no
+ * large range correction, and the linear counting for the small cardinalities.
+ *
+ * Thread safe: a register is compared without synchronization first, as most values do not raise it once the sketch
+ * is warm, and only the updates are synchronized. The estimate may miss the concurrent updates.
+ *
+ * @author Christian Tzolov
+ */
+public class HyperLogLog {
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	private final double alphaMM;
+
+	public HyperLogLog(int precision) {
+		Assert.isTrue(precision >= 4 && precision <= 18, "The precision must be between 4 and 18: " + precision);
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+		int m = this.registers.length;
+		double alpha = (m == 16) ? 0.673 : (m == 32) ? 0.697 : (m == 64) ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		this.alphaMM = alpha * m * m;
+	}
+
+	public int getPrecision() {
+		return this.precision;
+	}
+
+	public void offer(String value) {
+		this.offerHash(hash64(value));
+	}
+
+	public void offerHash(long hash) {
+		int index = (int) (hash >>> (64 - this.precision));
+		// Position of the leftmost 1 bit of the remaining bits, bounded by a sentinel bit.
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1);
+		if (rank > this.registers[index]) {
+			synchronized (this) {
+				if (rank > this.registers[index]) {
+					this.registers[index] = rank;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the estimated number of distinct values offered.
+	 */
+	public long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : this.registers) {
+			sum += Double.longBitsToDouble((1023L - register) << 52); // 2^-register
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		int m = this.registers.length;
+		double estimate = this.alphaMM / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters, followed by the MurmurHash3 finalizer to spread the bits.
+	 */
+	static long hash64(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
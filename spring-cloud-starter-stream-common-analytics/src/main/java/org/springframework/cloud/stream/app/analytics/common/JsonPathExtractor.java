@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.springframework.expression.Expression;
+import org.springframework.util.StringUtils;
+
+/**
+ * Extracts the values of several JSON paths from a JSON payload in a single, streaming, parse. Supports the deep
+ * scan of a field ({@code $..field}) and the absolute dotted paths ({@code $.a.b.c}), which cover the
+ * {@code #jsonPath(payload, '...')} counter expressions in most use cases.
+ *
+ * The extracted values mirror the {@code #jsonPath} results once stringified: deep scan values are returned in
+ * the JsonPath order, null and empty values are left out and the floating point numbers are formatted as doubles.
+ * A path is reported as unresolved, and the caller is expected to fall back to the SpEL evaluation, whenever the
+ * streaming result could differ: matched objects or arrays, missing absolute paths or invalid JSON.
+ *
+ * @author Christian Tzolov
+ */
+public class JsonPathExtractor {
+
+	private static final Pattern JSON_PATH_EXPRESSION =
+			Pattern.compile("^\\s*#jsonPath\\(\\s*payload\\s*,\\s*'([^']+)'\\s*\\)\\s*$");
+
+	private static final Pattern DEEP_SCAN_PATH = Pattern.compile("^\\$\\.\\.([\\w\\-]+)$");
+
+	private static final Pattern ABSOLUTE_PATH = Pattern.compile("^\\$(\\.[\\w\\-]+)+$");
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	private final String[] jsonPaths;
+
+	/**
+	 * Field names of the deep scan paths, null for the absolute paths.
+	 */
+	private final String[] deepScanFields;
+
+	/**
+	 * Field names of the absolute paths, null for the deep scan paths.
+	 */
+	private final String[][] absolutePaths;
+
+	public JsonPathExtractor(List<String> jsonPaths) {
+		this.jsonPaths = jsonPaths.toArray(new String[0]);
+		this.deepScanFields = new String[this.jsonPaths.length];
+		this.absolutePaths = new String[this.jsonPaths.length][];
+		for (int i = 0; i < this.jsonPaths.length; i++) {
+			Matcher deepScan = DEEP_SCAN_PATH.matcher(this.jsonPaths[i]);
+			if (deepScan.matches()) {
+				this.deepScanFields[i] = deepScan.group(1);
+			}
+			else if (ABSOLUTE_PATH.matcher(this.jsonPaths[i]).matches()) {
+				this.absolutePaths[i] = this.jsonPaths[i].substring(2).split("\\.");
+			}
+			else {
+				throw new IllegalArgumentException("Unsupported JSON path: " + this.jsonPaths[i]);
+			}
+		}
+	}
+
+	/**
+	 * @param expression counter expression.
+	 * @return Returns the JSON path of a {@code #jsonPath(payload, '<path>')} expression with a supported path, or
+	 * null otherwise.
+	 */
+	public static String toJsonPath(Expression expression) {
+		if (expression == null) {
+			return null;
+		}
+		Matcher matcher = JSON_PATH_EXPRESSION.matcher(expression.getExpressionString());
+		if (!matcher.matches()) {
+			return null;
+		}
+		String jsonPath = matcher.group(1);
+		return (DEEP_SCAN_PATH.matcher(jsonPath).matches() || ABSOLUTE_PATH.matcher(jsonPath).matches()) ?
+				jsonPath : null;
+	}
+
+	public static boolean isAbsolutePath(String jsonPath) {
+		return ABSOLUTE_PATH.matcher(jsonPath).matches();
+	}
+
+	public int size() {
+		return this.jsonPaths.length;
+	}
+
+	public Result newResult() {
+		return new Result(this.jsonPaths.length);
+	}
+
+	/**
+	 * Extracts all the paths from the payload in one pass.
+	 * @param payload JSON payload, either a byte array or a String. Other payload types leave all paths unresolved.
+	 * @param result reusable result, cleared before the extraction.
+	 */
+	public void extract(Object payload, Result result) {
+		result.clear();
+		if (!(payload instanceof byte[]) && !(payload instanceof String)) {
+			return;
+		}
+		try (JsonParser parser = (payload instanceof byte[]) ? this.jsonFactory.createParser((byte[]) payload)
+				: this.jsonFactory.createParser((String) payload)) {
+			this.extract(parser, result);
+		}
+		catch (IOException e) {
+			result.clear();
+			return;
+		}
+		for (int i = 0; i < this.jsonPaths.length; i++) {
+			result.resolved[i] = !result.unsupported[i] && (this.deepScanFields[i] != null || result.found[i]);
+			if (result.resolved[i] && this.deepScanFields[i] != null) {
+				result.sortByObjectOrdinal(i);
+			}
+		}
+	}
+
+	private void extract(JsonParser parser, Result result) throws IOException {
+		// Per depth: container type, current field name and ordinal of the enclosing object.
+		int depth = 0;
+		boolean[] arrays = new boolean[16];
+		String[] names = new String[16];
+		int[] objectOrdinals = new int[16];
+		int objects = 0;
+
+		JsonToken token;
+		while ((token = parser.nextToken()) != null) {
+			switch (token) {
+			case FIELD_NAME:
+				names[depth - 1] = parser.getCurrentName();
+				break;
+			case START_OBJECT:
+			case START_ARRAY:
+				this.match(depth, arrays, names, objectOrdinals, null, true, result);
+				if (depth == arrays.length) {
+					arrays = Arrays.copyOf(arrays, depth * 2);
+					names = Arrays.copyOf(names, depth * 2);
+					objectOrdinals = Arrays.copyOf(objectOrdinals, depth * 2);
+				}
+				arrays[depth] = (token == JsonToken.START_ARRAY);
+				names[depth] = null;
+				objectOrdinals[depth] = (token == JsonToken.START_OBJECT) ? objects++ : -1;
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				depth--;
+				break;
+			default:
+				this.match(depth, arrays, names, objectOrdinals, scalarText(token, parser), false, result);
+			}
+		}
+	}
+
+	private void match(int depth, boolean[] arrays, String[] names, int[] objectOrdinals, String value,
+			boolean container, Result result) {
+		if (depth == 0 || arrays[depth - 1]) {
+			return;
+		}
+		String fieldName = names[depth - 1];
+		for (int i = 0; i < this.jsonPaths.length; i++) {
+			boolean matches;
+			if (this.deepScanFields[i] != null) {
+				matches = this.deepScanFields[i].equals(fieldName);
+			}
+			else {
+				matches = matchesAbsolutePath(this.absolutePaths[i], depth, arrays, names);
+			}
+			if (matches) {
+				result.found[i] = true;
+				if (container) {
+					result.unsupported[i] = true;
+				}
+				else if (StringUtils.hasText(value)) {
+					result.add(i, value, objectOrdinals[depth - 1]);
+				}
+			}
+		}
+	}
+
+	private static boolean matchesAbsolutePath(String[] path, int depth, boolean[] arrays, String[] names) {
+		if (path.length != depth) {
+			return false;
+		}
+		for (int d = 0; d < depth; d++) {
+			if (arrays[d] || !path[d].equals(names[d])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String scalarText(JsonToken token, JsonParser parser) throws IOException {
+		switch (token) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_NUMBER_FLOAT:
+			return Double.toString(parser.getDoubleValue());
+		default:
+			return parser.getText();
+		}
+	}
+
+	/**
+	 * Reusable extraction result.
+	 */
+	public static final class Result {
+
+		private final List<String>[] values;
+
+		private int[][] ordinals;
+
+		private final boolean[] found;
+
+		private final boolean[] unsupported;
+
+		private final boolean[] resolved;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Result(int size) {
+			this.values = new List[size];
+			this.ordinals = new int[size][];
+			for (int i = 0; i < size; i++) {
+				this.values[i] = new ArrayList<>();
+				this.ordinals[i] = new int[8];
+			}
+			this.found = new boolean[size];
+			this.unsupported = new boolean[size];
+			this.resolved = new boolean[size];
+		}
+
+		/**
+		 * @param path index of the path.
+		 * @return Returns true if the path values were extracted.
+		 */
+		public boolean isResolved(int path) {
+			return this.resolved[path];
+		}
+
+		/**
+		 * @param path index of the path.
+		 * @return Returns the extracted values of a resolved path.
+		 */
+		public List<String> getValues(int path) {
+			return this.values[path];
+		}
+
+		public void clear() {
+			for (int i = 0; i < this.values.length; i++) {
+				this.values[i].clear();
+				this.found[i] = false;
+				this.unsupported[i] = false;
+				this.resolved[i] = false;
+			}
+		}
+
+		private void add(int path, String value, int objectOrdinal) {
+			int size = this.values[path].size();
+			if (size == this.ordinals[path].length) {
+				this.ordinals[path] = Arrays.copyOf(this.ordinals[path], size * 2);
+			}
+			this.ordinals[path][size] = objectOrdinal;
+			this.values[path].add(value);
+		}
+
+		/**
+		 * JsonPath's deep scan returns the value of an object's own field before the values found in its nested
+		 * objects, i.e. in the order the enclosing objects start. Stable insertion sort, as the values are
+		 * usually already in that order.
+		 */
+		private void sortByObjectOrdinal(int path) {
+			List<String> pathValues = this.values[path];
+			int[] pathOrdinals = this.ordinals[path];
+			for (int i = 1; i < pathValues.size(); i++) {
+				int ordinal = pathOrdinals[i];
+				String value = pathValues.get(i);
+				int j = i - 1;
+				while (j >= 0 && pathOrdinals[j] > ordinal) {
+					pathOrdinals[j + 1] = pathOrdinals[j];
+					pathValues.set(j + 1, pathValues.get(j));
+					j--;
+				}
+				pathOrdinals[j + 1] = ordinal;
+				pathValues.set(j + 1, value);
+			}
+		}
+	}
+}
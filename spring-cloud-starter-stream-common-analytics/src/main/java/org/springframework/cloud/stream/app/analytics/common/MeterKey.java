@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Arrays;
+
+import io.micrometer.core.instrument.Tags;
+
+/**
+ * Identifies a single counter series, independently of the {@link io.micrometer.core.instrument.MeterRegistry} it
+ * is registered with. A key is made of the counter name, the base (fixed) tags and the values of the expression
+ * tags, laid out in slots that follow a shared, sorted, array of tag keys. A null slot value means the tag is
+ * absent. The complete {@link Tags} are only built on demand.
+ *
+ * The counter service also uses package private, mutable, probe keys to look up the existing series without
+ * allocating. Probes never escape the lookups: {@link #toImmutable()} copies them before they get stored.
+ *
+ * @author Christian Tzolov
+ */
+public final class MeterKey {
+
+	private static final String[] NO_SLOTS = new String[0];
+
+	private final boolean probe;
+
+	private String name;
+
+	private Tags baseTags;
+
+	private int baseTagsHash;
+
+	private String[] tagKeys;
+
+	private String[] tagValues;
+
+	private int hash;
+
+	private volatile Tags tags;
+
+	public MeterKey(String name, Tags tags) {
+		this(name, tags, NO_SLOTS, NO_SLOTS);
+	}
+
+	/**
+	 * @param name counter name.
+	 * @param baseTags tags shared by every series, e.g. the fixed tags.
+	 * @param tagKeys sorted tag keys of the slots. The array is shared and must not be modified.
+	 * @param tagValues slot values aligned with the tag keys. Null values stand for absent tags.
+	 */
+	public MeterKey(String name, Tags baseTags, String[] tagKeys, String[] tagValues) {
+		this.probe = false;
+		this.reset(name, baseTags, baseTags.hashCode(), tagKeys, tagValues.clone());
+	}
+
+	private MeterKey() {
+		this.probe = true;
+	}
+
+	/**
+	 * @return Returns a new, mutable, key to be used for lookups only.
+	 */
+	static MeterKey probe() {
+		return new MeterKey();
+	}
+
+	/**
+	 * Re-targets this probe key. The tag values array is referenced, not copied.
+	 */
+	MeterKey reset(String name, Tags baseTags, int baseTagsHash, String[] tagKeys, String[] tagValues) {
+		this.name = name;
+		this.baseTags = baseTags;
+		this.baseTagsHash = baseTagsHash;
+		this.tagKeys = tagKeys;
+		this.tagValues = tagValues;
+		this.hash = (31 * name.hashCode() + baseTagsHash) * 31 + Arrays.hashCode(tagValues);
+		this.tags = null;
+		return this;
+	}
+
+	/**
+	 * @return Returns this key if immutable or an immutable copy of this probe.
+	 */
+	public MeterKey toImmutable() {
+		if (!this.probe) {
+			return this;
+		}
+		return new MeterKey(this.name, this.baseTags, this.tagKeys, this.tagValues);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	Tags getBaseTags() {
+		return baseTags;
+	}
+
+	String[] getTagKeys() {
+		return tagKeys;
+	}
+
+	String[] getTagValues() {
+		return tagValues;
+	}
+
+	public Tags getTags() {
+		Tags result = this.tags;
+		if (result == null) {
+			result = this.baseTags;
+			for (int i = 0; i < this.tagValues.length; i++) {
+				if (this.tagValues[i] != null) {
+					result = result.and(this.tagKeys[i], this.tagValues[i]);
+				}
+			}
+			if (!this.probe) {
+				this.tags = result;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof MeterKey)) {
+			return false;
+		}
+		MeterKey that = (MeterKey) o;
+		return this.hash == that.hash
+				&& this.name.equals(that.name)
+				&& Arrays.equals(this.tagValues, that.tagValues)
+				&& Arrays.equals(this.tagKeys, that.tagKeys)
+				&& (this.baseTags == that.baseTags
+						|| (this.baseTagsHash == that.baseTagsHash && this.baseTags.equals(that.baseTags)));
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "MeterKey{" +
+				"name='" + name + '\'' +
+				", tags=" + getTags() +
+				'}';
+	}
+}
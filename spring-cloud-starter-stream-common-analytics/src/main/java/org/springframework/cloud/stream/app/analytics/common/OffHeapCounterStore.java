@@ -0,0 +1,530 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Keeps the counter totals off-heap instead of in one Micrometer {@link io.micrometer.core.instrument.Counter} per
+ * (name, tags) series. Names, tag keys and tag values are interned to int ids, every distinct tag set is interned
+ * to an int id as well, and the total of a series lives in an {@link OffHeapLongDoubleTable} under the
+ * (name id, tag set id) long key.
+ *
+ * The meter registries see the store through {@link FunctionCounter}s that read the current total when the
+ * registries publish. The function counters of the new series are registered in batches, every publish interval,
+ * away from the increments.
+ *
+ * @author Christian Tzolov
+ */
+public class OffHeapCounterStore implements AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(OffHeapCounterStore.class);
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final OffHeapLongDoubleTable totals;
+
+	private final StringDictionary strings = new StringDictionary();
+
+	private final TagSetDictionary tagSets;
+
+	private final ThreadLocal<int[]> tagSetBuffers = ThreadLocal.withInitial(() -> new int[16]);
+
+	/**
+	 * Number of recently seen base tags and slot keys arrays kept in their interned form.
+	 */
+	private static final int INTERNED_CACHE_SIZE = 8;
+
+	/**
+	 * Interned forms of the recently seen base tags, most recent first, looked up by identity. The base tags are
+	 * the fixed tags almost every time, or empty for the message counter.
+	 */
+	private volatile BaseTags[] baseTagsCache = new BaseTags[0];
+
+	/**
+	 * Interned forms of the recently seen slot tag keys, most recent first, looked up by identity. Each counter
+	 * plan shares one slot keys array between all its series, and the message counter has none.
+	 */
+	private volatile SlotKeys[] slotKeysCache = new SlotKeys[0];
+
+	/**
+	 * Series whose function counters were removed from the registries, registered again once incremented.
+	 */
+	private final Set<Long> unpublished = ConcurrentHashMap.newKeySet();
+
+	private final Object newKeysLock = new Object();
+
+	private long[] newKeys = new long[64];
+
+	private int newKeyCount;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param meterRegistries registries to expose the totals to.
+	 * @param initialCapacity expected number of series.
+	 * @param concurrency number of independently locked segments.
+	 * @param publishInterval how often the new series are registered with the meter registries.
+	 */
+	public OffHeapCounterStore(MeterRegistry[] meterRegistries, int initialCapacity, int concurrency,
+			Duration publishInterval) {
+		this.meterRegistries = meterRegistries;
+		this.totals = new OffHeapLongDoubleTable(initialCapacity, concurrency);
+		this.tagSets = new TagSetDictionary(concurrency);
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			this.bindTo(meterRegistry);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-store-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		long intervalMillis = publishInterval.toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::publishQuietly, intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the amount to the total of the series.
+	 * @param series counter series to increment, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 */
+	public void increment(MeterKey series, double amount) {
+		long key = this.toKey(series);
+		if (this.totals.add(key, amount) || (!this.unpublished.isEmpty() && this.unpublished.remove(key))) {
+			synchronized (this.newKeysLock) {
+				if (this.newKeyCount == this.newKeys.length) {
+					this.newKeys = Arrays.copyOf(this.newKeys, this.newKeyCount * 2);
+				}
+				this.newKeys[this.newKeyCount++] = key;
+			}
+		}
+	}
+
+	/**
+	 * Marks the series of a function counter removed from the registries, so that it is registered again on its
+	 * next increment.
+	 * @param id the identifier of the removed function counter.
+	 */
+	public void unpublish(Meter.Id id) {
+		this.unpublished.add(this.toKey(new MeterKey(id.getName(), Tags.of(id.getTags()))));
+	}
+
+	/**
+	 * @param series counter series, possibly a lookup probe.
+	 * @return Returns the total of the series, or NaN if the series was never incremented.
+	 */
+	public double get(MeterKey series) {
+		return this.totals.get(this.toKey(series));
+	}
+
+	/**
+	 * @return Returns the number of series in the store.
+	 */
+	public int size() {
+		return this.totals.size();
+	}
+
+	/**
+	 * @return Returns the off-heap memory allocated by the store, in bytes.
+	 */
+	public long memoryBytes() {
+		return this.totals.memoryBytes() + this.tagSets.memoryBytes();
+	}
+
+	/**
+	 * Registers the function counters of the series added since the previous publish.
+	 */
+	public synchronized void publish() {
+		long[] keys;
+		int count;
+		synchronized (this.newKeysLock) {
+			keys = this.newKeys;
+			count = this.newKeyCount;
+			this.newKeys = new long[64];
+			this.newKeyCount = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			long key = keys[i];
+			String name = this.strings.get((int) (key >>> 32));
+			Tags tags = this.toTags(this.tagSets.get((int) key));
+			for (MeterRegistry meterRegistry : this.meterRegistries) {
+				FunctionCounter.builder(name, this.totals, totals -> totals.get(key))
+						.tags(tags)
+						.register(meterRegistry);
+			}
+		}
+	}
+
+	private void publishQuietly() {
+		try {
+			this.publish();
+		}
+		catch (Exception e) {
+			logger.error("Failed to publish the off-heap counters", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic publishing and publishes the remaining new series.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.publish();
+	}
+
+	/**
+	 * Interns the series into its (name id, tag set id) key. The tag set is laid out as (key id, value id) pairs
+	 * sorted by tag key, merging the base tags with the slot tags, so equal tags always produce the same tag set.
+	 */
+	private long toKey(MeterKey series) {
+		int nameId = this.strings.intern(series.getName());
+		BaseTags base = this.baseTags(series.getBaseTags());
+		String[] tagKeys = series.getTagKeys();
+		SlotKeys slotKeys = this.slotKeys(tagKeys);
+		String[] tagValues = series.getTagValues();
+		int[] tagSet = this.tagSetBuffers.get();
+		if (tagSet.length < 2 * (base.keys.length + tagKeys.length)) {
+			tagSet = new int[2 * (base.keys.length + tagKeys.length)];
+			this.tagSetBuffers.set(tagSet);
+		}
+		int length = 0;
+		int b = 0;
+		for (int slot = 0; slot < tagKeys.length; slot++) {
+			if (tagValues[slot] == null) {
+				continue;
+			}
+			int comparison;
+			while (b < base.keys.length && (comparison = base.keys[b].compareTo(tagKeys[slot])) <= 0) {
+				// On equal keys the slot value overrides the base tag.
+				if (comparison < 0) {
+					tagSet[length++] = base.ids[2 * b];
+					tagSet[length++] = base.ids[2 * b + 1];
+				}
+				b++;
+			}
+			tagSet[length++] = slotKeys.ids[slot];
+			tagSet[length++] = this.strings.intern(tagValues[slot]);
+		}
+		for (; b < base.keys.length; b++) {
+			tagSet[length++] = base.ids[2 * b];
+			tagSet[length++] = base.ids[2 * b + 1];
+		}
+		return ((long) nameId << 32) | this.tagSets.intern(tagSet, length);
+	}
+
+	private BaseTags baseTags(Tags tags) {
+		BaseTags[] cache = this.baseTagsCache;
+		for (BaseTags candidate : cache) {
+			if (candidate.tags == tags) {
+				return candidate;
+			}
+		}
+		BaseTags base = new BaseTags(tags, this.strings);
+		this.baseTagsCache = prepend(cache, base);
+		return base;
+	}
+
+	private SlotKeys slotKeys(String[] keys) {
+		SlotKeys[] cache = this.slotKeysCache;
+		for (SlotKeys candidate : cache) {
+			if (candidate.keys == keys) {
+				return candidate;
+			}
+		}
+		SlotKeys slotKeys = new SlotKeys(keys, this.strings);
+		this.slotKeysCache = prepend(cache, slotKeys);
+		return slotKeys;
+	}
+
+	/**
+	 * Copies the cache with the new entry first, dropping the oldest entry when the cache is full. A racing
+	 * update may be lost, which only costs interning the same entry again.
+	 */
+	private static <T> T[] prepend(T[] cache, T entry) {
+		T[] updated = Arrays.copyOf(cache, Math.min(cache.length + 1, INTERNED_CACHE_SIZE));
+		System.arraycopy(cache, 0, updated, 1, updated.length - 1);
+		updated[0] = entry;
+		return updated;
+	}
+
+	private Tags toTags(int[] tagSet) {
+		List<Tag> tags = new ArrayList<>(tagSet.length / 2);
+		for (int i = 0; i < tagSet.length; i += 2) {
+			tags.add(Tag.of(this.strings.get(tagSet[i]), this.strings.get(tagSet[i + 1])));
+		}
+		return Tags.of(tags);
+	}
+
+	private void bindTo(MeterRegistry registry) {
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "store.series", this, OffHeapCounterStore::size)
+				.description("Number of (name, tags) series in the off-heap counter store")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "store.memory", this,
+				OffHeapCounterStore::memoryBytes)
+				.description("Off-heap memory allocated by the counter store")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+		if (buffer.capacity() >= minCapacity) {
+			return buffer;
+		}
+		ByteBuffer grown = OffHeapLongDoubleTable.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+		ByteBuffer content = buffer.duplicate();
+		content.clear();
+		grown.put(content);
+		grown.clear();
+		return grown;
+	}
+
+	/**
+	 * Interned base tags, sorted by key.
+	 */
+	private static final class BaseTags {
+
+		private final Tags tags;
+
+		private final String[] keys;
+
+		private final int[] ids;
+
+		BaseTags(Tags tags, StringDictionary strings) {
+			List<String> keys = new ArrayList<>();
+			List<Integer> ids = new ArrayList<>();
+			for (Tag tag : tags) {
+				keys.add(tag.getKey());
+				ids.add(strings.intern(tag.getKey()));
+				ids.add(strings.intern(tag.getValue()));
+			}
+			this.tags = tags;
+			this.keys = keys.toArray(new String[0]);
+			this.ids = ids.stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	private static final class SlotKeys {
+
+		private final String[] keys;
+
+		private final int[] ids;
+
+		SlotKeys(String[] keys, StringDictionary strings) {
+			this.keys = keys;
+			this.ids = Arrays.stream(keys).mapToInt(strings::intern).toArray();
+		}
+	}
+
+	/**
+	 * Two-way mapping of the names, tag keys and tag values to dense int ids. Strings are few compared to the
+	 * series they compose, so the dictionary stays on the heap.
+	 */
+	private static final class StringDictionary {
+
+		private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+		private volatile String[] values = new String[64];
+
+		private int count;
+
+		int intern(String value) {
+			Integer id = this.ids.get(value);
+			return (id != null) ? id : this.add(value);
+		}
+
+		private synchronized int add(String value) {
+			Integer id = this.ids.get(value);
+			if (id != null) {
+				return id;
+			}
+			if (this.count == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.count * 2);
+			}
+			this.values[this.count] = value;
+			this.ids.put(value, this.count);
+			return this.count++;
+		}
+
+		String get(int id) {
+			return this.values[id];
+		}
+	}
+
+	/**
+	 * Off-heap mapping of the tag sets, as (key id, value id) sequences, to int ids. The dictionary is split in
+	 * segments, each with its own lock. The id of a tag set is its index in the segment followed by the segment
+	 * number.
+	 */
+	private static final class TagSetDictionary {
+
+		private final TagSetSegment[] segments;
+
+		private final int segmentBits;
+
+		TagSetDictionary(int concurrency) {
+			int segmentCount = OffHeapLongDoubleTable.powerOfTwo(Math.max(concurrency, 1), 1 << 16);
+			this.segments = new TagSetSegment[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				this.segments[i] = new TagSetSegment();
+			}
+			this.segmentBits = Integer.numberOfTrailingZeros(segmentCount);
+		}
+
+		int intern(int[] tagSet, int length) {
+			int hash = length;
+			for (int i = 0; i < length; i++) {
+				hash = 31 * hash + tagSet[i];
+			}
+			long mixed = OffHeapLongDoubleTable.mix(hash);
+			int segment = (int) (mixed >>> 32) & (this.segments.length - 1);
+			int index = this.segments[segment].intern(tagSet, length, (int) mixed, 31 - this.segmentBits);
+			return (index << this.segmentBits) | segment;
+		}
+
+		int[] get(int id) {
+			return this.segments[id & (this.segments.length - 1)].get(id >>> this.segmentBits);
+		}
+
+		long memoryBytes() {
+			long bytes = 0;
+			for (TagSetSegment segment : this.segments) {
+				bytes += segment.memoryBytes();
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Stores every tag set once, as a (length, hash, id, ids...) record appended to an int arena, with an open
+	 * addressing index of the record offsets plus one, and the record offsets in id order.
+	 */
+	private static final class TagSetSegment {
+
+		private ByteBuffer arena = OffHeapLongDoubleTable.allocate(1024);
+
+		private int arenaSize;
+
+		private ByteBuffer index = OffHeapLongDoubleTable.allocate(16 * 4);
+
+		private int indexMask = 15;
+
+		private ByteBuffer offsets = OffHeapLongDoubleTable.allocate(16 * 4);
+
+		private int count;
+
+		synchronized int intern(int[] tagSet, int length, int hash, int idBits) {
+			int slot = hash & this.indexMask;
+			while (true) {
+				int entry = this.index.getInt(slot * 4);
+				if (entry == 0) {
+					break;
+				}
+				int offset = entry - 1;
+				if (this.matches(offset, tagSet, length, hash)) {
+					return this.arena.getInt(offset + 8);
+				}
+				slot = (slot + 1) & this.indexMask;
+			}
+			if (this.count == (1 << idBits) - 1) {
+				throw new IllegalStateException("The off-heap tag set dictionary segment is full: " + this.count);
+			}
+			int offset = this.arenaSize;
+			this.arena = grow(this.arena, offset + (3 + length) * 4);
+			this.arena.putInt(offset, length);
+			this.arena.putInt(offset + 4, hash);
+			this.arena.putInt(offset + 8, this.count);
+			for (int i = 0; i < length; i++) {
+				this.arena.putInt(offset + 12 + i * 4, tagSet[i]);
+			}
+			this.arenaSize += (3 + length) * 4;
+			this.offsets = grow(this.offsets, (this.count + 1) * 4);
+			this.offsets.putInt(this.count * 4, offset);
+			this.index.putInt(slot * 4, offset + 1);
+			if (++this.count > (this.indexMask + 1) * 0.7) {
+				this.rehash();
+			}
+			return this.count - 1;
+		}
+
+		synchronized int[] get(int id) {
+			int offset = this.offsets.getInt(id * 4);
+			int[] tagSet = new int[this.arena.getInt(offset)];
+			for (int i = 0; i < tagSet.length; i++) {
+				tagSet[i] = this.arena.getInt(offset + 12 + i * 4);
+			}
+			return tagSet;
+		}
+
+		synchronized long memoryBytes() {
+			return this.arena.capacity() + this.index.capacity() + this.offsets.capacity();
+		}
+
+		private boolean matches(int offset, int[] tagSet, int length, int hash) {
+			if (this.arena.getInt(offset) != length || this.arena.getInt(offset + 4) != hash) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (this.arena.getInt(offset + 12 + i * 4) != tagSet[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void rehash() {
+			int capacity = (this.indexMask + 1) * 2;
+			this.index = OffHeapLongDoubleTable.allocate(capacity * 4);
+			this.indexMask = capacity - 1;
+			for (int id = 0; id < this.count; id++) {
+				int offset = this.offsets.getInt(id * 4);
+				int slot = this.arena.getInt(offset + 4) & this.indexMask;
+				while (this.index.getInt(slot * 4) != 0) {
+					slot = (slot + 1) & this.indexMask;
+				}
+				this.index.putInt(slot * 4, offset + 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.LongConsumer;
+
+/**
+ * Open addressing hash table of non-negative long keys to double totals, kept in direct (off-heap)
+ * {@link ByteBuffer}s. The table is split in segments, each guarded by its own lock and holding 16 bytes per slot:
+ * the key plus one, so that the zeroed memory of a new buffer reads as empty slots, followed by the total.
+ *
+ * Collisions are resolved with linear probing and a segment doubles its capacity once it is 70% full. Entries are
+ * never removed.
+ *
+ * @author Christian Tzolov
+ */
+public class OffHeapLongDoubleTable {
+
+	private static final int SLOT_BYTES = 16;
+
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+
+	/**
+	 * 1 GB per segment, half of the largest direct buffer.
+	 */
+	private static final int MAX_SEGMENT_CAPACITY = 1 << 26;
+
+	private final Segment[] segments;
+
+	private final int segmentMask;
+
+	/**
+	 * @param initialCapacity expected number of keys, spread over the segments.
+	 * @param concurrency number of segments, rounded up to a power of two.
+	 */
+	public OffHeapLongDoubleTable(int initialCapacity, int concurrency) {
+		int segmentCount = powerOfTwo(Math.max(concurrency, 1), 1 << 16);
+		int segmentCapacity = powerOfTwo(Math.max(initialCapacity / segmentCount, MIN_SEGMENT_CAPACITY),
+				MAX_SEGMENT_CAPACITY);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			this.segments[i] = new Segment(segmentCapacity);
+		}
+		this.segmentMask = segmentCount - 1;
+	}
+
+	/**
+	 * Adds the delta to the total of the key.
+	 * @param key non-negative key.
+	 * @param delta the amount to add.
+	 * @return Returns true if the key was added to the table by this call.
+	 */
+	public boolean add(long key, double delta) {
+		long hash = mix(key);
+		return this.segments[(int) (hash >>> 32) & this.segmentMask].add(key + 1, (int) hash, delta);
+	}
+
+	/**
+	 * @param key non-negative key.
+	 * @return Returns the total of the key, or NaN if the key is not in the table.
+	 */
+	public double get(long key) {
+		long hash = mix(key);
+		return this.segments[(int) (hash >>> 32) & this.segmentMask].get(key + 1, (int) hash);
+	}
+
+	/**
+	 * Passes every key of the table to the consumer, one segment at a time.
+	 */
+	public void forEachKey(LongConsumer consumer) {
+		for (Segment segment : this.segments) {
+			segment.forEachKey(consumer);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * @return Returns the off-heap memory allocated by the table, in bytes.
+	 */
+	public long memoryBytes() {
+		long bytes = 0;
+		for (Segment segment : this.segments) {
+			bytes += segment.slots.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * MurmurHash3 64 bit finalizer. The high half picks the segment and the low half the slot.
+	 */
+	static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	static int powerOfTwo(int value, int max) {
+		int result = Integer.highestOneBit(Math.min(Math.max(value, 1), max));
+		return (result < value && result < max) ? result << 1 : result;
+	}
+
+	static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private static final class Segment {
+
+		private ByteBuffer slots;
+
+		private int mask;
+
+		private volatile int size;
+
+		private int resizeThreshold;
+
+		Segment(int capacity) {
+			this.init(capacity);
+		}
+
+		private void init(int capacity) {
+			this.slots = allocate(capacity * SLOT_BYTES);
+			this.mask = capacity - 1;
+			this.resizeThreshold = (int) (capacity * 0.7);
+		}
+
+		synchronized boolean add(long storedKey, int hash, double delta) {
+			int index = hash & this.mask;
+			while (true) {
+				int offset = index * SLOT_BYTES;
+				long slotKey = this.slots.getLong(offset);
+				if (slotKey == storedKey) {
+					this.slots.putDouble(offset + 8, this.slots.getDouble(offset + 8) + delta);
+					return false;
+				}
+				if (slotKey == 0) {
+					if (this.size >= this.resizeThreshold) {
+						this.resize();
+						return this.add(storedKey, hash, delta);
+					}
+					this.slots.putLong(offset, storedKey);
+					this.slots.putDouble(offset + 8, delta);
+					this.size++;
+					return true;
+				}
+				index = (index + 1) & this.mask;
+			}
+		}
+
+		synchronized double get(long storedKey, int hash) {
+			int index = hash & this.mask;
+			while (true) {
+				int offset = index * SLOT_BYTES;
+				long slotKey = this.slots.getLong(offset);
+				if (slotKey == storedKey) {
+					return this.slots.getDouble(offset + 8);
+				}
+				if (slotKey == 0) {
+					return Double.NaN;
+				}
+				index = (index + 1) & this.mask;
+			}
+		}
+
+		synchronized void forEachKey(LongConsumer consumer) {
+			for (int offset = 0; offset < this.slots.capacity(); offset += SLOT_BYTES) {
+				long slotKey = this.slots.getLong(offset);
+				if (slotKey != 0) {
+					consumer.accept(slotKey - 1);
+				}
+			}
+		}
+
+		private void resize() {
+			int capacity = this.mask + 1;
+			if (capacity >= MAX_SEGMENT_CAPACITY) {
+				throw new IllegalStateException("The off-heap counter table segment is full: " + this.size);
+			}
+			ByteBuffer previous = this.slots;
+			this.init(capacity << 1);
+			for (int offset = 0; offset < previous.capacity(); offset += SLOT_BYTES) {
+				long slotKey = previous.getLong(offset);
+				if (slotKey != 0) {
+					int index = (int) mix(slotKey - 1) & this.mask;
+					while (this.slots.getLong(index * SLOT_BYTES) != 0) {
+						index = (index + 1) & this.mask;
+					}
+					this.slots.putLong(index * SLOT_BYTES, slotKey);
+					this.slots.putDouble(index * SLOT_BYTES + 8, previous.getDouble(offset + 8));
+				}
+			}
+		}
+	}
+}
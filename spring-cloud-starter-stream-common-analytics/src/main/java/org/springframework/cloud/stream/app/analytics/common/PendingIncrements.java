@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Counter increments computed from a batch of messages and not yet applied to the meters. The increments of
+ * identical (name, tags) series are merged. Instances are not thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public final class PendingIncrements {
+
+	private final Map<MeterKey, double[]> increments = new HashMap<>();
+
+	/**
+	 * @param series the series to increment, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 */
+	void add(MeterKey series, double amount) {
+		double[] total = this.increments.get(series);
+		if (total == null) {
+			total = new double[1];
+			this.increments.put(series.toImmutable(), total);
+		}
+		total[0] += amount;
+	}
+
+	/**
+	 * Merges the other pending increments into these ones. The other increments are left unchanged.
+	 * @param other the increments to add.
+	 */
+	public void addAll(PendingIncrements other) {
+		other.forEach(this::add);
+	}
+
+	void forEach(ObjDoubleConsumer<MeterKey> consumer) {
+		for (Map.Entry<MeterKey, double[]> e : this.increments.entrySet()) {
+			consumer.accept(e.getKey(), e.getValue()[0]);
+		}
+	}
+
+	/**
+	 * @return Returns the number of distinct series pending.
+	 */
+	public int size() {
+		return this.increments.size();
+	}
+
+	public boolean isEmpty() {
+		return this.increments.isEmpty();
+	}
+
+	public void clear() {
+		this.increments.clear();
+	}
+}
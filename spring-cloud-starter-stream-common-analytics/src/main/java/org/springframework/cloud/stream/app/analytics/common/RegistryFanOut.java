@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Applies the counter increments to every {@link MeterRegistry} off the calling thread. Every registry has its own
+ * bounded queue of increments and a dedicated drain thread, so a slow registry (blocking push, heavy meter filters)
+ * only delays its own counters. The drain thread takes the queued increments in batches, sums them per series and
+ * applies one increment per series and batch.
+ *
+ * When the queue of a registry is full the increment is handled according to the registry's overflow policy. The
+ * queued increments, the age of the oldest one and the dropped increments are published per registry, tagged with
+ * registry=[registry name].
+ *
+ * @author Christian Tzolov
+ */
+public class RegistryFanOut implements AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(RegistryFanOut.class);
+
+	private final RegistryQueue[] queues;
+
+	private final Thread[] drainers;
+
+	private volatile boolean running = true;
+
+	public RegistryFanOut(MeterRegistry[] meterRegistries, CounterCommonProperties.FanOut properties,
+			int maxCachedCounters) {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-fanout-");
+		threadFactory.setDaemon(true);
+		Set<String> names = new HashSet<>();
+		this.queues = new RegistryQueue[meterRegistries.length];
+		for (int i = 0; i < meterRegistries.length; i++) {
+			String name = registryName(meterRegistries[i]);
+			if (!names.add(name)) {
+				name = name + "-" + i;
+			}
+			this.queues[i] = new RegistryQueue(name, meterRegistries[i], properties.getQueueCapacity(),
+					properties.getBatchSize(), properties.getOverflow(name), maxCachedCounters);
+		}
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			this.bindTo(meterRegistry);
+		}
+		this.drainers = new Thread[this.queues.length];
+		for (int i = 0; i < this.queues.length; i++) {
+			this.drainers[i] = threadFactory.newThread(this.queues[i]::drain);
+			this.drainers[i].start();
+		}
+	}
+
+	/**
+	 * Queues the increment for every registry.
+	 * @param key counter series to increment, possibly a lookup probe.
+	 * @param amount the amount to add.
+	 */
+	public void increment(MeterKey key, double amount) {
+		MeterKey series = key.toImmutable();
+		long now = System.nanoTime();
+		for (RegistryQueue queue : this.queues) {
+			queue.offer(new Update(series, amount, now));
+		}
+	}
+
+	/**
+	 * Forgets the counters resolved for the matching series, e.g. once their meters were removed.
+	 * @param series the series to forget.
+	 */
+	public void remove(Predicate<MeterKey> series) {
+		for (RegistryQueue queue : this.queues) {
+			queue.counters.keySet().removeIf(series);
+		}
+	}
+
+	/**
+	 * Applies the queued increments of every registry on the calling thread, once the batches in flight on the
+	 * drain threads have been applied.
+	 */
+	public void flush() {
+		for (RegistryQueue queue : this.queues) {
+			queue.drainAll();
+		}
+	}
+
+	/**
+	 * Stops the drain threads and applies the remaining increments.
+	 */
+	@Override
+	public void close() {
+		this.running = false;
+		try {
+			for (Thread drainer : this.drainers) {
+				drainer.join(TimeUnit.SECONDS.toMillis(10));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.flush();
+	}
+
+	/**
+	 * @param meterRegistry the registry to name.
+	 * @return Returns the registry class name, in lower case and without the MeterRegistry suffix.
+	 */
+	static String registryName(MeterRegistry meterRegistry) {
+		String name = meterRegistry.getClass().getSimpleName();
+		if (name.endsWith("MeterRegistry") && name.length() > "MeterRegistry".length()) {
+			name = name.substring(0, name.length() - "MeterRegistry".length());
+		}
+		return name.toLowerCase();
+	}
+
+	private void bindTo(MeterRegistry registry) {
+		for (RegistryQueue queue : this.queues) {
+			Tags tags = Tags.of("registry", queue.name);
+			Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "fanout.pending", queue.queue,
+					ArrayBlockingQueue::size)
+					.tags(tags)
+					.description("Counter increments queued for the registry")
+					.register(registry);
+			Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "fanout.lag", queue, RegistryQueue::lagSeconds)
+					.tags(tags)
+					.description("Age of the oldest counter increment queued for the registry")
+					.baseUnit("seconds")
+					.register(registry);
+			FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "fanout.dropped", queue.dropped,
+					LongAdder::sum)
+					.tags(tags)
+					.description("Counter increments dropped because the registry queue was full")
+					.register(registry);
+		}
+	}
+
+	private static final class Update {
+
+		private final MeterKey key;
+
+		private final double amount;
+
+		private final long queuedAt;
+
+		Update(MeterKey key, double amount, long queuedAt) {
+			this.key = key;
+			this.amount = amount;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private final class RegistryQueue {
+
+		private final String name;
+
+		private final MeterRegistry registry;
+
+		private final ArrayBlockingQueue<Update> queue;
+
+		private final int batchSize;
+
+		private final CounterCommonProperties.OverflowPolicy overflow;
+
+		private final int maxCachedCounters;
+
+		private final Map<MeterKey, Counter> counters = new ConcurrentHashMap<>();
+
+		private final LongAdder dropped = new LongAdder();
+
+		// Held while a batch is taken from the queue and applied, so that a flush waits for the batch in flight.
+		private final ReentrantLock lock = new ReentrantLock(true);
+
+		RegistryQueue(String name, MeterRegistry registry, int capacity, int batchSize,
+				CounterCommonProperties.OverflowPolicy overflow, int maxCachedCounters) {
+			this.name = name;
+			this.registry = registry;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.batchSize = batchSize;
+			this.overflow = overflow;
+			this.maxCachedCounters = maxCachedCounters;
+		}
+
+		void offer(Update update) {
+			if (this.queue.offer(update)) {
+				return;
+			}
+			switch (this.overflow) {
+			case BLOCK:
+				try {
+					this.queue.put(update);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					this.dropped.increment();
+				}
+				break;
+			case CALLER_RUNS:
+				this.counter(update.key).increment(update.amount);
+				break;
+			default:
+				this.dropped.increment();
+			}
+		}
+
+		void drain() {
+			List<Update> batch = new ArrayList<>(this.batchSize);
+			try {
+				while (running) {
+					this.lock.lockInterruptibly();
+					try {
+						Update first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+						if (first != null) {
+							batch.add(first);
+							this.queue.drainTo(batch, this.batchSize - 1);
+							this.applyQuietly(batch);
+							batch.clear();
+						}
+					}
+					finally {
+						this.lock.unlock();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void drainAll() {
+			List<Update> batch = new ArrayList<>(this.batchSize);
+			this.lock.lock();
+			try {
+				while (this.queue.drainTo(batch, this.batchSize) > 0) {
+					this.applyQuietly(batch);
+					batch.clear();
+				}
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		double lagSeconds() {
+			Update oldest = this.queue.peek();
+			return (oldest != null) ? (System.nanoTime() - oldest.queuedAt) / 1e9 : 0;
+		}
+
+		private void applyQuietly(List<Update> batch) {
+			Map<MeterKey, double[]> sums = new HashMap<>();
+			for (Update update : batch) {
+				sums.computeIfAbsent(update.key, k -> new double[1])[0] += update.amount;
+			}
+			for (Map.Entry<MeterKey, double[]> e : sums.entrySet()) {
+				try {
+					this.counter(e.getKey()).increment(e.getValue()[0]);
+				}
+				catch (Exception ex) {
+					logger.error("Failed to apply the counter increment of " + e.getKey() + " to the " + this.name
+							+ " registry", ex);
+				}
+			}
+		}
+
+		private Counter counter(MeterKey key) {
+			Counter counter = this.counters.get(key);
+			if (counter == null) {
+				if (this.counters.size() >= this.maxCachedCounters) {
+					this.counters.clear();
+				}
+				counter = this.registry.counter(key.getName(), key.getTags());
+				this.counters.put(key.toImmutable(), counter);
+			}
+			return counter;
+		}
+	}
+}
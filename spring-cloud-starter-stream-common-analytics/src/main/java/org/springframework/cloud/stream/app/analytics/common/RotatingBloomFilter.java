@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.util.Assert;
+
+/**
+ * Time-bounded membership filter of the message keys, made of two Bloom filter generations. New keys go to the
+ * current generation and a key is reported as seen when any of the two generations contains it. Every window the
+ * current generation becomes the previous one and the oldest generation is dropped, so a key is remembered for at
+ * least one window and at most two.
+ *
+ * A generation is sized for the expected number of keys per window and the target false-positive probability, i.e.
+ * the probability to report a new key as seen. The bits are kept in an {@link AtomicLongArray} and set with
+ * compare-and-set, so the filter is thread safe without locks. The k bit indexes of a key are derived from a single
+ * 64 bit hash by double hashing.
+ *
+ * @author Christian Tzolov
+ */
+public class RotatingBloomFilter {
+
+	private final int words;
+
+	private final long bits;
+
+	private final int hashes;
+
+	private final long windowNanos;
+
+	private final LongAdder duplicates = new LongAdder();
+
+	private volatile Generation current;
+
+	private volatile Generation previous;
+
+	private volatile long rotatedAt;
+
+	/**
+	 * @param expectedKeys expected number of distinct keys per window.
+	 * @param falsePositiveProbability target probability to report a new key as seen, at the expected number of
+	 * keys.
+	 * @param window minimum time a key is remembered.
+	 */
+	public RotatingBloomFilter(long expectedKeys, double falsePositiveProbability, Duration window) {
+		Assert.isTrue(expectedKeys > 0, "The expected number of keys must be positive: " + expectedKeys);
+		Assert.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1,
+				"The false-positive probability must be between 0 and 1: " + falsePositiveProbability);
+		double optimalBits = -expectedKeys * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+		this.words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (long) Math.ceil(optimalBits / 64)));
+		this.bits = this.words * 64L;
+		this.hashes = Math.max(1, (int) Math.round((double) this.bits / expectedKeys * Math.log(2)));
+		this.windowNanos = window.toNanos();
+		this.current = new Generation(this.words);
+		this.previous = new Generation(this.words);
+		this.rotatedAt = System.nanoTime();
+	}
+
+	/**
+	 * Remembers the key and tells whether it was seen before, within the window.
+	 * @param key the key to check.
+	 * @return Returns true if the key was probably seen before, false if it was certainly not.
+	 */
+	public boolean checkAndPut(String key) {
+		this.rotateIfDue();
+		long hash = HyperLogLog.hash64(key);
+		boolean seen = !this.current.put(hash, this.hashes, this.bits)
+				|| this.previous.mightContain(hash, this.hashes, this.bits);
+		if (seen) {
+			this.duplicates.increment();
+		}
+		return seen;
+	}
+
+	/**
+	 * Starts a new generation and drops the oldest one.
+	 */
+	public synchronized void rotate() {
+		this.previous = this.current;
+		this.current = new Generation(this.words);
+		this.rotatedAt = System.nanoTime();
+	}
+
+	private void rotateIfDue() {
+		if (System.nanoTime() - this.rotatedAt >= this.windowNanos) {
+			synchronized (this) {
+				long elapsed = System.nanoTime() - this.rotatedAt;
+				if (elapsed >= this.windowNanos) {
+					this.rotate();
+					if (elapsed >= 2 * this.windowNanos) {
+						// Both generations are older than the window.
+						this.rotate();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the estimated probability to report a new key as seen, given the keys of both generations.
+	 */
+	public double getFalsePositiveProbability() {
+		double current = this.current.falsePositiveProbability(this.hashes, this.bits);
+		double previous = this.previous.falsePositiveProbability(this.hashes, this.bits);
+		return current + previous - current * previous;
+	}
+
+	/**
+	 * @return Returns the memory used by the bits of both generations, in bytes.
+	 */
+	public long getMemoryBytes() {
+		return 2 * this.words * 8L;
+	}
+
+	public int getHashes() {
+		return this.hashes;
+	}
+
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "dedup.duplicates", this.duplicates,
+				LongAdder::sum)
+				.description("Messages not counted because their key was seen within the dedup window")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "dedup.fpp", this,
+				RotatingBloomFilter::getFalsePositiveProbability)
+				.description("Estimated probability to drop a message with a new key")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "dedup.memory", this,
+				RotatingBloomFilter::getMemoryBytes)
+				.description("Memory used by the dedup filter")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+
+	private static final class Generation {
+
+		private final AtomicLongArray words;
+
+		private final LongAdder keys = new LongAdder();
+
+		Generation(int words) {
+			this.words = new AtomicLongArray(words);
+		}
+
+		/**
+		 * @return Returns true if at least one bit of the key was not set yet.
+		 */
+		boolean put(long hash, int hashes, long bits) {
+			boolean added = false;
+			int hash1 = (int) hash;
+			int hash2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				long bit = index(hash1, hash2, i, bits);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long value = this.words.get(word);
+				while ((value & mask) == 0) {
+					if (this.words.compareAndSet(word, value, value | mask)) {
+						added = true;
+						break;
+					}
+					value = this.words.get(word);
+				}
+			}
+			if (added) {
+				this.keys.increment();
+			}
+			return added;
+		}
+
+		boolean mightContain(long hash, int hashes, long bits) {
+			int hash1 = (int) hash;
+			int hash2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				long bit = index(hash1, hash2, i, bits);
+				if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * (1 - e^(-k * n / m))^k for the n keys added so far.
+		 */
+		double falsePositiveProbability(int hashes, long bits) {
+			return Math.pow(1 - Math.exp(-hashes * this.keys.doubleValue() / bits), hashes);
+		}
+
+		private static long index(int hash1, int hash2, int i, long bits) {
+			long combined = hash1 + (long) i * hash2;
+			return ((combined < 0) ? ~combined : combined) % bits;
+		}
+	}
+}
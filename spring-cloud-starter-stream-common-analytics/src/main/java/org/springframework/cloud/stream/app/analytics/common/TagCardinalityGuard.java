@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Bounds the number of distinct tag values, per counter and tag key, and the number of distinct tag combinations
+ * (series), per counter, produced by the tag expressions. Values and series admitted before the limit is reached
+ * keep being counted as they are. Beyond the limit they are folded into the overflow value and the drop is
+ * counted by the 'counter.internal.cardinality.overflow' meter.
+ *
+ * @author Christian Tzolov
+ */
+public class TagCardinalityGuard {
+
+	/**
+	 * Tag key of the overflow meter used for the drops caused by the series limit.
+	 */
+	public static final String SERIES_LIMIT_TAG = "*";
+
+	private final MeterRegistry[] meterRegistries;
+
+	private final int maxValuesPerTag;
+
+	private final int maxSeriesPerCounter;
+
+	private final String overflowValue;
+
+	private final Map<String, Map<String, Admitted<String>>> tagValues = new ConcurrentHashMap<>();
+
+	private final Map<String, Admitted<MeterKey>> series = new ConcurrentHashMap<>();
+
+	public TagCardinalityGuard(MeterRegistry[] meterRegistries, int maxValuesPerTag, int maxSeriesPerCounter,
+			String overflowValue) {
+		this.meterRegistries = meterRegistries;
+		this.maxValuesPerTag = maxValuesPerTag;
+		this.maxSeriesPerCounter = maxSeriesPerCounter;
+		this.overflowValue = overflowValue;
+	}
+
+	public String getOverflowValue() {
+		return overflowValue;
+	}
+
+	/**
+	 * @param counterName counter the tag belongs to.
+	 * @param tagKey tag key.
+	 * @param tagValue candidate tag value.
+	 * @return Returns the tag value if admitted or the overflow value otherwise.
+	 */
+	public String admitValue(String counterName, String tagKey, String tagValue) {
+		if (this.maxValuesPerTag <= 0) {
+			return tagValue;
+		}
+		Map<String, Admitted<String>> counterTags = this.tagValues.get(counterName);
+		if (counterTags == null) {
+			counterTags = this.tagValues.computeIfAbsent(counterName, name -> new ConcurrentHashMap<>());
+		}
+		Admitted<String> admitted = counterTags.get(tagKey);
+		if (admitted == null) {
+			admitted = counterTags.computeIfAbsent(tagKey,
+					key -> new Admitted<>(counterName, key, this.maxValuesPerTag, UnaryOperator.identity()));
+		}
+		return admitted.admit(tagValue) ? tagValue : this.overflowValue;
+	}
+
+	/**
+	 * @param counterName counter the series belongs to.
+	 * @param series the series, possibly a lookup probe.
+	 * @return Returns true if the series is within the per counter series limit.
+	 */
+	public boolean admitSeries(String counterName, MeterKey series) {
+		if (this.maxSeriesPerCounter <= 0) {
+			return true;
+		}
+		Admitted<MeterKey> admitted = this.series.get(counterName);
+		if (admitted == null) {
+			admitted = this.series.computeIfAbsent(counterName,
+					name -> new Admitted<>(name, SERIES_LIMIT_TAG, this.maxSeriesPerCounter, MeterKey::toImmutable));
+		}
+		return admitted.admit(series);
+	}
+
+	/**
+	 * Bounded set of the admitted items and the meters counting the rejected ones.
+	 */
+	private class Admitted<T> {
+
+		private final String counterName;
+
+		private final String tagKey;
+
+		private final int limit;
+
+		private final UnaryOperator<T> toImmutable;
+
+		private final Set<T> items = ConcurrentHashMap.newKeySet();
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		private volatile Counter[] overflowCounters;
+
+		Admitted(String counterName, String tagKey, int limit, UnaryOperator<T> toImmutable) {
+			this.counterName = counterName;
+			this.tagKey = tagKey;
+			this.limit = limit;
+			this.toImmutable = toImmutable;
+		}
+
+		boolean admit(T item) {
+			if (this.items.contains(item)) {
+				return true;
+			}
+			// Reserve a slot first so that concurrent admissions never exceed the limit.
+			int current;
+			do {
+				current = this.size.get();
+				if (current >= this.limit) {
+					this.overflow();
+					return false;
+				}
+			}
+			while (!this.size.compareAndSet(current, current + 1));
+
+			if (!this.items.add(this.toImmutable.apply(item))) {
+				this.size.decrementAndGet();
+			}
+			return true;
+		}
+
+		private void overflow() {
+			Counter[] counters = this.overflowCounters;
+			if (counters == null) {
+				counters = new Counter[meterRegistries.length];
+				for (int i = 0; i < meterRegistries.length; i++) {
+					counters[i] = Counter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "cardinality.overflow")
+							.description("Tag values folded into the overflow value by the cardinality limits")
+							.tags("name", this.counterName, "tag", this.tagKey)
+							.register(meterRegistries[i]);
+				}
+				this.overflowCounters = counters;
+			}
+			for (Counter counter : counters) {
+				counter.increment();
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.analytics.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+/**
+ * Top-K mode of the tag expression values. The values of every top-K tag are counted, per counter, in a Count-Min
+ * Sketch and the heavy hitters are kept in a min-heap of the K highest estimates. Only the values currently in the
+ * heap are published as they are, the others are folded into the other value. Memory and cost per value are
+ * constant whatever the number of distinct values, and the number of counters with sketches is bounded.
+ *
+ * A value counted while outside of the top-K increments the other value, so the meter of a heavy hitter counts
+ * from the moment the value entered the top-K. The values that leave the top-K are reported to the eviction
+ * listener, which removes their meters, so only the meters of the current top-K values are published.
+ *
+ * @author Christian Tzolov
+ */
+public class TopKTagValues {
+
+	private final int size;
+
+	private final int width;
+
+	private final int depth;
+
+	private final String otherValue;
+
+	private final int maxCounters;
+
+	private final String[] tagKeys;
+
+	private final boolean[] topKSlots;
+
+	private final EvictionListener evictionListener;
+
+	private final Map<String, HeavyHitters[]> heavyHitters = new ConcurrentHashMap<>();
+
+	private final AtomicInteger counters = new AtomicInteger();
+
+	/**
+	 * @param tagKeys the tag keys of the slots.
+	 * @param topKSlots the tag slots counted in top-K mode.
+	 * @param size number of the heavy hitters kept.
+	 * @param width Count-Min Sketch width.
+	 * @param depth Count-Min Sketch depth.
+	 * @param otherValue value of the values outside the top-K.
+	 * @param maxCounters maximum number of counters with top-K tags.
+	 * @param evictionListener notified of the values that leave the top-K.
+	 */
+	public TopKTagValues(String[] tagKeys, boolean[] topKSlots, int size, int width, int depth, String otherValue,
+			int maxCounters, EvictionListener evictionListener) {
+		Assert.isTrue(size > 0, "The top-K size must be positive: " + size);
+		Assert.isTrue(maxCounters > 0, "The top-K maximum number of counters must be positive: " + maxCounters);
+		this.maxCounters = maxCounters;
+		this.tagKeys = tagKeys;
+		this.topKSlots = topKSlots;
+		this.evictionListener = evictionListener;
+		this.size = size;
+		this.width = width;
+		this.depth = depth;
+		this.otherValue = otherValue;
+	}
+
+	/**
+	 * @return Returns true if the top-K values are counted with the given settings.
+	 */
+	boolean hasSettings(String[] tagKeys, boolean[] topKSlots, int size, int width, int depth, String otherValue,
+			int maxCounters) {
+		return Arrays.equals(this.tagKeys, tagKeys) && Arrays.equals(this.topKSlots, topKSlots) && this.size == size
+				&& this.width == width && this.depth == depth
+				&& this.otherValue.equals(otherValue) && this.maxCounters == maxCounters;
+	}
+
+	/**
+	 * @param counterName counter the tag belongs to.
+	 * @param slot tag slot, counted in top-K mode.
+	 * @param tagValue candidate tag value.
+	 * @return Returns the tag value if it is one of the top-K values of the counter tag, or the other value. All
+	 * the values of the counters past the maximum number of counters are the other value.
+	 */
+	public String admitValue(String counterName, int slot, String tagValue) {
+		HeavyHitters[] counterHeavyHitters = this.heavyHitters.get(counterName);
+		if (counterHeavyHitters == null) {
+			if (this.counters.get() >= this.maxCounters) {
+				return this.otherValue;
+			}
+			counterHeavyHitters = this.heavyHitters.computeIfAbsent(counterName, name -> {
+				// Reserve a counter first so that concurrent counters never exceed the limit.
+				int current;
+				do {
+					current = this.counters.get();
+					if (current >= this.maxCounters) {
+						return null;
+					}
+				}
+				while (!this.counters.compareAndSet(current, current + 1));
+				HeavyHitters[] slotHeavyHitters = new HeavyHitters[this.topKSlots.length];
+				for (int i = 0; i < slotHeavyHitters.length; i++) {
+					if (this.topKSlots[i]) {
+						slotHeavyHitters[i] = new HeavyHitters(name, this.tagKeys[i]);
+					}
+				}
+				return slotHeavyHitters;
+			});
+			if (counterHeavyHitters == null) {
+				return this.otherValue;
+			}
+		}
+		return counterHeavyHitters[slot].offer(tagValue) ? tagValue : this.otherValue;
+	}
+
+	/**
+	 * Listener of the values that leave the top-K.
+	 */
+	@FunctionalInterface
+	public interface EvictionListener {
+
+		/**
+		 * @param counterName counter the tag belongs to.
+		 * @param tagKey tag key, counted in top-K mode.
+		 * @param tagValue the value that left the top-K.
+		 */
+		void evicted(String counterName, String tagKey, String tagValue);
+	}
+
+	/**
+	 * Count-Min Sketch and min-heap, by estimate, of the values with the highest estimates.
+	 */
+	private class HeavyHitters {
+
+		private final String counterName;
+
+		private final String tagKey;
+
+		private final CountMinSketch sketch = new CountMinSketch(width, depth);
+
+		private final String[] values = new String[size];
+
+		private final long[] estimates = new long[size];
+
+		private final Map<String, Integer> positions = new HashMap<>();
+
+		private int heapSize;
+
+		HeavyHitters(String counterName, String tagKey) {
+			this.counterName = counterName;
+			this.tagKey = tagKey;
+		}
+
+		synchronized boolean offer(String value) {
+			long estimate = this.sketch.add(value, 1);
+			Integer position = this.positions.get(value);
+			if (position != null) {
+				this.estimates[position] = estimate;
+				this.siftDown(position);
+				return true;
+			}
+			if (this.heapSize < this.values.length) {
+				this.set(this.heapSize, value, estimate);
+				this.siftUp(this.heapSize++);
+				return true;
+			}
+			if (this.heapSize > 0 && estimate > this.estimates[0]) {
+				String evicted = this.values[0];
+				this.positions.remove(evicted);
+				this.set(0, value, estimate);
+				this.siftDown(0);
+				// Notified while holding the lock, so the evicted value is not admitted again meanwhile.
+				evictionListener.evicted(this.counterName, this.tagKey, evicted);
+				return true;
+			}
+			return false;
+		}
+
+		private void siftUp(int position) {
+			while (position > 0) {
+				int parent = (position - 1) >>> 1;
+				if (this.estimates[parent] <= this.estimates[position]) {
+					return;
+				}
+				this.swap(parent, position);
+				position = parent;
+			}
+		}
+
+		private void siftDown(int position) {
+			while (true) {
+				int smallest = position;
+				int left = 2 * position + 1;
+				int right = left + 1;
+				if (left < this.heapSize && this.estimates[left] < this.estimates[smallest]) {
+					smallest = left;
+				}
+				if (right < this.heapSize && this.estimates[right] < this.estimates[smallest]) {
+					smallest = right;
+				}
+				if (smallest == position) {
+					return;
+				}
+				this.swap(smallest, position);
+				position = smallest;
+			}
+		}
+
+		private void swap(int i, int j) {
+			String value = this.values[i];
+			long estimate = this.estimates[i];
+			this.set(i, this.values[j], this.estimates[j]);
+			this.set(j, value, estimate);
+		}
+
+		private void set(int position, String value, long estimate) {
+			this.values[position] = value;
+			this.estimates[position] = estimate;
+			this.positions.put(value, position);
+		}
+	}
+}
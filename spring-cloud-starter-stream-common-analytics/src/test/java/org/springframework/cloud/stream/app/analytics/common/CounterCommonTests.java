@@ -16,12 +16,26 @@
 
 package org.springframework.cloud.stream.app.analytics.common;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
 import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -33,6 +47,11 @@ import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.cloud.stream.config.SpelExpressionConverterConfiguration;
 import org.springframework.context.annotation.Import;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.json.JsonPathUtils;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.GenericMessage;
 import org.springframework.messaging.support.MessageBuilder;
@@ -43,8 +62,10 @@ import org.springframework.test.context.junit4.SpringRunner;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * @author Christian Tzolov
@@ -82,6 +103,78 @@ public abstract class CounterCommonTests {
 		}
 	}
 
+	@TestPropertySource(properties = {
+			"counter.name=counter666"
+	})
+	public static class ExecutorTests extends CounterCommonTests {
+
+		@Test
+		public void testBatchSlicesAndErrors() throws Exception {
+			List<List<Message<?>>> batches = Collections.synchronizedList(new ArrayList<>());
+			CounterService delegate = new CounterService() {
+
+				@Override
+				public Message<?> count(Message<?> message) {
+					throw new IllegalStateException("Failed");
+				}
+
+				@Override
+				public List<Message<?>> countBatch(List<Message<?>> messages) {
+					batches.add(messages);
+					return messages;
+				}
+			};
+			CounterCommonProperties.Executor properties = new CounterCommonProperties.Executor();
+			properties.setMode(CounterCommonProperties.ExecutorMode.PLATFORM);
+			properties.setPoolSize(2);
+			properties.setKeyExpression(new SpelExpressionParser().parseExpression("payload"));
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			ExecutorCounterService executorCounterService = new ExecutorCounterService(delegate, properties,
+					new MeterRegistry[] { registry }, new StandardEvaluationContext());
+
+			executorCounterService.count(new GenericMessage<>("a"));
+			executorCounterService.countBatch(Arrays.asList(new GenericMessage<>("a"), new GenericMessage<>("b"),
+					new GenericMessage<>("a"), new GenericMessage<>("c"), new GenericMessage<>("b")));
+			executorCounterService.destroy();
+
+			assertThat(registry.find("counter.internal.executor.errors").functionCounter().count(), is(1.0));
+			// One slice per lane, the messages of a key staying in the same slice.
+			assertThat(batches.size() <= 2, is(true));
+			assertThat(batches.stream().mapToInt(List::size).sum(), is(5));
+			long slicedKeys = batches.stream().mapToLong(batch -> batch.stream().map(Message::getPayload).distinct()
+					.count()).sum();
+			assertThat(slicedKeys, is(3L));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.fixed.foo=bar"
+	})
+	public static class ConstantCounterTests extends CounterCommonTests {
+
+		@Autowired
+		private CounterCommonProperties properties;
+
+		@Test
+		public void testCounterSink() {
+			assertThat(counterService instanceof ConstantCounterService, is(true));
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage<>("hello")));
+			counterService.countBatch(Arrays.asList(new GenericMessage<>("a"), new GenericMessage<>("b")));
+			assertThat(meterRegistry.find("message.counter666").tags("foo", "bar").counter().count(), is(15.0));
+
+			// Counted by the default service once the refreshed plan has a tag expression.
+			properties.getTag().setExpression(Collections.singletonMap("tag666",
+					new SpelExpressionParser().parseExpression("payload")));
+			counterService.refresh();
+			assertThat(((ConstantCounterService) counterService).isConstant(), is(false));
+			counterService.count(new GenericMessage<>("hello"));
+			assertThat(meterRegistry.find("message.counter666").tags("foo", "bar").counter().count(), is(16.0));
+			assertThat(meterRegistry.find("counter666").tags("foo", "bar", "tag666", "hello").counter().count(),
+					is(1.0));
+		}
+	}
+
 	@TestPropertySource(properties = {
 			"counter.name=counter666",
 			"counter.tag.expression.foo='bar'",
@@ -109,6 +202,21 @@ public abstract class CounterCommonTests {
 			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage("hello")));
 			assertThat(meterRegistry.find("message.hello").counter().count(), is(13.0));
 		}
+
+		@Test
+		public void testReservedConstantName() {
+			CounterCommonProperties reserved = new CounterCommonProperties();
+			reserved.setNameExpression(new SpelExpressionParser().parseExpression("'counter.internal.x'"));
+			try {
+				new DefaultCounterService(reserved, new MeterRegistry[] { new SimpleMeterRegistry() },
+						new StandardEvaluationContext());
+				fail("IllegalArgumentException expected");
+			}
+			catch (IllegalArgumentException e) {
+				assertThat(e.getMessage(), is("The counter name 'counter.internal.x' uses the reserved prefix "
+						+ "'counter.internal.'"));
+			}
+		}
 	}
 
 
@@ -218,6 +326,704 @@ public abstract class CounterCommonTests {
 		}
 	}
 
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.cache.enabled=true",
+			"counter.cache.max-size=2"
+	})
+	public static class CounterCacheTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage("hello")));
+			counterService.count(new GenericMessage("world"));
+
+			assertThat(meterRegistry.find("counter666").tag("foo", "hello").counter().count(), is(13.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "world").counter().count(), is(1.0));
+
+			assertThat(meterRegistry.find("counter.internal.cache.misses").functionCounter().count(), is(3.0));
+			assertThat(meterRegistry.find("counter.internal.cache.hits").functionCounter().count(), is(25.0));
+			assertThat(meterRegistry.find("counter.internal.cache.evictions").functionCounter().count(), is(1.0));
+			assertThat(meterRegistry.find("counter.internal.cache.size").gauge().value(), is(2.0));
+		}
+
+		@Test
+		public void testSecondChanceEviction() {
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			CounterCache cache = new CounterCache(new MeterRegistry[] { registry }, 2);
+			MeterKey a = new MeterKey("a", Tags.empty());
+			MeterKey b = new MeterKey("b", Tags.empty());
+			cache.get(a);
+			cache.get(b);
+			cache.get(a);
+			// 'b' has not been hit since its insertion, 'a' has.
+			cache.get(new MeterKey("c", Tags.empty()));
+			cache.get(a);
+			assertThat(registry.find("counter.internal.cache.misses").functionCounter().count(), is(3.0));
+			cache.get(b);
+			assertThat(registry.find("counter.internal.cache.misses").functionCounter().count(), is(4.0));
+			assertThat(cache.size(), is(2));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name-expression=payload.substring(0, 5)",
+			"counter.tag.expression.foo='bar'",
+			"counter.tag.expression.test=#jsonPath(payload,'$..test')",
+			"counter.amount-expression=payload.length()",
+			"counter.spel-compiler-mode=immediate"
+	})
+	public static class CompiledExpressionsTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			String payload = "{\"test\": \"Bar\"}";
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage(payload)));
+
+			assertThat(meterRegistry.find("message.{\"tes").counter().count(), is(13.0));
+			assertThat(meterRegistry.find("{\"tes").tag("foo", "bar").tag("test", "Bar").counter().count(),
+					is(13.0 * payload.length()));
+		}
+
+		@Test
+		public void testFallbackBeforeCompilationReport() {
+			Expression interpreted = new SpelExpressionParser().parseExpression("payload.toString()");
+			CounterExpression expression = new CounterExpression("test", interpreted, SpelCompilerMode.IMMEDIATE);
+			StandardEvaluationContext context = new StandardEvaluationContext();
+			// Other evaluations of the compilable expression compile it for String payloads.
+			expression.getExpression().getValue(context, new GenericMessage<>("a"));
+			expression.getExpression().getValue(context, new GenericMessage<>("a"));
+
+			// The compiled expression fails on the first evaluation, before the compilation is reported.
+			assertThat(expression.getValue(context, new GenericMessage<>(1), String.class), is("1"));
+			// The shared, interpreted, expression keeps being interpreted whatever the payload type.
+			assertThat(expression.getValue(context, new GenericMessage<>("a"), String.class), is("a"));
+			assertThat(expression.getValue(context, new GenericMessage<>(2), String.class), is("2"));
+			assertThat(interpreted.getValue(context, new GenericMessage<>("b"), String.class), is("b"));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.aggregation.enabled=true",
+			"counter.aggregation.flush-interval=1h"
+	})
+	public static class AggregationTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage("hello")));
+			assertNull(meterRegistry.find("message.counter666").counter());
+
+			((DefaultCounterService) counterService).flush();
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(13.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "hello").counter().count(), is(13.0));
+
+			counterService.count(new GenericMessage("hello"));
+			((DefaultCounterService) counterService).flush();
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(14.0));
+		}
+
+		@Test
+		public void testIdleKeysRetired() {
+			Map<MeterKey, Double> totals = new HashMap<>();
+			CounterAggregator aggregator = new CounterAggregator(Duration.ofHours(1), 1000,
+					(key, amount) -> totals.merge(key, amount, Double::sum));
+			MeterKey a = new MeterKey("a", Tags.empty());
+			MeterKey b = new MeterKey("b", Tags.empty());
+			aggregator.add(a, 1);
+			aggregator.add(b, 1);
+			aggregator.flush();
+			aggregator.add(a, 1);
+			aggregator.flush();
+			// 'b' had no increment since the previous flush.
+			assertThat(aggregator.size(), is(1));
+
+			aggregator.add(b, 2);
+			aggregator.close();
+			assertThat(totals.get(a), is(2.0));
+			assertThat(totals.get(b), is(3.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.fixed.app=test",
+			"counter.tag.expression.foo=payload",
+			"counter.store.enabled=true",
+			"counter.store.initial-capacity=16",
+			"counter.store.concurrency=2",
+			"counter.store.publish-interval=1h"
+	})
+	public static class OffHeapStoreTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage<>("hello")));
+			IntStream.range(0, 5000).forEach(i -> counterService.count(new GenericMessage<>("v" + i)));
+			assertNull(meterRegistry.find("counter666").functionCounter());
+
+			DefaultCounterService defaultCounterService = (DefaultCounterService) counterService;
+			defaultCounterService.flush();
+			assertThat(meterRegistry.find("message.counter666").tags("app", "test").functionCounter().count(),
+					is(5013.0));
+			assertThat(meterRegistry.find("counter666").tags("app", "test", "foo", "hello").functionCounter().count(),
+					is(13.0));
+			assertThat(meterRegistry.find("counter666").tags("app", "test", "foo", "v4999").functionCounter().count(),
+					is(1.0));
+			assertThat(meterRegistry.find("counter666").functionCounters().size(), is(5001));
+
+			// The same series, with every tag passed as base tags.
+			defaultCounterService.increment("counter666", Tags.of("foo", "hello", "app", "test"), 2.0);
+			assertThat(meterRegistry.find("counter666").tags("app", "test", "foo", "hello").functionCounter().count(),
+					is(15.0));
+
+			assertThat(meterRegistry.find("counter.internal.store.series").gauge().value(), is(5002.0));
+			assertThat(meterRegistry.find("counter.internal.store.memory").gauge().value() > 5002 * 16, is(true));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.checkpoint.enabled=true",
+			"counter.checkpoint.directory=${java.io.tmpdir}/counter-checkpoint-${random.uuid}",
+			"counter.checkpoint.log-interval=1h",
+			"counter.checkpoint.snapshot-interval=1h"
+	})
+	public static class CheckpointTests extends CounterCommonTests {
+
+		@Autowired
+		private CounterCommonProperties properties;
+
+		@Test
+		public void testRestore() throws IOException {
+			CounterCheckpoint checkpoint = ((DefaultCounterService) counterService).getCheckpoint();
+			IntStream.range(0, 13).forEach(i -> counterService.count(new GenericMessage<>("hello")));
+			checkpoint.snapshot();
+			counterService.count(new GenericMessage<>("hello"));
+			counterService.count(new GenericMessage<>("world"));
+			PendingIncrements pending = new PendingIncrements();
+			((DefaultCounterService) counterService).count(new GenericMessage<>("hello"), pending);
+			((DefaultCounterService) counterService).commit(pending, Collections.singletonMap("p0", 41L));
+			checkpoint.appendLog();
+			// A torn record at the end of the log, as left by a crash.
+			Files.write(checkpoint.logPath(1), new byte[] { 0, 0, 0, 42, 1 }, StandardOpenOption.APPEND);
+			assertThat(meterRegistry.find("counter.internal.checkpoint.snapshot").timer().count(), is(1L));
+
+			SimpleMeterRegistry restartedRegistry = new SimpleMeterRegistry();
+			DefaultCounterService restarted = new DefaultCounterService(properties,
+					new MeterRegistry[] { restartedRegistry }, new StandardEvaluationContext());
+			try {
+				assertThat(restartedRegistry.find("message.counter666").counter().count(), is(16.0));
+				assertThat(restartedRegistry.find("counter666").tag("foo", "hello").counter().count(), is(15.0));
+				assertThat(restartedRegistry.find("counter666").tag("foo", "world").counter().count(), is(1.0));
+				assertThat(restartedRegistry.find("counter.internal.checkpoint.recovery").timer().count(), is(1L));
+				assertThat(restarted.getCheckpoint().getOffsets(), equalTo(Collections.singletonMap("p0", 41L)));
+
+				restarted.count(new GenericMessage<>("hello"));
+				assertThat(restartedRegistry.find("counter666").tag("foo", "hello").counter().count(), is(16.0));
+			}
+			finally {
+				restarted.destroy();
+			}
+		}
+
+		@Test
+		public void testRestoreLogMappedInRegions() throws IOException {
+			Path directory = Files.createTempDirectory("counter-checkpoint");
+			MeterRegistry[] registries = new MeterRegistry[] { new SimpleMeterRegistry() };
+			CounterCheckpoint checkpoint = new CounterCheckpoint(registries, directory, Duration.ofHours(1),
+					Duration.ofHours(1));
+			checkpoint.start(UnaryOperator.identity(), (series, amount) -> { });
+			for (int i = 0; i < 10; i++) {
+				checkpoint.add(new MeterKey("counter666", Tags.of("foo", "v" + (i % 3))), 1);
+				checkpoint.appendLog();
+			}
+			long logLength = Files.size(checkpoint.logPath(0));
+			// A torn record at the end of the log, as left by a crash.
+			Files.write(checkpoint.logPath(0), new byte[] { 0, 0, 0, 42, 1 }, StandardOpenOption.APPEND);
+
+			// Every region holds a single record.
+			CounterCheckpoint restarted = new CounterCheckpoint(registries, directory, Duration.ofHours(1),
+					Duration.ofHours(1));
+			restarted.maxMappedBytes = 64;
+			Map<String, Double> restored = new HashMap<>();
+			restarted.start(UnaryOperator.identity(), (series, amount) -> restored.put(
+					series.getTags().stream().findFirst().get().getValue(), amount));
+			try {
+				assertThat(Files.size(checkpoint.logPath(0)), is(logLength));
+				assertThat(restored.get("v0"), is(4.0));
+				assertThat(restored.get("v1"), is(3.0));
+				assertThat(restored.get("v2"), is(3.0));
+			}
+			finally {
+				restarted.close();
+				checkpoint.close();
+			}
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.fixed.env=test",
+			"counter.headers.enabled=true",
+			"counter.checkpoint.enabled=true",
+			"counter.checkpoint.directory=${java.io.tmpdir}/counter-checkpoint-${random.uuid}",
+			"counter.checkpoint.log-interval=1h",
+			"counter.checkpoint.snapshot-interval=1h"
+	})
+	public static class CheckpointHeadersTests extends CounterCommonTests {
+
+		@Autowired
+		private CounterCommonProperties properties;
+
+		@Test
+		public void testRestoredHeaderTotals() {
+			CounterCheckpoint checkpoint = ((DefaultCounterService) counterService).getCheckpoint();
+			IntStream.range(0, 3).forEach(i -> counterService.count(new GenericMessage<>("hello")));
+			checkpoint.snapshot();
+			counterService.count(new GenericMessage<>("hello"));
+			checkpoint.appendLog();
+
+			DefaultCounterService restarted = new DefaultCounterService(properties,
+					new MeterRegistry[] { new SimpleMeterRegistry() }, new StandardEvaluationContext());
+			try {
+				Message<?> counted = restarted.count(new GenericMessage<>("hello"));
+				assertThat(counted.getHeaders().get("counter_count"), is(5.0));
+				assertThat(counted.getHeaders().get("counter_totals"), equalTo(Collections.singletonList(5.0)));
+				restarted.getCheckpoint().snapshot();
+			}
+			finally {
+				restarted.destroy();
+			}
+
+			// The snapshot holds a single entry per series, restored with the totals counted since the restart.
+			SimpleMeterRegistry restartedRegistry = new SimpleMeterRegistry();
+			restarted = new DefaultCounterService(properties, new MeterRegistry[] { restartedRegistry },
+					new StandardEvaluationContext());
+			try {
+				assertThat(restartedRegistry.find("counter.internal.headers.series").gauge().value(), is(2.0));
+				assertThat(restartedRegistry.find("message.counter666").tag("env", "test").counter().count(),
+						is(5.0));
+				assertThat(restartedRegistry.find("counter666").tag("env", "test").tag("foo", "hello").counter()
+						.count(), is(5.0));
+			}
+			finally {
+				restarted.destroy();
+			}
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.dedup.key-expression=payload",
+			"counter.dedup.expected-keys=1000",
+			"counter.dedup.false-positive-probability=0.01"
+	})
+	public static class DedupTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			counterService.count(new GenericMessage<>("a"));
+			counterService.count(new GenericMessage<>("b"));
+			counterService.count(new GenericMessage<>("a"));
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(2.0));
+			assertThat(meterRegistry.find("counter.internal.dedup.duplicates").functionCounter().count(), is(1.0));
+			double fpp = meterRegistry.find("counter.internal.dedup.fpp").gauge().value();
+			assertThat(fpp > 0 && fpp < 0.01, is(true));
+			assertThat(meterRegistry.find("counter.internal.dedup.memory").gauge().value() > 0, is(true));
+
+			// The key is forgotten once it has been rotated out of both generations.
+			RotatingBloomFilter filter = ((DefaultCounterService) counterService).getDedupFilter();
+			filter.rotate();
+			counterService.count(new GenericMessage<>("a"));
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(2.0));
+			filter.rotate();
+			filter.rotate();
+			counterService.count(new GenericMessage<>("a"));
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(3.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.fan-out.enabled=true",
+			"counter.fan-out.queue-capacity=2",
+			"counter.fan-out.registry-overflow.simple=caller-runs"
+	})
+	public static class FanOutTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 100).forEach(i -> counterService.count(new GenericMessage<>("hello")));
+			((DefaultCounterService) counterService).flush();
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(100.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "hello").counter().count(), is(100.0));
+			assertThat(meterRegistry.find("counter.internal.fanout.dropped").tag("registry", "simple")
+					.functionCounter().count(), is(0.0));
+		}
+
+		@Test
+		public void testOverflow() {
+			CounterCommonProperties.FanOut properties = new CounterCommonProperties.FanOut();
+			properties.setQueueCapacity(2);
+			properties.getRegistryOverflow().put("simple", CounterCommonProperties.OverflowPolicy.DROP);
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			RegistryFanOut fanOut = new RegistryFanOut(new MeterRegistry[] { registry }, properties, 10);
+			// Stops the drain threads, so that the increments stay queued.
+			fanOut.close();
+
+			IntStream.range(0, 5).forEach(i -> fanOut.increment(new MeterKey("c", Tags.empty()), 1.0));
+			assertThat(registry.find("counter.internal.fanout.pending").tag("registry", "simple").gauge().value(),
+					is(2.0));
+			assertThat(registry.find("counter.internal.fanout.dropped").tag("registry", "simple")
+					.functionCounter().count(), is(3.0));
+			assertThat(registry.find("counter.internal.fanout.lag").gauge().value() > 0, is(true));
+
+			fanOut.flush();
+			assertThat(registry.find("c").counter().count(), is(2.0));
+			assertThat(registry.find("counter.internal.fanout.lag").gauge().value(), is(0.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload"
+	})
+	public static class CountBatchTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			List<Message<?>> batch = Arrays.asList(new GenericMessage<>("hello"), new GenericMessage<>("world"),
+					new GenericMessage<>("hello"));
+			assertThat(counterService.countBatch(batch), equalTo(batch));
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(3.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "hello").counter().count(), is(2.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "world").counter().count(), is(1.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.cardinality.max-values-per-tag=2"
+	})
+	public static class TagValuesCardinalityTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			Arrays.asList("a", "b", "c", "a", "d").forEach(p -> counterService.count(new GenericMessage<>(p)));
+
+			assertThat(meterRegistry.find("counter666").tag("foo", "a").counter().count(), is(2.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "b").counter().count(), is(1.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "__other__").counter().count(), is(2.0));
+			assertNull(meterRegistry.find("counter666").tag("foo", "c").counter());
+
+			assertThat(meterRegistry.find("counter.internal.cardinality.overflow")
+					.tags("name", "counter666", "tag", "foo").counter().count(), is(2.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.expression.bar=payload.length()",
+			"counter.tag.cardinality.max-series-per-counter=1",
+			"counter.tag.cardinality.overflow-value=other"
+	})
+	public static class SeriesCardinalityTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			Arrays.asList("a", "bb", "a").forEach(p -> counterService.count(new GenericMessage<>(p)));
+
+			assertThat(meterRegistry.find("counter666").tags("foo", "a", "bar", "1").counter().count(), is(2.0));
+			assertThat(meterRegistry.find("counter666").tags("foo", "other", "bar", "other").counter().count(),
+					is(1.0));
+			assertThat(meterRegistry.find("counter.internal.cardinality.overflow")
+					.tags("name", "counter666", "tag", "*").counter().count(), is(1.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.native-json-extraction=true",
+			"counter.amount-expression=#jsonPath(payload,'$.order.total')",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.tag.expression.meta=#jsonPath(payload,'$..meta')",
+			"counter.tag.expression.tag666=#jsonPath(payload,'$..noField')"
+	})
+	public static class NativeJsonExtractionTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			counterService.count(message("{\"items\": [{\"meta\": {\"category\": \"z\"}, \"category\": \"x\"}], "
+					+ "\"order\": {\"total\": 2.5}}"));
+
+			// The own category of an object comes before the nested ones, as with JsonPath.
+			assertThat(meterRegistry.find("counter666").tags("category", "x", "meta", "{category=z}")
+					.counter().count(), is(2.5));
+			assertThat(meterRegistry.find("counter666").tags("category", "z", "meta", "").counter().count(),
+					is(2.5));
+			assertThat(meterRegistry.find("counter666").tagKeys("tag666").counters().size(), is(0));
+		}
+
+		@Test
+		public void testSameValuesAsJsonPath() throws Exception {
+			List<String> jsonPaths = Arrays.asList("$..category", "$..price", "$.store.bicycle.color", "$..flag");
+			JsonPathExtractor extractor = new JsonPathExtractor(jsonPaths);
+			JsonPathExtractor.Result result = extractor.newResult();
+			String json = "{\"store\": {\"book\": [{\"category\": \"reference\", \"price\": 8.95, "
+					+ "\"flag\": true, \"extra\": {\"category\": \"nested\", \"price\": 1e3}}, "
+					+ "{\"category\": \"fiction\", \"price\": 12, \"flag\": null}], "
+					+ "\"bicycle\": {\"color\": \"red\", \"price\": 19.95}}}";
+
+			extractor.extract(json.getBytes(), result);
+
+			for (int i = 0; i < jsonPaths.size(); i++) {
+				assertThat(result.isResolved(i), is(true));
+				Object expected = JsonPathUtils.evaluate(json, jsonPaths.get(i));
+				assertThat(jsonPaths.get(i), result.getValues(i),
+						equalTo(((DefaultCounterService) counterService).toList(expected)));
+			}
+		}
+
+		@Test
+		public void testUnresolvedPaths() {
+			JsonPathExtractor extractor = new JsonPathExtractor(Arrays.asList("$..a", "$.b.c", "$.d"));
+			JsonPathExtractor.Result result = extractor.newResult();
+
+			extractor.extract("{\"a\": {\"x\": 1}, \"b\": [{\"c\": 1}]}", result);
+			assertThat(result.isResolved(0), is(false));
+			assertThat(result.isResolved(1), is(false));
+			assertThat(result.isResolved(2), is(false));
+
+			extractor.extract("not a json", result);
+			assertThat(result.isResolved(0), is(false));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.fixed.foo=bar",
+			"counter.distinct.expression.users=headers['user']",
+			"counter.distinct.expression.devices=#jsonPath(payload,'$..device')"
+	})
+	public static class DistinctCountTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 3000).forEach(i -> counterService.count(MessageBuilder
+					.withPayload(("{\"devices\": [{\"device\": \"d" + (i % 200) + "\"}, {\"device\": \"x\"}]}")
+							.getBytes())
+					.setHeader("user", "user" + (i % 1000))
+					.build()));
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(3000.0));
+			double users = meterRegistry.find("distinct.counter666").tags("foo", "bar", "expression", "users")
+					.gauge().value();
+			assertThat(Math.abs(users - 1000) <= 30, is(true));
+			double devices = meterRegistry.find("distinct.counter666").tags("foo", "bar", "expression", "devices")
+					.gauge().value();
+			assertThat(Math.abs(devices - 201) <= 6, is(true));
+		}
+
+		@Test
+		public void testHyperLogLogAccuracy() {
+			HyperLogLog hyperLogLog = new HyperLogLog(14);
+			IntStream.range(0, 1_000_000).forEach(i -> hyperLogLog.offer("id-" + i));
+			// Four times the standard error of the precision 14.
+			assertThat(Math.abs(hyperLogLog.estimate() - 1_000_000) < 1_000_000 * 4 * 0.0081, is(true));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.expression.bar=payload.length()",
+			"counter.tag.top-k.tags=foo",
+			"counter.tag.top-k.size=2",
+			"counter.tag.top-k.other-value=other"
+	})
+	public static class TopKTagsTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			Arrays.asList("a", "a", "bb", "a", "bb", "c", "bb", "d", "a", "c", "c", "c", "c")
+					.forEach(p -> counterService.count(new GenericMessage<>(p)));
+
+			assertThat(meterRegistry.find("counter666").tags("foo", "a", "bar", "1").counter().count(), is(4.0));
+			// 'c' and 'd' are counted as other until 'c' overtakes 'bb' ('c' has 5 occurrences in total).
+			assertThat(meterRegistry.find("counter666").tags("foo", "other", "bar", "1").counter().count(), is(4.0));
+			assertThat(meterRegistry.find("counter666").tags("foo", "c", "bar", "1").counter().count(), is(2.0));
+			// The meter of 'bb' is removed once 'bb' leaves the top-K, only the current top-K values are published.
+			assertThat(meterRegistry.find("counter666").tags("foo", "bb").counter(), is(nullValue()));
+			assertThat(meterRegistry.find("counter666").tagKeys("foo").counters().size(), is(3));
+		}
+
+		@Test
+		public void testMaxCounters() {
+			List<String> evicted = new ArrayList<>();
+			TopKTagValues topK = new TopKTagValues(new String[] { "foo" }, new boolean[] { true }, 1, 64, 2, "other",
+					1, (counterName, tagKey, tagValue) -> evicted.add(counterName + ":" + tagValue));
+			assertThat(topK.admitValue("first", 0, "a"), is("a"));
+			assertThat(topK.admitValue("first", 0, "b"), is("other"));
+			assertThat(topK.admitValue("first", 0, "b"), is("b"));
+			// Past the limit, the values of the other counters are not counted and all go to the other value.
+			assertThat(topK.admitValue("second", 0, "a"), is("other"));
+			assertThat(topK.admitValue("second", 0, "a"), is("other"));
+			assertThat(evicted, equalTo(Collections.singletonList("first:a")));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.top-k.tags=foo",
+			"counter.tag.top-k.size=1",
+			"counter.tag.top-k.other-value=other",
+			"counter.store.enabled=true",
+			"counter.store.publish-interval=1h"
+	})
+	public static class TopKStoreTests extends CounterCommonTests {
+
+		@Test
+		public void testEvictedValueRepublished() {
+			// 'b' evicts 'a', then 'a' evicts 'b' back.
+			Arrays.asList("a", "b", "b").forEach(p -> counterService.count(new GenericMessage<>(p)));
+			((DefaultCounterService) counterService).flush();
+			assertThat(meterRegistry.find("counter666").tags("foo", "a").functionCounter(), is(nullValue()));
+			assertThat(meterRegistry.find("counter666").tags("foo", "b").functionCounter().count(), is(1.0));
+
+			Arrays.asList("a", "a").forEach(p -> counterService.count(new GenericMessage<>(p)));
+			((DefaultCounterService) counterService).flush();
+			assertThat(meterRegistry.find("counter666").tags("foo", "b").functionCounter(), is(nullValue()));
+			// The off-heap total of the series carries on once the series is registered again.
+			assertThat(meterRegistry.find("counter666").tags("foo", "a").functionCounter().count(), is(2.0));
+			assertThat(meterRegistry.find("counter666").tags("foo", "other").functionCounter().count(), is(2.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo='bar'",
+			"counter.amount-expression=payload",
+			"counter.distribution.enabled=true",
+			"counter.distribution.percentiles=0.5,0.99"
+	})
+	public static class DistributionTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.rangeClosed(1, 1000).forEach(i -> counterService.count(new GenericMessage<>((double) i)));
+
+			assertThat(meterRegistry.find("counter666").tags("foo", "bar").counter().count(), is(500500.0));
+			double median = meterRegistry.find("counter666.percentile").tags("foo", "bar", "phi", "0.5")
+					.gauge().value();
+			assertThat(Math.abs(median - 500) <= 500 * 0.01 + 1, is(true));
+			double p99 = meterRegistry.find("counter666.percentile").tags("foo", "bar", "phi", "0.99")
+					.gauge().value();
+			assertThat(Math.abs(p99 - 990) <= 990 * 0.01 + 1, is(true));
+		}
+
+		@Test
+		public void testMergeAndSerialization() {
+			DDSketch all = new DDSketch(0.01, 2048);
+			DDSketch first = new DDSketch(0.01, 2048);
+			DDSketch second = new DDSketch(0.01, 2048);
+			for (int i = -200; i < 10_000; i++) {
+				double value = Math.signum(i) * Math.pow(1.001, Math.abs(i));
+				all.add(value);
+				(i % 2 == 0 ? first : second).add(value);
+			}
+
+			DDSketch merged = DDSketch.fromByteArray(first.toByteArray());
+			merged.merge(DDSketch.fromByteArray(second.toByteArray()));
+
+			assertThat(merged.getCount(), is(all.getCount()));
+			for (double quantile : new double[] { 0, 0.01, 0.5, 0.9, 0.99, 1 }) {
+				assertThat(merged.getValueAtQuantile(quantile), is(all.getValueAtQuantile(quantile)));
+			}
+			// Rank 101 of the values sorted from -1.001^200 to 1.001^9999.
+			assertThat(Math.abs(all.getValueAtQuantile(0.01) + Math.pow(1.001, 99)) <= Math.pow(1.001, 99) * 0.01,
+					is(true));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.amount-expression=2.5"
+	})
+	public static class PlanRefreshTests extends CounterCommonTests {
+
+		@Autowired
+		private CounterCommonProperties properties;
+
+		@Test
+		public void testCounterSink() {
+			counterService.count(new GenericMessage<>("a"));
+			assertThat(meterRegistry.find("counter666").tags("foo", "a").counter().count(), is(2.5));
+
+			properties.setName("counter777");
+			properties.getTag().setFixed(Collections.singletonMap("app", "x"));
+			counterService.count(new GenericMessage<>("a"));
+			// The plan is only replaced on refresh.
+			assertThat(meterRegistry.find("counter666").tags("foo", "a").counter().count(), is(5.0));
+
+			counterService.refresh();
+			counterService.count(new GenericMessage<>("a"));
+			assertThat(meterRegistry.find("counter666").tags("foo", "a").counter().count(), is(5.0));
+			assertThat(meterRegistry.find("counter777").tags("app", "x", "foo", "a").counter().count(), is(2.5));
+			assertThat(meterRegistry.find("message.counter777").tags("app", "x").counter().count(), is(1.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name-expression=headers['name']",
+			"counter.tag.expression.foo=payload",
+			"counter.tag.expression.bar=payload.length()",
+			"counter.profiling.enabled=true",
+			"counter.profiling.sampling-interval=2"
+	})
+	public static class ProfilingTests extends CounterCommonTests {
+
+		@Test
+		public void testCounterSink() {
+			IntStream.range(0, 10).forEach(i -> counterService.count(MessageBuilder.withPayload("hello")
+					.setHeader("name", "counter666").build()));
+
+			assertThat(meterRegistry.find("counter666").tags("foo", "hello", "bar", "5").counter().count(), is(10.0));
+			assertThat(meterRegistry.find("counter.internal.stage").tags("stage", "name").timer().count(), is(5L));
+			assertThat(meterRegistry.find("counter.internal.stage").tags("stage", "tags").timer().count(), is(5L));
+			// Message counter and tag expression counters.
+			assertThat(meterRegistry.find("counter.internal.stage").tags("stage", "increment").timer().count(),
+					is(10L));
+			assertThat(meterRegistry.find("counter.internal.expression").tags("expression", "tag.expression.foo")
+					.timer().count(), is(5L));
+			assertThat(meterRegistry.find("counter.internal.expression").tags("expression", "tag.expression.bar")
+					.timer().count(), is(5L));
+			assertThat(meterRegistry.find("counter.internal.stage").tags("stage", "json").timer().count(), is(0L));
+
+			try {
+				counterService.count(MessageBuilder.withPayload("hello")
+						.setHeader("name", "counter.internal.stage").build());
+				fail("Reserved counter name");
+			}
+			catch (IllegalArgumentException e) {
+				assertThat(meterRegistry.find("counter.internal.stage").counter(), nullValue());
+			}
+		}
+	}
+
 	private static Message<byte[]> message(String payload) {
 		return MessageBuilder.withPayload(payload.getBytes()).build();
 	}
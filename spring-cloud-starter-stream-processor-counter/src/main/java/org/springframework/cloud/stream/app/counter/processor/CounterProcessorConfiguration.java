@@ -16,18 +16,31 @@
 
 package org.springframework.cloud.stream.app.counter.processor;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.AllNestedConditions;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.Input;
+import org.springframework.cloud.stream.annotation.Output;
 import org.springframework.cloud.stream.annotation.StreamListener;
 import org.springframework.cloud.stream.app.analytics.common.CounterCommonConfiguration;
 import org.springframework.cloud.stream.app.analytics.common.CounterService;
 import org.springframework.cloud.stream.messaging.Processor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.integration.context.IntegrationContextUtils;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.handler.annotation.SendTo;
 
@@ -44,16 +57,123 @@ public class CounterProcessorConfiguration {
 
 	private static final Log logger = LogFactory.getLog(CounterProcessorConfiguration.class);
 
-	@Autowired
-	private CounterProcessorProperties processorProperties;
+	@Configuration
+	@Conditional(PassThroughCondition.class)
+	public static class PassThroughCounterProcessor {
 
-	@Autowired
-	private CounterService counterService;
+		@Autowired
+		private CounterService counterService;
 
-	@StreamListener(Processor.INPUT)
-	@SendTo(Processor.OUTPUT)
-	public Object evaluate(Message<?> input) {
-		this.counterService.count(input);
-		return input;
+		@StreamListener(Processor.INPUT)
+		@SendTo(Processor.OUTPUT)
+		public Object evaluate(Message<?> input) {
+			return this.counterService.count(input);
+		}
+	}
+
+	@Configuration
+	@Conditional(ReactiveCondition.class)
+	public static class ReactiveCounterProcessor {
+
+		@Autowired
+		private CounterProcessorProperties processorProperties;
+
+		@Autowired
+		private CounterService counterService;
+
+		@Bean(destroyMethod = "dispose")
+		public Scheduler counterProcessorScheduler() {
+			return Schedulers.newSingle("counter-processor", true);
+		}
+
+		@StreamListener
+		@Output(Processor.OUTPUT)
+		public Flux<Message<?>> evaluate(@Input(Processor.INPUT) Flux<Message<?>> input) {
+			CounterProcessorProperties.Reactive reactive = this.processorProperties.getReactive();
+			// bufferTimeout is not back pressure aware: a batch flushed by the timeout without pending demand
+			// errors the flux. The batches are queued instead, until the counting scheduler catches up.
+			return input.bufferTimeout(reactive.getBatchSize(), reactive.getBatchTimeout())
+					.onBackpressureBuffer()
+					.publishOn(counterProcessorScheduler())
+					.concatMapIterable(batch -> this.counterService.countBatch(batch));
+		}
+	}
+
+	@Configuration
+	@ConditionalOnProperty(prefix = "counter.processor", name = "output-mode", havingValue = "window")
+	public static class WindowCounterProcessor {
+
+		@Autowired
+		private CounterService counterService;
+
+		// Static, the counter service is created with the increment listeners and is autowired in this configuration.
+		@Bean(destroyMethod = "close")
+		public static WindowedCounterAggregator windowedCounterAggregator(CounterProcessorProperties processorProperties,
+				Processor processor, MeterRegistry[] meterRegistries,
+				@Qualifier(IntegrationContextUtils.INTEGRATION_EVALUATION_CONTEXT_BEAN_NAME) EvaluationContext context) {
+			CounterProcessorProperties.Window window = processorProperties.getWindow();
+			logger.info("Sending the counter aggregates of " + window);
+			return new WindowedCounterAggregator(window, context, meterRegistries, processor.output()::send);
+		}
+
+		@StreamListener(Processor.INPUT)
+		public void evaluate(Message<?> input) {
+			this.counterService.count(input);
+		}
+	}
+
+	@Configuration
+	@ConditionalOnProperty(prefix = "counter.processor", name = "output-mode", havingValue = "delta")
+	public static class DeltaCounterProcessor {
+
+		@Autowired
+		private CounterService counterService;
+
+		// Static, the counter service is created with the increment listeners and is autowired in this configuration.
+		@Bean(destroyMethod = "close")
+		public static DeltaCounterEmitter deltaCounterEmitter(CounterProcessorProperties processorProperties,
+				Processor processor, MeterRegistry[] meterRegistries) {
+			CounterProcessorProperties.Delta delta = processorProperties.getDelta();
+			logger.info("Sending the counter deltas of " + delta);
+			return new DeltaCounterEmitter(delta, meterRegistries, processor.output()::send);
+		}
+
+		@StreamListener(Processor.INPUT)
+		public void evaluate(Message<?> input) {
+			this.counterService.count(input);
+		}
+	}
+
+	static class PassThroughCondition extends AllNestedConditions {
+
+		PassThroughCondition() {
+			super(ConfigurationPhase.REGISTER_BEAN);
+		}
+
+		@ConditionalOnProperty(prefix = "counter.processor", name = "output-mode", havingValue = "passthrough",
+				matchIfMissing = true)
+		static class PassThroughOutput {
+		}
+
+		@ConditionalOnProperty(prefix = "counter.processor.reactive", name = "enabled", havingValue = "false",
+				matchIfMissing = true)
+		static class NotReactive {
+		}
+	}
+
+	static class ReactiveCondition extends AllNestedConditions {
+
+		ReactiveCondition() {
+			super(ConfigurationPhase.REGISTER_BEAN);
+		}
+
+		@ConditionalOnProperty(prefix = "counter.processor", name = "output-mode", havingValue = "passthrough",
+				matchIfMissing = true)
+		static class PassThroughOutput {
+		}
+
+		@ConditionalOnProperty(prefix = "counter.processor.reactive", name = "enabled", havingValue = "true")
+		static class Reactive {
+		}
 	}
 }
@@ -16,7 +16,14 @@
 
 package org.springframework.cloud.stream.app.counter.processor;
 
+import java.time.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.expression.Expression;
 import org.springframework.validation.annotation.Validated;
 
 
@@ -26,4 +33,324 @@ import org.springframework.validation.annotation.Validated;
 @ConfigurationProperties("counter.processor")
 @Validated
 public class CounterProcessorProperties {
+
+	/**
+	 * What the processor sends downstream: 'passthrough' forwards every input message, with the counter headers
+	 * if enabled, 'window' sends one aggregate message per counter series and window instead, 'delta' periodically
+	 * sends the changes of the counters as compact binary messages instead.
+	 */
+	private OutputMode outputMode = OutputMode.PASSTHROUGH;
+
+	/**
+	 * Reactive (Flux based) processing settings. Applies to the passthrough output mode.
+	 */
+	private Reactive reactive = new Reactive();
+
+	/**
+	 * Window settings of the window output mode.
+	 */
+	@Valid
+	private Window window = new Window();
+
+	/**
+	 * Delta settings of the delta output mode.
+	 */
+	@Valid
+	private Delta delta = new Delta();
+
+	public OutputMode getOutputMode() {
+		return outputMode;
+	}
+
+	public void setOutputMode(OutputMode outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	public Reactive getReactive() {
+		return reactive;
+	}
+
+	public Window getWindow() {
+		return window;
+	}
+
+	public Delta getDelta() {
+		return delta;
+	}
+
+	public enum OutputMode {
+
+		/**
+		 * Forwards the input messages, augmented with the counter headers if enabled.
+		 */
+		PASSTHROUGH,
+
+		/**
+		 * Sends the windowed aggregates of the counter increments.
+		 */
+		WINDOW,
+
+		/**
+		 * Sends the changes of the counter totals since the previous sending.
+		 */
+		DELTA
+	}
+
+	public static class Reactive {
+
+		/**
+		 * Counts the incoming messages in micro-batches on a dedicated scheduler, instead of one by one on the
+		 * binder thread. The messages are forwarded in order, once their batch is counted.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Maximum number of messages counted together.
+		 */
+		private int batchSize = 100;
+
+		/**
+		 * Maximum time a message waits for its micro-batch to fill up. The batches completed while the counting
+		 * lags behind are queued in memory, unbounded.
+		 */
+		private Duration batchTimeout = Duration.ofMillis(100);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		public Duration getBatchTimeout() {
+			return batchTimeout;
+		}
+
+		public void setBatchTimeout(Duration batchTimeout) {
+			this.batchTimeout = batchTimeout;
+		}
+
+		@Override
+		public String toString() {
+			return "Reactive{" +
+					"enabled=" + enabled +
+					", batchSize=" + batchSize +
+					", batchTimeout=" + batchTimeout +
+					'}';
+		}
+	}
+
+	public enum LatePolicy {
+
+		/**
+		 * Ignores the late increments.
+		 */
+		DROP,
+
+		/**
+		 * Sends the late increments as late aggregates.
+		 */
+		EMIT
+	}
+
+	public static class Window {
+
+		/**
+		 * Window length.
+		 */
+		private Duration size = Duration.ofMinutes(1);
+
+		/**
+		 * Interval between two consecutive windows. Sliding windows overlap when shorter than the size, the size
+		 * must then be a multiple of the slide. Not set means tumbling windows (slide equal to the size).
+		 */
+		private Duration slide;
+
+		/**
+		 * A SpEL expression (against the incoming Message) computing the event time, in epoch milliseconds, that
+		 * assigns the message increments to windows. Not set means processing time windows.
+		 */
+		private Expression timestampExpression;
+
+		/**
+		 * A SpEL expression (against the incoming Message) computing the partition of the message, e.g.
+		 * headers['kafka_receivedPartitionId']. The event time watermark is the lowest of the highest event time of
+		 * every partition. Not set means a single partition.
+		 */
+		private Expression partitionExpression;
+
+		/**
+		 * How long past its end, in event time, a window waits for the late messages before being sent.
+		 */
+		private Duration allowedLateness = Duration.ZERO;
+
+		/**
+		 * How long, in processing time, a partition without message keeps holding the event time watermark back.
+		 * Past this timeout the idle partition is left out of the watermark until its next message.
+		 */
+		private Duration idleTimeout = Duration.ofMinutes(1);
+
+		/**
+		 * What happens to the increments of messages later than the allowed lateness, i.e. whose windows were all
+		 * sent already: 'drop' ignores them, 'emit' sends them as late aggregates of their slide bucket.
+		 */
+		private LatePolicy latePolicy = LatePolicy.DROP;
+
+		public Duration getSize() {
+			return size;
+		}
+
+		public void setSize(Duration size) {
+			this.size = size;
+		}
+
+		public Duration getSlide() {
+			return slide;
+		}
+
+		public void setSlide(Duration slide) {
+			this.slide = slide;
+		}
+
+		public Expression getTimestampExpression() {
+			return timestampExpression;
+		}
+
+		public void setTimestampExpression(Expression timestampExpression) {
+			this.timestampExpression = timestampExpression;
+		}
+
+		public Expression getPartitionExpression() {
+			return partitionExpression;
+		}
+
+		public void setPartitionExpression(Expression partitionExpression) {
+			this.partitionExpression = partitionExpression;
+		}
+
+		public Duration getAllowedLateness() {
+			return allowedLateness;
+		}
+
+		public void setAllowedLateness(Duration allowedLateness) {
+			this.allowedLateness = allowedLateness;
+		}
+
+		public Duration getIdleTimeout() {
+			return idleTimeout;
+		}
+
+		public void setIdleTimeout(Duration idleTimeout) {
+			this.idleTimeout = idleTimeout;
+		}
+
+		public LatePolicy getLatePolicy() {
+			return latePolicy;
+		}
+
+		public void setLatePolicy(LatePolicy latePolicy) {
+			this.latePolicy = latePolicy;
+		}
+
+		public Duration getComputedSlide() {
+			return (slide != null) ? slide : size;
+		}
+
+		@AssertTrue(message = "the window size must be a positive multiple of the slide")
+		public boolean isSizeMultipleOfSlide() {
+			return size.toMillis() > 0 && getComputedSlide().toMillis() > 0
+					&& size.toMillis() % getComputedSlide().toMillis() == 0;
+		}
+
+		@AssertTrue(message = "the window 'idleTimeout' must be positive")
+		public boolean isIdleTimeoutValid() {
+			return idleTimeout != null && !idleTimeout.isNegative() && !idleTimeout.isZero();
+		}
+
+		@Override
+		public String toString() {
+			return "Window{" +
+					"size=" + size +
+					", slide=" + slide +
+					", timestampExpression=" + timestampExpression +
+					", partitionExpression=" + partitionExpression +
+					", allowedLateness=" + allowedLateness +
+					", idleTimeout=" + idleTimeout +
+					", latePolicy=" + latePolicy +
+					'}';
+		}
+	}
+
+	public static class Delta {
+
+		/**
+		 * Interval between two sendings of the counter deltas. Only the series changed since the previous sending
+		 * are sent.
+		 */
+		private Duration interval = Duration.ofSeconds(10);
+
+		/**
+		 * Maximum number of series deltas per message. Larger deltas are split into several messages.
+		 */
+		@Min(1)
+		private int maxSeriesPerMessage = 10000;
+
+		/**
+		 * Interval between two resets of the interned names and tags. A consumer joining the stream, or having
+		 * missed a message, decodes the deltas again from the next reset on.
+		 */
+		private Duration dictionaryResetInterval = Duration.ofMinutes(10);
+
+		public Duration getInterval() {
+			return interval;
+		}
+
+		public void setInterval(Duration interval) {
+			this.interval = interval;
+		}
+
+		public int getMaxSeriesPerMessage() {
+			return maxSeriesPerMessage;
+		}
+
+		public void setMaxSeriesPerMessage(int maxSeriesPerMessage) {
+			this.maxSeriesPerMessage = maxSeriesPerMessage;
+		}
+
+		public Duration getDictionaryResetInterval() {
+			return dictionaryResetInterval;
+		}
+
+		public void setDictionaryResetInterval(Duration dictionaryResetInterval) {
+			this.dictionaryResetInterval = dictionaryResetInterval;
+		}
+
+		@Override
+		public String toString() {
+			return "Delta{" +
+					"interval=" + interval +
+					", maxSeriesPerMessage=" + maxSeriesPerMessage +
+					", dictionaryResetInterval=" + dictionaryResetInterval +
+					'}';
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CounterProcessorProperties{" +
+				"outputMode=" + outputMode +
+				", reactive=" + reactive +
+				", window=" + window +
+				", delta=" + delta +
+				'}';
+	}
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.counter.processor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.cloud.stream.app.analytics.common.CounterDeltaEncoder;
+import org.springframework.cloud.stream.app.analytics.common.CounterIncrementListener;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
+import org.springframework.cloud.stream.app.analytics.common.MeterKey;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Periodically sends the changes of the counter totals since the previous sending, as the binary messages of a
+ * {@link CounterDeltaEncoder}. Only the series incremented since the previous sending are sent, so a downstream
+ * store can apply the deltas incrementally instead of re-reading the full counter snapshots.
+ *
+ * Every series keeps its running total in a striped {@link DoubleAdder} and the total sent so far, so concurrent
+ * increments are never lost, even when they race with a sending. The series not incremented since the previous
+ * sending are retired, so a sending only scans the recently incremented series. The deltas are only marked as
+ * sent once the output accepted their message, the deltas of a failed sending are sent with the next one.
+ *
+ * @author Christian Tzolov
+ */
+public class DeltaCounterEmitter implements CounterIncrementListener, AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(DeltaCounterEmitter.class);
+
+	private final Map<MeterKey, Total> totals = new ConcurrentHashMap<>();
+
+	/**
+	 * Series retired by the previous sending, with their unsent deltas. Only accessed while holding the lock.
+	 */
+	private List<Map.Entry<MeterKey, Total>> retired = new ArrayList<>();
+
+	private final CounterDeltaEncoder encoder;
+
+	private final int maxSeriesPerMessage;
+
+	private final long dictionaryResetMillis;
+
+	private final Consumer<Message<?>> output;
+
+	private final LongSupplier clock;
+
+	private final LongAdder sentSeries = new LongAdder();
+
+	private final LongAdder sentBytes = new LongAdder();
+
+	private final ScheduledExecutorService scheduler;
+
+	private long nextReset;
+
+	public DeltaCounterEmitter(CounterProcessorProperties.Delta delta, MeterRegistry[] meterRegistries,
+			Consumer<Message<?>> output) {
+		this(delta, meterRegistries, output, System::currentTimeMillis, true);
+	}
+
+	DeltaCounterEmitter(CounterProcessorProperties.Delta delta, MeterRegistry[] meterRegistries,
+			Consumer<Message<?>> output, LongSupplier clock, boolean scheduled) {
+		this.encoder = new CounterDeltaEncoder(UUID.randomUUID().getMostSignificantBits(),
+				delta.getMaxSeriesPerMessage());
+		this.maxSeriesPerMessage = delta.getMaxSeriesPerMessage();
+		this.dictionaryResetMillis = delta.getDictionaryResetInterval().toMillis();
+		this.output = output;
+		this.clock = clock;
+		this.nextReset = clock.getAsLong() + this.dictionaryResetMillis;
+		for (MeterRegistry meterRegistry : meterRegistries) {
+			this.bindTo(meterRegistry);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-delta-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		if (scheduled) {
+			long intervalMillis = delta.getInterval().toMillis();
+			this.scheduler.scheduleWithFixedDelay(this::sendQuietly, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void onIncrement(Message<?> message, MeterKey series, double amount) {
+		Total total = this.totals.get(series);
+		if (total == null || total.retired) {
+			total = this.totals.computeIfAbsent(series.toImmutable(), key -> new Total());
+		}
+		total.total.add(amount);
+	}
+
+	/**
+	 * Sends the series changed since the previous sending, if any.
+	 */
+	public synchronized void send() {
+		long now = this.clock.getAsLong();
+		if (now >= this.nextReset) {
+			this.encoder.reset();
+			this.nextReset = now + this.dictionaryResetMillis;
+		}
+		Map<MeterKey, Double> deltas = new LinkedHashMap<>();
+		Map<MeterKey, Runnable> markers = new LinkedHashMap<>();
+		for (Map.Entry<MeterKey, Total> e : this.retired) {
+			this.collect(e.getKey(), e.getValue(), deltas, markers);
+		}
+		List<Map.Entry<MeterKey, Total>> retiring = new ArrayList<>();
+		for (Map.Entry<MeterKey, Total> e : this.totals.entrySet()) {
+			if (!this.collect(e.getKey(), e.getValue(), deltas, markers)) {
+				e.getValue().retired = true;
+				this.totals.remove(e.getKey(), e.getValue());
+				retiring.add(e);
+			}
+		}
+		try {
+			if (!deltas.isEmpty()) {
+				this.send(deltas, new ArrayList<>(markers.values()), now);
+			}
+		}
+		finally {
+			// The previously retired series are kept until their deltas, including the late ones, are sent.
+			for (Map.Entry<MeterKey, Total> e : this.retired) {
+				if (e.getValue().total.sum() != e.getValue().sent) {
+					retiring.add(e);
+				}
+			}
+			this.retired = retiring;
+		}
+	}
+
+	/**
+	 * Sends the encoded deltas, marking the deltas of every message as sent once the output accepted it.
+	 */
+	private void send(Map<MeterKey, Double> deltas, List<Runnable> markers, long now) {
+		List<byte[]> payloads = this.encoder.encode(deltas, now);
+		for (int i = 0; i < payloads.size(); i++) {
+			byte[] payload = payloads.get(i);
+			try {
+				this.output.accept(MessageBuilder.withPayload(payload)
+						.setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE)
+						.build());
+			}
+			catch (RuntimeException e) {
+				// The strings and series defined by the lost messages are defined again after a reset.
+				this.encoder.reset();
+				throw e;
+			}
+			this.sentBytes.add(payload.length);
+			int from = i * this.maxSeriesPerMessage;
+			int to = Math.min(from + this.maxSeriesPerMessage, markers.size());
+			for (int j = from; j < to; j++) {
+				markers.get(j).run();
+			}
+			this.sentSeries.add(to - from);
+		}
+	}
+
+	/**
+	 * Adds the delta of the series since its previous sending, if any, with the marker setting it as sent.
+	 * @return Returns false if the series has not been incremented since its previous sending.
+	 */
+	private boolean collect(MeterKey key, Total t, Map<MeterKey, Double> deltas, Map<MeterKey, Runnable> markers) {
+		double total = t.total.sum();
+		double delta = total - t.sent;
+		if (delta == 0) {
+			return false;
+		}
+		deltas.merge(key, delta, Double::sum);
+		Runnable marker = () -> t.sent = total;
+		markers.merge(key, marker, (first, second) -> () -> {
+			first.run();
+			second.run();
+		});
+		return true;
+	}
+
+	/**
+	 * @return Returns the number of series incremented since the previous sending.
+	 */
+	public int size() {
+		return this.totals.size();
+	}
+
+	private void sendQuietly() {
+		try {
+			this.send();
+		}
+		catch (Exception e) {
+			logger.error("Failed to send the counter deltas", e);
+		}
+	}
+
+	private void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "delta.series", this.sentSeries,
+				LongAdder::sum)
+				.description("Series deltas sent")
+				.register(registry);
+		FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "delta.bytes", this.sentBytes,
+				LongAdder::sum)
+				.description("Encoded bytes of the series deltas sent")
+				.baseUnit("bytes")
+				.register(registry);
+		Gauge.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "delta.dictionary", this.encoder,
+				CounterDeltaEncoder::getDictionarySize)
+				.description("Number of names, tags and series interned since the last dictionary reset")
+				.register(registry);
+	}
+
+	/**
+	 * Stops the periodic sending and sends the last deltas.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.sendQuietly();
+	}
+
+	private static class Total {
+
+		private final DoubleAdder total = new DoubleAdder();
+
+		// Only accessed while holding the emitter lock.
+		private double sent;
+
+		private volatile boolean retired;
+	}
+}
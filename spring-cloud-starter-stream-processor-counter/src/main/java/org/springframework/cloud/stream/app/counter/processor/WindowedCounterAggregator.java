@@ -0,0 +1,517 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.counter.processor;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.cloud.stream.app.analytics.common.CounterIncrementListener;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
+import org.springframework.cloud.stream.app.analytics.common.MeterKey;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Aggregates the counter increments in tumbling or sliding windows and sends one aggregate message per counter
+ * series and window. Every series keeps its sums and counts in a ring of slide long time buckets, held in primitive
+ * arrays. The ring spans the buckets of the windows not sent yet and grows when the event times spread further.
+ *
+ * In processing time, the increments are assigned to windows by their arrival time and the windows are sent at the
+ * slide boundaries. In event time, the increments are assigned to windows by the timestamp expression of their
+ * message. The watermark is the lowest of the highest event time seen on every active partition, and a window is sent
+ * once the watermark passes its end plus the allowed lateness. A partition without message for longer than the idle
+ * timeout no longer holds the watermark back, until its next message. When every partition is idle the watermark is
+ * the highest of their event times. The watermark never moves backwards. The revoked partitions can be dropped with
+ * {@link #revokePartitions(Collection)}. The increments of a message whose windows were all sent
+ * already are late: dropped or sent as late aggregates of their slide bucket, depending on the late policy, and
+ * counted by the 'counter.internal.window.late' meter.
+ *
+ * The aggregate payload is a map of the series 'name' and 'tags', the window 'start' and 'end' epoch milliseconds,
+ * the increments 'count' and the amounts 'sum', and 'late' for the late aggregates. Series without increments in the
+ * window are not sent and are dropped once they have no increment in the windows not sent yet.
+ *
+ * @author Christian Tzolov
+ */
+public class WindowedCounterAggregator implements CounterIncrementListener, AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(WindowedCounterAggregator.class);
+
+	public static final String LATE_METER_NAME = DefaultCounterService.INTERNAL_METER_PREFIX + "window.late";
+
+	private static final String SINGLE_PARTITION = "";
+
+	/**
+	 * Bound of the ring length, which would only be reached by event times spread over far too many windows.
+	 */
+	private static final int MAX_RING_BUCKETS = 1 << 16;
+
+	private final long slideMillis;
+
+	/**
+	 * Number of buckets per window.
+	 */
+	private final int windowBuckets;
+
+	private final long allowedLatenessMillis;
+
+	private final long idleTimeoutMillis;
+
+	private final CounterProcessorProperties.LatePolicy latePolicy;
+
+	private final Expression timestampExpression;
+
+	private final Expression partitionExpression;
+
+	private final EvaluationContext context;
+
+	private final Consumer<Message<?>> output;
+
+	private final LongSupplier clock;
+
+	private final Counter[] lateCounters;
+
+	private final Map<MeterKey, Ring> rings = new ConcurrentHashMap<>();
+
+	/**
+	 * Highest event time and last message time per partition.
+	 */
+	private final Map<Object, PartitionTime> partitionTimes = new ConcurrentHashMap<>();
+
+	private final LongAccumulator watermark = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+	private final ThreadLocal<EventTime> eventTimes = ThreadLocal.withInitial(EventTime::new);
+
+	private final LongAccumulator firstBucket = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+	/**
+	 * Late aggregates of the emit late policy, per series and bucket. Guarded by its own lock.
+	 */
+	private final Map<MeterKey, Map<Long, double[]>> lateAggregates = new HashMap<>();
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Last bucket of the last window sent.
+	 */
+	private volatile long lastSentBucket = Long.MIN_VALUE;
+
+	public WindowedCounterAggregator(CounterProcessorProperties.Window window, EvaluationContext context,
+			MeterRegistry[] meterRegistries, Consumer<Message<?>> output) {
+		this(window, context, meterRegistries, output, System::currentTimeMillis, true);
+	}
+
+	WindowedCounterAggregator(CounterProcessorProperties.Window window, EvaluationContext context,
+			MeterRegistry[] meterRegistries, Consumer<Message<?>> output, LongSupplier clock, boolean scheduled) {
+		this.slideMillis = window.getComputedSlide().toMillis();
+		this.windowBuckets = (int) (window.getSize().toMillis() / this.slideMillis);
+		this.allowedLatenessMillis = window.getAllowedLateness().toMillis();
+		this.idleTimeoutMillis = window.getIdleTimeout().toMillis();
+		this.latePolicy = window.getLatePolicy();
+		this.timestampExpression = window.getTimestampExpression();
+		this.partitionExpression = window.getPartitionExpression();
+		this.context = context;
+		this.output = output;
+		this.clock = clock;
+		this.lateCounters = new Counter[meterRegistries.length];
+		for (int i = 0; i < meterRegistries.length; i++) {
+			this.lateCounters[i] = Counter.builder(LATE_METER_NAME)
+					.tag("policy", this.latePolicy.name().toLowerCase())
+					.description("Counter increments later than the allowed lateness")
+					.register(meterRegistries[i]);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-window-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		if (scheduled) {
+			long initialDelay = this.slideMillis - Math.floorMod(clock.getAsLong(), this.slideMillis);
+			this.scheduler.scheduleAtFixedRate(this::sendQuietly, initialDelay, this.slideMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void onIncrement(Message<?> message, MeterKey series, double amount) {
+		long bucket = Math.floorDiv(this.eventTime(message), this.slideMillis);
+		this.firstBucket.accumulate(bucket);
+		while (true) {
+			Ring ring = this.rings.get(series);
+			if (ring == null) {
+				ring = this.rings.computeIfAbsent(series.toImmutable(), key -> new Ring(this.windowBuckets + 1));
+			}
+			int result = ring.add(bucket, amount);
+			if (result == Ring.ADDED) {
+				return;
+			}
+			if (result == Ring.LATE) {
+				this.late(series, bucket, amount);
+				return;
+			}
+			// Dropped by a concurrent send, retry with a new ring.
+			this.rings.remove(series, ring);
+		}
+	}
+
+	/**
+	 * Evaluates the event time and partition once per message and counting thread.
+	 */
+	private long eventTime(Message<?> message) {
+		if (this.timestampExpression == null) {
+			return this.clock.getAsLong();
+		}
+		EventTime eventTime = this.eventTimes.get();
+		if (eventTime.message != message) {
+			Object timestamp = this.timestampExpression.getValue(this.context, message);
+			eventTime.timestamp = (timestamp != null) ? toEpochMillis(timestamp) : this.clock.getAsLong();
+			eventTime.message = message;
+			Object partition = (this.partitionExpression != null) ?
+					this.partitionExpression.getValue(this.context, message) : null;
+			if (partition == null) {
+				partition = SINGLE_PARTITION;
+			}
+			PartitionTime partitionTime = this.partitionTimes.get(partition);
+			if (partitionTime == null) {
+				partitionTime = this.partitionTimes.computeIfAbsent(partition, p -> new PartitionTime());
+			}
+			partitionTime.eventTime.accumulate(eventTime.timestamp);
+			long now = this.clock.getAsLong();
+			// Written at most once per millisecond.
+			if (partitionTime.lastSeen != now) {
+				partitionTime.lastSeen = now;
+			}
+		}
+		return eventTime.timestamp;
+	}
+
+	private static long toEpochMillis(Object timestamp) {
+		if (timestamp instanceof Number) {
+			return ((Number) timestamp).longValue();
+		}
+		if (timestamp instanceof Date) {
+			return ((Date) timestamp).getTime();
+		}
+		if (timestamp instanceof Instant) {
+			return ((Instant) timestamp).toEpochMilli();
+		}
+		return Long.parseLong(timestamp.toString());
+	}
+
+	/**
+	 * @return Returns the current watermark: the clock in processing time, the lowest of the active partition highest
+	 * event times in event time, or Long.MIN_VALUE if no event was seen yet.
+	 */
+	public long getWatermark() {
+		if (this.timestampExpression == null) {
+			return this.clock.getAsLong();
+		}
+		long now = this.clock.getAsLong();
+		long active = Long.MAX_VALUE;
+		long idle = Long.MIN_VALUE;
+		for (PartitionTime partitionTime : this.partitionTimes.values()) {
+			long eventTime = partitionTime.eventTime.get();
+			if (now - partitionTime.lastSeen > this.idleTimeoutMillis) {
+				idle = Math.max(idle, eventTime);
+			}
+			else {
+				active = Math.min(active, eventTime);
+			}
+		}
+		this.watermark.accumulate((active != Long.MAX_VALUE) ? active : idle);
+		return this.watermark.get();
+	}
+
+	/**
+	 * Drops the revoked partitions, e.g. from a binder rebalance listener, so that they no longer hold the watermark
+	 * back.
+	 * @param partitions the revoked partitions, as computed by the partition expression.
+	 */
+	public void revokePartitions(Collection<?> partitions) {
+		for (Object partition : partitions) {
+			this.partitionTimes.remove(partition);
+		}
+	}
+
+	private void late(MeterKey series, long bucket, double amount) {
+		for (Counter lateCounter : this.lateCounters) {
+			lateCounter.increment();
+		}
+		if (this.latePolicy == CounterProcessorProperties.LatePolicy.EMIT) {
+			synchronized (this.lateAggregates) {
+				Map<Long, double[]> seriesAggregates = this.lateAggregates.get(series);
+				if (seriesAggregates == null) {
+					seriesAggregates = new HashMap<>();
+					this.lateAggregates.put(series.toImmutable(), seriesAggregates);
+				}
+				double[] aggregate = seriesAggregates.computeIfAbsent(bucket, b -> new double[2]);
+				aggregate[0]++;
+				aggregate[1] += amount;
+			}
+		}
+	}
+
+	/**
+	 * Sends the aggregates of the windows closed by the watermark, and the pending late aggregates.
+	 */
+	public synchronized void send() {
+		long watermark = this.getWatermark();
+		long first = this.firstBucket.get();
+		if (watermark != Long.MIN_VALUE && first != Long.MAX_VALUE) {
+			// A window is closed once the watermark passes its end plus the allowed lateness.
+			long lastClosed = Math.floorDiv(watermark - this.allowedLatenessMillis, this.slideMillis) - 1;
+			long window = (this.lastSentBucket == Long.MIN_VALUE) ? first : this.lastSentBucket + 1;
+			for (; window <= lastClosed; window++) {
+				if (this.rings.isEmpty()) {
+					this.lastSentBucket = lastClosed;
+					break;
+				}
+				this.lastSentBucket = window;
+				this.sendWindow(window);
+			}
+		}
+		this.sendLateAggregates();
+	}
+
+	private void sendWindow(long lastBucket) {
+		long firstBucket = lastBucket - this.windowBuckets + 1;
+		long start = firstBucket * this.slideMillis;
+		long end = (lastBucket + 1) * this.slideMillis;
+		double[] aggregate = new double[2];
+		for (Map.Entry<MeterKey, Ring> e : this.rings.entrySet()) {
+			// Keeps the ring while it has increments in the windows not sent yet.
+			if (!e.getValue().aggregate(firstBucket, lastBucket, lastBucket - this.windowBuckets + 2, aggregate)) {
+				this.rings.remove(e.getKey(), e.getValue());
+			}
+			if (aggregate[0] > 0) {
+				this.output.accept(MessageBuilder.withPayload(
+						toPayload(e.getKey(), start, end, aggregate, false)).build());
+			}
+		}
+	}
+
+	private void sendLateAggregates() {
+		Map<MeterKey, Map<Long, double[]>> late;
+		synchronized (this.lateAggregates) {
+			if (this.lateAggregates.isEmpty()) {
+				return;
+			}
+			late = new HashMap<>(this.lateAggregates);
+			this.lateAggregates.clear();
+		}
+		late.forEach((series, seriesAggregates) -> seriesAggregates.forEach((bucket, aggregate) ->
+				this.output.accept(MessageBuilder.withPayload(toPayload(series, bucket * this.slideMillis,
+						(bucket + 1) * this.slideMillis, aggregate, true)).build())));
+	}
+
+	private static Map<String, Object> toPayload(MeterKey series, long start, long end, double[] aggregate,
+			boolean late) {
+		Map<String, String> tags = new LinkedHashMap<>();
+		for (Tag tag : series.getTags()) {
+			tags.put(tag.getKey(), tag.getValue());
+		}
+		Map<String, Object> payload = new LinkedHashMap<>();
+		payload.put("name", series.getName());
+		payload.put("tags", tags);
+		payload.put("start", start);
+		payload.put("end", end);
+		payload.put("count", (long) aggregate[0]);
+		payload.put("sum", aggregate[1]);
+		if (late) {
+			payload.put("late", true);
+		}
+		return payload;
+	}
+
+	private void sendQuietly() {
+		try {
+			this.send();
+		}
+		catch (Exception e) {
+			logger.error("Failed to send the windowed counter aggregates", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic sending and sends the closed windows still pending.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.sendQuietly();
+	}
+
+	/**
+	 * Last evaluated message of a counting thread.
+	 */
+	private static final class EventTime {
+
+		private Message<?> message;
+
+		private long timestamp;
+	}
+
+	private static final class PartitionTime {
+
+		private final LongAccumulator eventTime = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+		/**
+		 * Clock time of the last message of the partition.
+		 */
+		private volatile long lastSeen;
+	}
+
+	/**
+	 * Per series ring of time buckets, indexed by bucket number modulo the ring length.
+	 */
+	private final class Ring {
+
+		static final int ADDED = 0;
+
+		static final int LATE = 1;
+
+		static final int DROPPED = 2;
+
+		private long[] buckets;
+
+		private long[] counts;
+
+		private double[] sums;
+
+		private long lastBucket = Long.MIN_VALUE;
+
+		private boolean dropped;
+
+		Ring(int length) {
+			this.buckets = new long[length];
+			Arrays.fill(this.buckets, Long.MIN_VALUE);
+			this.counts = new long[length];
+			this.sums = new double[length];
+		}
+
+		/**
+		 * Adds the increment to its bucket, unless all the windows of the bucket were sent already.
+		 * @return Returns ADDED, LATE or DROPPED if the ring was dropped and can not be added to anymore.
+		 */
+		synchronized int add(long bucket, double amount) {
+			if (this.dropped) {
+				return DROPPED;
+			}
+			// Read under the ring lock, which a send holds while aggregating, so the windows are sent complete.
+			long lastSent = lastSentBucket;
+			if (lastSent != Long.MIN_VALUE && bucket + windowBuckets - 1 <= lastSent) {
+				return LATE;
+			}
+			long firstOpen = (lastSent == Long.MIN_VALUE) ? Long.MIN_VALUE : lastSent - windowBuckets + 2;
+			int i = this.index(bucket);
+			if (this.buckets[i] != bucket) {
+				if (this.buckets[i] != Long.MIN_VALUE && this.buckets[i] >= firstOpen) {
+					this.grow(bucket, firstOpen);
+					i = this.index(bucket);
+				}
+				this.buckets[i] = bucket;
+				this.counts[i] = 0;
+				this.sums[i] = 0;
+			}
+			this.counts[i]++;
+			this.sums[i] += amount;
+			this.lastBucket = Math.max(this.lastBucket, bucket);
+			return ADDED;
+		}
+
+		private int index(long bucket) {
+			return (int) Math.floorMod(bucket, (long) this.buckets.length);
+		}
+
+		/**
+		 * Grows the ring until the bucket and all the open buckets fit without collision.
+		 */
+		private void grow(long bucket, long firstOpen) {
+			long[] oldBuckets = this.buckets;
+			long[] oldCounts = this.counts;
+			double[] oldSums = this.sums;
+			int length = oldBuckets.length;
+			boolean fits = false;
+			while (!fits) {
+				length *= 2;
+				if (length > MAX_RING_BUCKETS) {
+					throw new IllegalStateException("The event time of bucket " + bucket + " is too far from the "
+							+ "open windows, starting at bucket " + firstOpen + ", check the timestamp expression");
+				}
+				this.buckets = new long[length];
+				Arrays.fill(this.buckets, Long.MIN_VALUE);
+				this.counts = new long[length];
+				this.sums = new double[length];
+				fits = true;
+				for (int j = 0; j < oldBuckets.length && fits; j++) {
+					if (oldBuckets[j] != Long.MIN_VALUE && oldBuckets[j] >= firstOpen) {
+						int k = this.index(oldBuckets[j]);
+						fits = this.buckets[k] == Long.MIN_VALUE;
+						this.buckets[k] = oldBuckets[j];
+						this.counts[k] = oldCounts[j];
+						this.sums[k] = oldSums[j];
+					}
+				}
+				int k = this.index(bucket);
+				fits = fits && (this.buckets[k] == Long.MIN_VALUE);
+			}
+		}
+
+		/**
+		 * Sums the buckets from first to last, included, into the count and sum of the aggregate.
+		 * @return Returns false if the ring has no increment since the first open bucket, in which case it is dropped.
+		 */
+		synchronized boolean aggregate(long first, long last, long firstOpen, double[] aggregate) {
+			aggregate[0] = 0;
+			aggregate[1] = 0;
+			for (int i = 0; i < this.buckets.length; i++) {
+				if (this.buckets[i] >= first && this.buckets[i] <= last) {
+					aggregate[0] += this.counts[i];
+					aggregate[1] += this.sums[i];
+				}
+			}
+			this.dropped = this.lastBucket < firstOpen;
+			return !this.dropped;
+		}
+	}
+}
@@ -16,9 +16,21 @@
 
 package org.springframework.cloud.stream.app.counter.processor;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -27,18 +39,26 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringBootConfiguration;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.app.analytics.common.CounterDeltaDecoder;
+import org.springframework.cloud.stream.app.analytics.common.MeterKey;
 import org.springframework.cloud.stream.messaging.Processor;
 import org.springframework.cloud.stream.test.binder.MessageCollector;
 import org.springframework.context.annotation.Import;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * @author Christian Tzolov
@@ -93,6 +113,313 @@ public abstract class CounterProcessorIntegrationTests {
 		}
 	}
 
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.headers.enabled=true"
+	})
+	public static class CounterHeadersTests extends CounterProcessorIntegrationTests {
+
+		@Test
+		public void testOne() {
+
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).build());
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).setHeader("index", 1).build());
+
+			messageCollector.forChannel(channels.output()).poll();
+			Message<?> received = messageCollector.forChannel(channels.output()).poll();
+
+			assertThat(received.getPayload().toString(), equalTo(jsonBooksStore));
+			assertThat(received.getHeaders().get("index"), is(1));
+			assertThat(received.getHeaders().get("counter_name"), is("books"));
+			assertThat(received.getHeaders().get("counter_count"), is(2.0));
+			assertThat(received.getHeaders().get("counter_tags"), equalTo(Collections.singletonMap("category",
+					Arrays.asList("reference", "fiction", "fiction", "fiction", "fiction"))));
+			assertThat(received.getHeaders().get("counter_totals"), equalTo(Arrays.asList(2.0, 5.0, 6.0, 7.0, 8.0)));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.processor.reactive.enabled=true",
+			"counter.processor.reactive.batch-size=2"
+	})
+	public static class ReactiveCounterTests extends CounterProcessorIntegrationTests {
+
+		@Test
+		public void testOne() throws InterruptedException {
+
+			for (int i = 0; i < 3; i++) {
+				channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).setHeader("index", i)
+						.build());
+			}
+
+			for (int i = 0; i < 3; i++) {
+				Message<?> received = messageCollector.forChannel(channels.output()).poll(10, TimeUnit.SECONDS);
+				assertThat(received.getPayload().toString(), equalTo(jsonBooksStore));
+				assertThat(received.getHeaders().get("index"), is(i));
+			}
+
+			assertThat(meterRegistry.find("message.books").counter().count(), is(3.0));
+			Collection<Counter> fictionCounters =
+					meterRegistry.find("books").tag("category", "fiction").counters();
+			assertThat(fictionCounters.stream().mapToDouble(c -> c.count()).sum(), is(12.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.processor.output-mode=window",
+			"counter.processor.window.size=600ms",
+			"counter.processor.window.slide=200ms"
+	})
+	public static class WindowCounterTests extends CounterProcessorIntegrationTests {
+
+		@Test
+		@SuppressWarnings("unchecked")
+		public void testOne() throws Exception {
+
+			for (int i = 0; i < 3; i++) {
+				channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).build());
+			}
+
+			// The increments are sent in every window overlapping their bucket, i.e. size / slide = 3 times.
+			ObjectMapper objectMapper = new ObjectMapper();
+			double messages = 0;
+			double fiction = 0;
+			while (messages < 9 || fiction < 36) {
+				Message<?> received = messageCollector.forChannel(channels.output()).poll(10, TimeUnit.SECONDS);
+				assertThat(received, notNullValue());
+				Object payload = received.getPayload();
+				Map<String, Object> aggregate = objectMapper.readValue(
+						(payload instanceof byte[]) ? new String((byte[]) payload) : payload.toString(), Map.class);
+				long start = ((Number) aggregate.get("start")).longValue();
+				long end = ((Number) aggregate.get("end")).longValue();
+				assertThat(end - start, is(600L));
+				Map<String, String> tags = (Map<String, String>) aggregate.get("tags");
+				if ("message.books".equals(aggregate.get("name"))) {
+					messages += ((Number) aggregate.get("sum")).doubleValue();
+				}
+				else if ("fiction".equals(tags.get("category"))) {
+					fiction += ((Number) aggregate.get("count")).doubleValue();
+				}
+			}
+			assertThat(messages, is(9.0));
+			assertThat(fiction, is(36.0));
+			assertThat(meterRegistry.find("message.books").counter().count(), is(3.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.processor.output-mode=window",
+			"counter.processor.window.size=1s",
+			"counter.processor.window.timestamp-expression=headers['ts']",
+			"counter.processor.window.partition-expression=headers['p']",
+			"counter.processor.window.late-policy=emit"
+	})
+	public static class EventTimeWindowCounterTests extends CounterProcessorIntegrationTests {
+
+		@Test
+		@SuppressWarnings("unchecked")
+		public void testOne() throws Exception {
+
+			// Increasing event times, so that the watermark never closes a window early whenever the sending runs.
+			long[][] partitionTimestamps = { { 0, 1000 }, { 1, 1200 }, { 0, 1500 }, { 0, 2500 }, { 1, 3100 } };
+			for (long[] partitionTimestamp : partitionTimestamps) {
+				channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes())
+						.setHeader("p", partitionTimestamp[0])
+						.setHeader("ts", partitionTimestamp[1])
+						.build());
+			}
+
+			// Watermark: min(2500, 3100), only the [1000, 2000) window is closed.
+			ObjectMapper objectMapper = new ObjectMapper();
+			Map<String, Object> aggregate = objectMapper.readValue(poll(), Map.class);
+			assertThat(aggregate.get("name"), is("message.books"));
+			assertThat(((Number) aggregate.get("start")).longValue(), is(1000L));
+			assertThat(((Number) aggregate.get("end")).longValue(), is(2000L));
+			assertThat(((Number) aggregate.get("count")).longValue(), is(3L));
+
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes())
+					.setHeader("p", 0)
+					.setHeader("ts", 500)
+					.build());
+
+			Map<String, Object> late = objectMapper.readValue(poll(), Map.class);
+			assertThat(late.get("late"), is(true));
+			assertThat(((Number) late.get("start")).longValue(), is(0L));
+			assertThat(((Number) late.get("count")).longValue(), is(1L));
+			assertThat(meterRegistry.find("counter.internal.window.late").tags("policy", "emit").counter().count(),
+					is(1.0));
+		}
+
+		@Test
+		public void testIdlePartition() {
+			CounterProcessorProperties.Window window = new CounterProcessorProperties.Window();
+			window.setSize(Duration.ofSeconds(1));
+			window.setTimestampExpression(new SpelExpressionParser().parseExpression("headers['ts']"));
+			window.setPartitionExpression(new SpelExpressionParser().parseExpression("headers['p']"));
+			window.setIdleTimeout(Duration.ofSeconds(10));
+			AtomicLong clock = new AtomicLong();
+			List<Message<?>> sent = new ArrayList<>();
+			WindowedCounterAggregator aggregator = new WindowedCounterAggregator(window,
+					new StandardEvaluationContext(), new MeterRegistry[] { new SimpleMeterRegistry() }, sent::add,
+					clock::get, false);
+			MeterKey series = new MeterKey("books", Tags.empty());
+
+			aggregator.onIncrement(timestamped(0, 1000), series, 1);
+			aggregator.onIncrement(timestamped(1, 1100), series, 1);
+			aggregator.onIncrement(timestamped(0, 2500), series, 1);
+			aggregator.send();
+			// Held back by the partition 1.
+			assertThat(aggregator.getWatermark(), is(1100L));
+			assertThat(sent.isEmpty(), is(true));
+
+			clock.set(20_000);
+			aggregator.onIncrement(timestamped(0, 3500), series, 1);
+			aggregator.send();
+			assertThat(aggregator.getWatermark(), is(3500L));
+			assertThat(sent.size(), is(2));
+
+			// The idle partition wakes up with older events, the watermark does not move backwards.
+			aggregator.onIncrement(timestamped(1, 1200), series, 1);
+			assertThat(aggregator.getWatermark(), is(3500L));
+			aggregator.revokePartitions(Collections.singleton(1));
+			aggregator.onIncrement(timestamped(0, 4500), series, 1);
+			assertThat(aggregator.getWatermark(), is(4500L));
+			aggregator.close();
+		}
+
+		private static Message<?> timestamped(int partition, long timestamp) {
+			return MessageBuilder.withPayload("book").setHeader("p", partition).setHeader("ts", timestamp).build();
+		}
+
+		private String poll() throws InterruptedException {
+			Message<?> received = messageCollector.forChannel(channels.output()).poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			Object payload = received.getPayload();
+			return (payload instanceof byte[]) ? new String((byte[]) payload) : payload.toString();
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.amount-expression=0.25",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.processor.output-mode=delta",
+			"counter.processor.delta.interval=1h",
+			"counter.processor.delta.max-series-per-message=2"
+	})
+	public static class DeltaCounterTests extends CounterProcessorIntegrationTests {
+
+		@Autowired
+		private DeltaCounterEmitter emitter;
+
+		@Test
+		public void testOne() {
+
+			CounterDeltaDecoder decoder = new CounterDeltaDecoder();
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).build());
+			emitter.send();
+
+			// Three series, over two messages.
+			List<CounterDeltaDecoder.Delta> deltas = new ArrayList<>();
+			deltas.addAll(decoder.decode(poll()));
+			deltas.addAll(decoder.decode(poll()));
+			assertThat(messageCollector.forChannel(channels.output()).poll(), nullValue());
+			assertThat(deltas.size(), is(3));
+			assertThat(amount(deltas, "message.books", Tags.empty()), is(1.0));
+			assertThat(amount(deltas, "books", Tags.of("category", "fiction")), is(1.0));
+			assertThat(amount(deltas, "books", Tags.of("category", "reference")), is(0.25));
+
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).build());
+			channels.input().send(MessageBuilder.withPayload(jsonBooksStore.getBytes()).build());
+			emitter.send();
+			byte[] first = poll();
+			byte[] second = poll();
+			deltas = new ArrayList<>(decoder.decode(first));
+			deltas.addAll(decoder.decode(second));
+			assertThat(amount(deltas, "message.books", Tags.empty()), is(2.0));
+			assertThat(amount(deltas, "books", Tags.of("category", "fiction")), is(2.0));
+			assertThat(amount(deltas, "books", Tags.of("category", "reference")), is(0.5));
+
+			// Nothing changed, nothing sent.
+			emitter.send();
+			assertThat(messageCollector.forChannel(channels.output()).poll(), nullValue());
+			assertThat(meterRegistry.find("counter.internal.delta.series").functionCounter().count(), is(6.0));
+
+			// A consumer joining between two resets can not resolve the interned series.
+			try {
+				new CounterDeltaDecoder().decode(second);
+				fail("IllegalStateException expected");
+			}
+			catch (IllegalStateException e) {
+				assertThat(e.getMessage(), containsString("waiting for its next reset"));
+			}
+		}
+
+		@Test
+		public void testFailedSendAndRetirement() {
+			AtomicBoolean failing = new AtomicBoolean(true);
+			List<byte[]> sent = new ArrayList<>();
+			DeltaCounterEmitter deltaEmitter = new DeltaCounterEmitter(new CounterProcessorProperties.Delta(),
+					new MeterRegistry[] { new SimpleMeterRegistry() }, message -> {
+						if (failing.get()) {
+							throw new IllegalStateException("Output unavailable");
+						}
+						sent.add((byte[]) message.getPayload());
+					}, () -> 0L, false);
+			Message<?> message = MessageBuilder.withPayload("book").build();
+			MeterKey first = new MeterKey("books", Tags.of("category", "fiction"));
+			MeterKey second = new MeterKey("books", Tags.of("category", "reference"));
+
+			deltaEmitter.onIncrement(message, first, 1.0);
+			try {
+				deltaEmitter.send();
+				fail("IllegalStateException expected");
+			}
+			catch (IllegalStateException e) {
+				assertThat(e.getMessage(), is("Output unavailable"));
+			}
+
+			// The deltas of the failed sending are sent with the next one, which resets the dictionary.
+			failing.set(false);
+			deltaEmitter.onIncrement(message, second, 2.0);
+			deltaEmitter.send();
+			CounterDeltaDecoder decoder = new CounterDeltaDecoder();
+			List<CounterDeltaDecoder.Delta> deltas = decoder.decode(sent.get(0));
+			assertThat(amount(deltas, "books", Tags.of("category", "fiction")), is(1.0));
+			assertThat(amount(deltas, "books", Tags.of("category", "reference")), is(2.0));
+
+			// Series not incremented since the previous sending are retired.
+			deltaEmitter.send();
+			assertThat(sent.size(), is(1));
+			assertThat(deltaEmitter.size(), is(0));
+
+			deltaEmitter.onIncrement(message, first, 3.0);
+			deltaEmitter.send();
+			deltas = decoder.decode(sent.get(1));
+			assertThat(deltas.size(), is(1));
+			assertThat(amount(deltas, "books", Tags.of("category", "fiction")), is(3.0));
+			assertThat(deltaEmitter.size(), is(1));
+			deltaEmitter.close();
+		}
+
+		private byte[] poll() {
+			Message<?> received = messageCollector.forChannel(channels.output()).poll();
+			assertThat(received, notNullValue());
+			return (byte[]) received.getPayload();
+		}
+
+		private static double amount(List<CounterDeltaDecoder.Delta> deltas, String name, Tags tags) {
+			return deltas.stream().filter(d -> d.getName().equals(name) && d.getTags().equals(tags))
+					.mapToDouble(CounterDeltaDecoder.Delta::getAmount).sum();
+		}
+	}
+
 	@SpringBootConfiguration
 	@EnableAutoConfiguration
 	@Import(CounterProcessorConfiguration.class)
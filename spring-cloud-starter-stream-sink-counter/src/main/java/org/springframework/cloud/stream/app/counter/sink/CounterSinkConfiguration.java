@@ -16,18 +16,33 @@
 
 package org.springframework.cloud.stream.app.counter.sink;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.app.analytics.common.ConstantCounterService;
 import org.springframework.cloud.stream.app.analytics.common.CounterCommonConfiguration;
 import org.springframework.cloud.stream.app.analytics.common.CounterService;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
 import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
+import org.springframework.expression.EvaluationContext;
 import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.integration.context.IntegrationContextUtils;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
 
 /**
  *
@@ -40,12 +55,53 @@ public class CounterSinkConfiguration {
 
 	private static final Log logger = LogFactory.getLog(CounterSinkConfiguration.class);
 
+	@Autowired
+	private CounterSinkProperties sinkProperties;
+
 	@Autowired
 	private CounterService counterService;
 
+	@Autowired(required = false)
+	private ExactlyOnceCounter exactlyOnceCounter;
+
+	@Bean(destroyMethod = "close")
+	@ConditionalOnProperty(name = "counter.sink.exactly-once.enabled", havingValue = "true")
+	public static ExactlyOnceCounter exactlyOnceCounter(CounterService counterService,
+			CounterSinkProperties sinkProperties, MeterRegistry[] meterRegistries,
+			@Qualifier(IntegrationContextUtils.INTEGRATION_EVALUATION_CONTEXT_BEAN_NAME) EvaluationContext context) {
+		if (counterService instanceof ConstantCounterService) {
+			// The offsets are committed together with the increments of the default counting path.
+			counterService = ((ConstantCounterService) counterService).getDelegate();
+		}
+		if (!(counterService instanceof DefaultCounterService)) {
+			throw new IllegalStateException("The exactly-once counting requires the 'direct' counter executor mode");
+		}
+		return new ExactlyOnceCounter((DefaultCounterService) counterService, sinkProperties.getExactlyOnce(),
+				meterRegistries, context);
+	}
+
 	@ServiceActivator(inputChannel = Sink.INPUT)
 	public void count(Message<?> message) {
-		this.counterService.count(message);
+		boolean batch = this.sinkProperties.isBatchMode() && message.getPayload() instanceof Collection;
+		if (this.exactlyOnceCounter != null) {
+			this.exactlyOnceCounter.count(message, batch ? toBatch(message) : Collections.singletonList(message));
+		}
+		else if (batch) {
+			this.counterService.countBatch(toBatch(message));
+		}
+		else {
+			this.counterService.count(message);
+		}
+	}
+
+	private static List<Message<?>> toBatch(Message<?> message) {
+		Collection<?> payloads = (Collection<?>) message.getPayload();
+		List<Message<?>> batch = new ArrayList<>(payloads.size());
+		for (Object payload : payloads) {
+			batch.add((payload instanceof Message) ? (Message<?>) payload
+					: new GenericMessage<>(payload, message.getHeaders()));
+		}
+		return batch;
 	}
 
 }
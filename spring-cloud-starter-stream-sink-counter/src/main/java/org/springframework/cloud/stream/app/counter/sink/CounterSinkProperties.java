@@ -16,7 +16,15 @@
 
 package org.springframework.cloud.stream.app.counter.sink;
 
+import java.time.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.validation.annotation.Validated;
 
 
@@ -26,4 +34,145 @@ import org.springframework.validation.annotation.Validated;
 @ConfigurationProperties("counter.sink")
 @Validated
 public class CounterSinkProperties {
+
+	/**
+	 * Treats collection payloads as a batch of messages. Every element is counted as a separate message that
+	 * carries the headers of the batch message, and the increments of the whole batch are merged before
+	 * reaching the meter registries.
+	 */
+	private boolean batchMode = false;
+
+	/**
+	 * Exactly-once counting settings.
+	 */
+	@Valid
+	private ExactlyOnce exactlyOnce = new ExactlyOnce();
+
+	public boolean isBatchMode() {
+		return batchMode;
+	}
+
+	public void setBatchMode(boolean batchMode) {
+		this.batchMode = batchMode;
+	}
+
+	public ExactlyOnce getExactlyOnce() {
+		return exactlyOnce;
+	}
+
+	public void setExactlyOnce(ExactlyOnce exactlyOnce) {
+		this.exactlyOnce = exactlyOnce;
+	}
+
+	@Override
+	public String toString() {
+		return "CounterSinkProperties{" +
+				"batchMode=" + batchMode +
+				", exactlyOnce=" + exactlyOnce +
+				'}';
+	}
+
+	public static class ExactlyOnce {
+
+		private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+
+		/**
+		 * Buffers the counter increments and commits them in batches, together with the offset of the last
+		 * counted message of every partition. Messages at or below the committed offset of their partition are
+		 * redeliveries and are not counted again. Requires the 'direct' executor mode.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * A SpEL expression (against the incoming Message) that evaluates to the partition of the message.
+		 */
+		@NotNull
+		private Expression partitionExpression = PARSER.parseExpression(
+				"headers['kafka_receivedTopic'] + '-' + headers['kafka_receivedPartitionId']");
+
+		/**
+		 * A SpEL expression (against the incoming Message) that evaluates to the offset of the message in its
+		 * partition. The offsets must increase within a partition. Messages without offset are counted without
+		 * deduplication.
+		 */
+		@NotNull
+		private Expression offsetExpression = PARSER.parseExpression("headers['kafka_offset']");
+
+		/**
+		 * A SpEL expression evaluated, after every commit, against the last committed message of every partition,
+		 * e.g. to acknowledge the consumed offsets.
+		 */
+		private Expression ackExpression = PARSER.parseExpression("headers['kafka_acknowledgment']?.acknowledge()");
+
+		/**
+		 * Number of counted messages that triggers a commit.
+		 */
+		@Min(1)
+		private int commitSize = 1000;
+
+		/**
+		 * Maximum time the counted messages wait for their commit.
+		 */
+		private Duration commitInterval = Duration.ofSeconds(1);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public Expression getPartitionExpression() {
+			return partitionExpression;
+		}
+
+		public void setPartitionExpression(Expression partitionExpression) {
+			this.partitionExpression = partitionExpression;
+		}
+
+		public Expression getOffsetExpression() {
+			return offsetExpression;
+		}
+
+		public void setOffsetExpression(Expression offsetExpression) {
+			this.offsetExpression = offsetExpression;
+		}
+
+		public Expression getAckExpression() {
+			return ackExpression;
+		}
+
+		public void setAckExpression(Expression ackExpression) {
+			this.ackExpression = ackExpression;
+		}
+
+		public int getCommitSize() {
+			return commitSize;
+		}
+
+		public void setCommitSize(int commitSize) {
+			this.commitSize = commitSize;
+		}
+
+		public Duration getCommitInterval() {
+			return commitInterval;
+		}
+
+		public void setCommitInterval(Duration commitInterval) {
+			this.commitInterval = commitInterval;
+		}
+
+		@Override
+		public String toString() {
+			return "ExactlyOnce{" +
+					"enabled=" + enabled +
+					", partitionExpression=" + partitionExpression +
+					", offsetExpression=" + offsetExpression +
+					", ackExpression=" + ackExpression +
+					", commitSize=" + commitSize +
+					", commitInterval=" + commitInterval +
+					'}';
+		}
+	}
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.counter.sink;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.cloud.stream.app.analytics.common.CounterCheckpoint;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
+import org.springframework.cloud.stream.app.analytics.common.PendingIncrements;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Counts every (partition, offset) once. The increments of the counted messages are buffered and committed to the
+ * meters in batches, together with the offset of the last counted message of every partition. Messages at or below
+ * the last counted offset of their partition are redeliveries and are skipped.
+ *
+ * When the counter checkpoint is enabled the committed offsets are persisted with the counter totals, in the same
+ * atomic step, and restored on startup. The acknowledgments, if any, are only sent once the commit is in the
+ * checkpoint log, so a crash between two commits leads to redeliveries that are counted once.
+ *
+ * @author Christian Tzolov
+ */
+public class ExactlyOnceCounter implements AutoCloseable {
+
+	private static final Log logger = LogFactory.getLog(ExactlyOnceCounter.class);
+
+	private final DefaultCounterService counterService;
+
+	private final EvaluationContext context;
+
+	private final Expression partitionExpression;
+
+	private final Expression offsetExpression;
+
+	private final Expression ackExpression;
+
+	private final int commitSize;
+
+	private final Map<String, Long> committedOffsets;
+
+	private final Map<String, Long> pendingOffsets = new HashMap<>();
+
+	/**
+	 * Last counted message of every partition, acknowledged after the commit.
+	 */
+	private final Map<String, Message<?>> pendingAcks = new LinkedHashMap<>();
+
+	private final PendingIncrements pending = new PendingIncrements();
+
+	/**
+	 * Increments of the messages being counted by the calling thread, before they are added to the pending ones.
+	 */
+	private final ThreadLocal<PendingIncrements> counted = ThreadLocal.withInitial(PendingIncrements::new);
+
+	private int pendingMessages;
+
+	private final LongAdder redelivered = new LongAdder();
+
+	private final Timer[] commitTimers;
+
+	private final ScheduledExecutorService scheduler;
+
+	public ExactlyOnceCounter(DefaultCounterService counterService, CounterSinkProperties.ExactlyOnce properties,
+			MeterRegistry[] meterRegistries, EvaluationContext context) {
+		this.counterService = counterService;
+		this.context = context;
+		this.partitionExpression = properties.getPartitionExpression();
+		this.offsetExpression = properties.getOffsetExpression();
+		this.ackExpression = properties.getAckExpression();
+		this.commitSize = properties.getCommitSize();
+		CounterCheckpoint checkpoint = counterService.getCheckpoint();
+		this.committedOffsets = (checkpoint != null) ? checkpoint.getOffsets() : new HashMap<>();
+
+		this.commitTimers = new Timer[meterRegistries.length];
+		for (int i = 0; i < meterRegistries.length; i++) {
+			this.commitTimers[i] = Timer.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "commit")
+					.description("Time to commit a batch of counter increments and offsets")
+					.register(meterRegistries[i]);
+			FunctionCounter.builder(DefaultCounterService.INTERNAL_METER_PREFIX + "redelivered", this.redelivered,
+					LongAdder::sum)
+					.description("Redelivered messages skipped by the exactly-once counting")
+					.register(meterRegistries[i]);
+		}
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("counter-commit-");
+		threadFactory.setDaemon(true);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+		long intervalMillis = properties.getCommitInterval().toMillis();
+		this.scheduler.scheduleWithFixedDelay(this::commitQuietly, intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts the messages unless the message they were received with, e.g. a batch message, is a redelivery. The
+	 * expressions are evaluated outside of the lock, only the offsets and the pending increments are shared.
+	 * @param message the received message, carrying the partition and the offset.
+	 * @param messages the messages to count.
+	 */
+	public void count(Message<?> message, List<Message<?>> messages) {
+		String partition = String.valueOf(this.partitionExpression.getValue(this.context, message));
+		Long offset = this.offsetExpression.getValue(this.context, message, Long.class);
+		if (offset != null && this.isRedelivered(partition, offset)) {
+			this.redelivered.increment();
+			return;
+		}
+		PendingIncrements increments = this.counted.get();
+		try {
+			for (Message<?> counted : messages) {
+				this.counterService.count(counted, increments);
+			}
+			synchronized (this) {
+				// Re-checked, a concurrent delivery of the same offset may have been counted meanwhile.
+				if (offset != null) {
+					if (this.isRedelivered(partition, offset)) {
+						this.redelivered.increment();
+						return;
+					}
+					this.pendingOffsets.put(partition, offset);
+				}
+				this.pending.addAll(increments);
+				this.pendingAcks.put(partition, message);
+				this.pendingMessages += messages.size();
+				if (this.pendingMessages >= this.commitSize) {
+					this.commit();
+				}
+			}
+		}
+		finally {
+			increments.clear();
+		}
+	}
+
+	private synchronized boolean isRedelivered(String partition, long offset) {
+		Long lastOffset = this.pendingOffsets.get(partition);
+		if (lastOffset == null) {
+			lastOffset = this.committedOffsets.get(partition);
+		}
+		return lastOffset != null && offset <= lastOffset;
+	}
+
+	/**
+	 * Commits the buffered increments and offsets, then acknowledges the last committed message of every partition.
+	 * With the counter checkpoint enabled the offsets are in the checkpoint log before any acknowledgment.
+	 */
+	public synchronized void commit() {
+		if (this.pendingAcks.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		this.counterService.commit(this.pending, this.pendingOffsets);
+		this.committedOffsets.putAll(this.pendingOffsets);
+		this.pendingOffsets.clear();
+		this.pendingMessages = 0;
+		if (this.ackExpression != null) {
+			for (Message<?> message : this.pendingAcks.values()) {
+				try {
+					this.ackExpression.getValue(this.context, message);
+				}
+				catch (EvaluationException e) {
+					logger.warn("Failed to acknowledge the committed message " + message, e);
+				}
+			}
+		}
+		this.pendingAcks.clear();
+		long elapsed = System.nanoTime() - start;
+		for (Timer timer : this.commitTimers) {
+			timer.record(elapsed, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void commitQuietly() {
+		try {
+			this.commit();
+		}
+		catch (Exception e) {
+			logger.error("Failed to commit the counter increments", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic commits and commits the buffered increments.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		try {
+			this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.commit();
+	}
+}
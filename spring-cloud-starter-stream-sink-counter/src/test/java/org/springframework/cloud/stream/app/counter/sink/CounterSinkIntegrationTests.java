@@ -16,22 +16,38 @@
 
 package org.springframework.cloud.stream.app.counter.sink;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.SpringBootConfiguration;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.app.analytics.common.CounterCommonProperties;
+import org.springframework.cloud.stream.app.analytics.common.CounterService;
+import org.springframework.cloud.stream.app.analytics.common.DefaultCounterService;
 import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.context.annotation.Import;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.GenericMessage;
 import org.springframework.messaging.support.MessageBuilder;
@@ -179,6 +195,156 @@ public abstract class CounterSinkIntegrationTests {
 		}
 	}
 
+	@TestPropertySource(properties = {
+			"counter.name=books",
+			"counter.tag.expression.category=#jsonPath(payload,'$..category')",
+			"counter.sink.batch-mode=true"
+	})
+	public static class BatchModeTests extends CounterSinkIntegrationTests {
+
+		@Test
+		public void testCounterSink() {
+
+			sink.input().send(new GenericMessage<>(Arrays.asList(
+					jsonBooksStore.getBytes(), jsonBooksStore.getBytes(), jsonBooksStore.getBytes())));
+
+			assertThat(meterRegistry.find("message.books").counter().count(), is(3.0));
+
+			Collection<Counter> fictionCounters = meterRegistry.find("books").tag("category", "fiction").counters();
+			assertThat(fictionCounters.stream().mapToDouble(c -> c.count()).sum(), is(12.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.tag.expression.foo=payload",
+			"counter.executor.mode=platform",
+			"counter.executor.pool-size=4",
+			"counter.executor.key-expression=payload"
+	})
+	public static class ExecutorTests extends CounterSinkIntegrationTests {
+
+		@Autowired
+		private CounterService counterService;
+
+		@Test
+		public void testCounterSink() throws Exception {
+			IntStream.range(0, 100).forEach(i -> sink.input().send(new GenericMessage<>("hello" + (i % 10))));
+
+			// Drains the worker lanes
+			((DisposableBean) counterService).destroy();
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(100.0));
+			assertThat(meterRegistry.find("counter666").tag("foo", "hello3").counter().count(), is(10.0));
+			assertThat(meterRegistry.find("counter.internal.executor.queue.depth").gauge().value(), is(0.0));
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.sink.exactly-once.enabled=true",
+			"counter.sink.exactly-once.partition-expression=headers['partition']",
+			"counter.sink.exactly-once.offset-expression=headers['offset']",
+			"counter.sink.exactly-once.ack-expression=headers['acks'].add(headers['offset'])",
+			"counter.sink.exactly-once.commit-size=3",
+			"counter.sink.exactly-once.commit-interval=1h"
+	})
+	public static class ExactlyOnceTests extends CounterSinkIntegrationTests {
+
+		@Autowired
+		private ExactlyOnceCounter exactlyOnceCounter;
+
+		@Test
+		public void testCounterSink() {
+			List<Long> acks = new ArrayList<>();
+			IntStream.range(0, 5).forEach(offset -> sink.input().send(offsetMessage("p0", offset, acks)));
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(3.0));
+			assertThat(acks, equalTo(Arrays.asList(2L)));
+
+			// Redelivery of the committed and of the pending messages.
+			IntStream.range(0, 5).forEach(offset -> sink.input().send(offsetMessage("p0", offset, acks)));
+			sink.input().send(offsetMessage("p1", 0, acks));
+			exactlyOnceCounter.commit();
+
+			assertThat(meterRegistry.find("message.counter666").counter().count(), is(6.0));
+			assertThat(acks, equalTo(Arrays.asList(2L, 4L, 0L)));
+			assertThat(meterRegistry.find("counter.internal.redelivered").functionCounter().count(), is(5.0));
+			assertThat(meterRegistry.find("counter.internal.commit").timer().count(), is(2L));
+		}
+
+		private static Message<String> offsetMessage(String partition, long offset, List<Long> acks) {
+			return MessageBuilder.withPayload("hello")
+					.setHeader("partition", partition)
+					.setHeader("offset", offset)
+					.setHeader("acks", acks)
+					.build();
+		}
+	}
+
+	@TestPropertySource(properties = {
+			"counter.name=counter666",
+			"counter.checkpoint.enabled=true",
+			"counter.checkpoint.directory=${java.io.tmpdir}/counter-checkpoint-${random.uuid}",
+			"counter.checkpoint.log-interval=1h",
+			"counter.checkpoint.snapshot-interval=1h",
+			"counter.sink.exactly-once.enabled=true",
+			"counter.sink.exactly-once.partition-expression=headers['partition']",
+			"counter.sink.exactly-once.offset-expression=headers['offset']",
+			"counter.sink.exactly-once.ack-expression=headers['acks'].add(headers['offset'])",
+			"counter.sink.exactly-once.commit-size=3",
+			"counter.sink.exactly-once.commit-interval=1h"
+	})
+	public static class ExactlyOnceCheckpointTests extends CounterSinkIntegrationTests {
+
+		@Autowired
+		private CounterCommonProperties properties;
+
+		@Test
+		public void testCounterSink() {
+			// Offsets restored from a copy of the checkpoint directory, as of every acknowledgment.
+			List<Long> durableOffsets = new ArrayList<>();
+			List<Long> acks = new ArrayList<Long>() {
+
+				@Override
+				public boolean add(Long offset) {
+					durableOffsets.add(restoredOffsets().get("p0"));
+					return super.add(offset);
+				}
+			};
+			IntStream.range(0, 6).forEach(offset -> sink.input().send(ExactlyOnceTests.offsetMessage("p0", offset,
+					acks)));
+
+			assertThat(acks, equalTo(Arrays.asList(2L, 5L)));
+			assertThat(durableOffsets, equalTo(Arrays.asList(2L, 5L)));
+			assertThat(meterRegistry.find("counter.internal.checkpoint.log").timer().count(), is(2L));
+		}
+
+		private Map<String, Long> restoredOffsets() {
+			try {
+				Path copy = Files.createTempDirectory("counter-checkpoint-");
+				try (Stream<Path> files = Files.list(Paths.get(properties.getCheckpoint().getDirectory()))) {
+					for (Path file : (Iterable<Path>) files::iterator) {
+						Files.copy(file, copy.resolve(file.getFileName()));
+					}
+				}
+				CounterCommonProperties restoredProperties = new CounterCommonProperties();
+				restoredProperties.getCheckpoint().setEnabled(true);
+				restoredProperties.getCheckpoint().setDirectory(copy.toString());
+				DefaultCounterService restored = new DefaultCounterService(restoredProperties,
+						new MeterRegistry[] { new SimpleMeterRegistry() }, new StandardEvaluationContext());
+				try {
+					return restored.getCheckpoint().getOffsets();
+				}
+				finally {
+					restored.destroy();
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
 	@SpringBootConfiguration
 	@EnableAutoConfiguration
 	@Import(CounterSinkConfiguration.class)